@@ -1,3 +1,5 @@
+import java.io.File;
+
 public class AdvancedFitOptions {
   double km;
   double kr;
@@ -5,6 +7,38 @@ public class AdvancedFitOptions {
   double cr;
   double lambda;
   boolean reportPerf;
+  SimulationKernel kernel;
+  /* the float kernel is used until the relative spread of the median and the
+     best fitting error is below this, 0 to never use it */
+  double floatSwitch;
+  /* the early generations use every decimation-th angle, a power of two,
+     and the step is halved whenever the relative spread of the median and
+     the best fitting error is below decimationSwitch */
+  int decimation;
+  double decimationSwitch;
+  /* the number of parameter vectors whose costs are remembered, 0 to
+     disable the cache */
+  int cacheSize;
+  /* Levenberg-Marquardt refinement starts when the relative spread of the
+     median and the best fitting error is below this */
+  double lmSwitch;
+  /* the number of islands of island-model DE, 1 for a single population
+     and 0 for one island per compute thread, and the number of generations
+     between migrations */
+  int islands;
+  int migrationInterval;
+  /* the eigenbasis of the covariance matrix of covariance DE is
+     recalculated every eigenInterval generations or when the covariance
+     matrix has changed by more than eigenDrift relative to the one it was
+     calculated from, 0 to ignore the change, and if eigenConcurrent is set,
+     concurrently with the evaluation of a generation */
+  int eigenInterval;
+  double eigenDrift;
+  boolean eigenConcurrent;
+  /* the state of a fit is saved to checkpointFile every checkpointInterval
+     seconds, 0 to disable checkpoints */
+  double checkpointInterval;
+  File checkpointFile;
   public AdvancedFitOptions() {
     this.km = 0.7;
     this.kr = 0.5*(this.km + 1);
@@ -12,5 +46,18 @@ public class AdvancedFitOptions {
     this.cr = 0.5;
     this.lambda = 1.0;
     this.reportPerf = false;
+    this.kernel = SimulationKernel.SCALAR;
+    this.floatSwitch = 0;
+    this.decimation = 1;
+    this.decimationSwitch = 0.02;
+    this.cacheSize = 10000;
+    this.lmSwitch = 0.01;
+    this.islands = 1;
+    this.migrationInterval = 5;
+    this.eigenInterval = 1;
+    this.eigenDrift = 0;
+    this.eigenConcurrent = false;
+    this.checkpointInterval = 0;
+    this.checkpointFile = null;
   }
 };
@@ -1,11 +1,17 @@
 /** Enumeration of the supported algorithms.
  *
  * All the supported algorithms and their human-readable names.
+ * JavaCovDELM is JavaCovDE followed by Levenberg-Marquardt refinement.
+ * JavaAsyncCovDE is JavaCovDE without generational barriers, see AsyncDECtx.
+ * JavaCMAES is not DE but CMA-ES, see CMAESCtx.
  */
 public enum Algorithm {
     JavaCovDE("JavaCovDE"),
     JavaDE("JavaDE"),
-    JavaEitherOrDE("JavaEitherOrDE");
+    JavaEitherOrDE("JavaEitherOrDE"),
+    JavaCovDELM("JavaCovDE+LM"),
+    JavaAsyncCovDE("JavaAsyncCovDE"),
+    JavaCMAES("JavaCMA-ES");
 
     private final String name;
     Algorithm(String name) {
@@ -14,4 +20,30 @@ public enum Algorithm {
     public String toString() {
         return name;
     }
+
+    /** Tests whether DE uses the eigenbasis of the covariance matrix. */
+    public boolean covariance() {
+        return this == JavaCovDE || this == JavaCovDELM
+               || this == JavaAsyncCovDE;
+    }
+
+    /** Tests whether DE always mutates instead of recombining. */
+    public boolean traditionalRecombination() {
+        return this != JavaEitherOrDE;
+    }
+
+    /** Tests whether DE is followed by local refinement. */
+    public boolean localRefinement() {
+        return this == JavaCovDELM;
+    }
+
+    /** Tests whether DE is asynchronous and steady-state. */
+    public boolean asynchronous() {
+        return this == JavaAsyncCovDE;
+    }
+
+    /** Tests whether CMA-ES is used instead of DE. */
+    public boolean cmaes() {
+        return this == JavaCMAES;
+    }
 };
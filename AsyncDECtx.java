@@ -0,0 +1,512 @@
+import Jama.Matrix;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Asynchronous steady-state differential evolution.
+ *
+ * <p>
+ *
+ * DECtx builds a whole trial population, waits until every trial vector has
+ * been evaluated and only then does the selection, so a single slow
+ * evaluation keeps the other cores waiting. The cost of a simulation varies
+ * between parameter vectors, for example with the number of interfaces
+ * whose roughness factors underflow.
+ *
+ * <p>
+ *
+ * Here a fixed set of worker tasks repeatedly take the next target
+ * individual, build a trial vector from the current population, evaluate it
+ * and replace the target by it at once if it is better. The replacement is a
+ * compare-and-set of an immutable individual, so the workers never lock.
+ * The improvements of the other workers are used as soon as they are made.
+ *
+ * <p>
+ *
+ * An iteration waits until as many more trials as there are individuals
+ * have been evaluated, which corresponds to a generation of DECtx. The
+ * workers are not joined at the end of an iteration: each of them may start
+ * one more trial beyond those the iteration waits for, so they keep working
+ * while the caller reads the results and until the next iteration raises
+ * the number of trials again. The eigenbasis of the covariance matrix is
+ * recalculated by the worker that completes each population's worth of
+ * trials, while the other workers go on with the old eigenbasis.
+ *
+ * <p>
+ *
+ * Because trials continue in the background, the cost function may only be
+ * changed after finishEvaluations.
+ *
+ */
+public class AsyncDECtx implements PopulationOptimizer {
+  private double km;
+  private double kr;
+  private double cr;
+  private double pm;
+  private double lambda;
+  private DECtx.CostFunc func;
+  private boolean cov_on;
+  private boolean traditional_recombination_on;
+  private int nparam;
+  private int npop;
+  private int nworkers;
+  private double[] p_min;
+  private double[] p_max;
+  private double[] dp;
+  private ExecutorService executor_service;
+  private AtomicReferenceArray<Individual> pop;
+  private final AtomicReference<Individual> best = new AtomicReference<Individual>();
+  /* the population sorted from the best to the worst after an iteration */
+  private Individual[] sorted;
+  /* the eigenbasis used for new trials, null if not rotated */
+  private volatile double[][] basis;
+  /*
+     Trial number t targets individual t%npop. Trials may be started while
+     fewer than limit have been started, and iteration() waits until goal
+     trials have been evaluated.
+   */
+  private final AtomicLong started = new AtomicLong();
+  private final AtomicLong evaluated = new AtomicLong();
+  private volatile long limit;
+  private volatile long goal;
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+  private final Object lock = new Object();
+
+  /* individuals are immutable, so that they can be replaced atomically */
+  private static class Individual {
+    private final double[] p;
+    private final double E;
+    private Individual(double[] p, double E)
+    {
+      this.p = p;
+      this.E = E;
+    }
+  };
+
+  /* starts from initial like the corresponding constructor of DECtx */
+  public AsyncDECtx(DECtx.CostFunc func, double[] p_min, double[] p_max,
+                    double[][] initial, boolean cov_on,
+                    boolean traditional_recombination_on,
+                    int npop, ExecutorService executor_service,
+                    AdvancedFitOptions opts)
+  {
+    this.km = opts.km;
+    this.kr = opts.kr;
+    this.pm = opts.pm;
+    this.cr = opts.cr;
+    this.lambda = opts.lambda;
+    this.func = func;
+    this.cov_on = cov_on;
+    this.traditional_recombination_on = traditional_recombination_on;
+    this.npop = npop;
+    this.nparam = p_min.length;
+    this.executor_service = executor_service;
+    this.nworkers = Math.min(npop, ComputeScheduler.getParallelism(executor_service));
+    if (p_max.length != nparam || initial.length < 1 || npop < 4)
+    {
+      throw new IllegalArgumentException();
+    }
+    this.p_min = p_min.clone();
+    this.p_max = p_max.clone();
+    this.dp = new double[nparam];
+    for (int j=0; j<nparam; j++)
+    {
+      this.dp[j] = p_max[j] - p_min[j];
+    }
+    Random r = new Random();
+    double[][] p = new double[npop][nparam];
+    for (int i=0; i<npop; i++)
+    {
+      for (int j=0; j<nparam; j++)
+      {
+        if (i < initial.length)
+        {
+          p[i][j] = Math.max(p_min[j], Math.min(p_max[j], initial[i][j]));
+        }
+        else
+        {
+          p[i][j] = p_min[j] + dp[j]*r.nextDouble();
+        }
+      }
+    }
+    this.pop = new AtomicReferenceArray<Individual>(npop);
+    evaluate(p);
+    this.basis = eigenbasis();
+  }
+
+  /* Evaluates the vectors concurrently and makes them the population. */
+  private void evaluate(final double[][] p)
+  {
+    int nchunks = ComputeScheduler.chunkCount(executor_service, npop);
+    ArrayList<Callable<Void>> list = new ArrayList<Callable<Void>>(nchunks);
+    for (int c = 0; c < nchunks; c++)
+    {
+      final int from = (int)((long)npop*c/nchunks);
+      final int to = (int)((long)npop*(c+1)/nchunks);
+      list.add(new Callable<Void>() {
+        public Void call() throws Exception
+        {
+          for (int i = from; i < to; i++)
+          {
+            pop.set(i, new Individual(p[i], func.calculate(p[i])));
+          }
+          return null;
+        }
+      });
+    }
+    ComputeScheduler.invokeAll(executor_service, list);
+    best.set(null);
+    for (int i=0; i<npop; i++)
+    {
+      offerBest(pop.get(i));
+    }
+    sort();
+  }
+
+  private void offerBest(Individual ind)
+  {
+    for (;;)
+    {
+      Individual b = best.get();
+      if (b != null && !(ind.E < b.E))
+      {
+        return;
+      }
+      if (best.compareAndSet(b, ind))
+      {
+        return;
+      }
+    }
+  }
+
+  private void sort()
+  {
+    Individual[] s = new Individual[npop];
+    for (int i=0; i<npop; i++)
+    {
+      s[i] = pop.get(i);
+    }
+    Arrays.sort(s, new Comparator<Individual>() {
+      public int compare(Individual a, Individual b)
+      {
+        return Double.compare(a.E, b.E);
+      }
+    });
+    this.sorted = s;
+  }
+
+  /*
+     The eigenbasis of the covariance matrix of the normalized population,
+     or null if the coordinates aren't rotated.
+   */
+  private double[][] eigenbasis()
+  {
+    if (!cov_on || nparam == 0)
+    {
+      return null;
+    }
+    double[][] m = new double[npop][nparam];
+    for (int i=0; i<npop; i++)
+    {
+      double[] p = pop.get(i).p;
+      for (int j=0; j<nparam; j++)
+      {
+        m[i][j] = dp[j] != 0 ? (p[j]-p_min[j])/dp[j] : 0;
+      }
+    }
+    return DECtx.cov(new Matrix(m)).eig().getV().getArray();
+  }
+
+  /* normalizes x and rotates it to the eigenbasis T */
+  private double[] toBasis(double[] x, double[][] T)
+  {
+    double[] n = new double[nparam];
+    double[] y = new double[nparam];
+    for (int j=0; j<nparam; j++)
+    {
+      n[j] = dp[j] != 0 ? (x[j]-p_min[j])/dp[j] : 0;
+    }
+    for (int k=0; k<nparam; k++)
+    {
+      double sum = 0;
+      for (int j=0; j<nparam; j++)
+      {
+        sum += n[j]*T[j][k];
+      }
+      y[k] = sum;
+    }
+    return y;
+  }
+
+  /* the inverse of toBasis */
+  private double[] fromBasis(double[] y, double[][] T)
+  {
+    double[] x = new double[nparam];
+    for (int j=0; j<nparam; j++)
+    {
+      double sum = 0;
+      for (int k=0; k<nparam; k++)
+      {
+        sum += y[k]*T[j][k];
+      }
+      x[j] = p_min[j] + sum*dp[j];
+    }
+    return x;
+  }
+
+  /* Builds a trial vector for the target individual from the population. */
+  private double[] trial(double[] target, double[][] T, Random r)
+  {
+    double[] b = best.get().p;
+    double[] pa = pop.get(r.nextInt(npop)).p;
+    double[] pb = pop.get(r.nextInt(npop)).p;
+    double[] pc = pop.get(r.nextInt(npop)).p;
+    double[] mm = new double[nparam];
+    boolean mutate = traditional_recombination_on || r.nextDouble() < pm;
+    for (int j=0; j<nparam; j++)
+    {
+      mm[j] = pc[j] + (b[j] - pc[j])*lambda;
+      if (mutate)
+      {
+        mm[j] += km*(pa[j] - pb[j]);
+      }
+      else
+      {
+        mm[j] += kr*(pa[j] + pb[j] - 2*mm[j]);
+      }
+    }
+    double[] p2;
+    if (traditional_recombination_on)
+    {
+      /* crossover in the eigenbasis like in DECtx */
+      double[] p = T != null ? toBasis(target, T) : target.clone();
+      double[] m = T != null ? toBasis(mm, T) : mm;
+      for (int j=0; j<nparam; j++)
+      {
+        if (r.nextDouble() < cr)
+        {
+          p[j] = m[j];
+        }
+      }
+      p2 = T != null ? fromBasis(p, T) : p;
+    }
+    else
+    {
+      p2 = mm;
+    }
+    for (int j=0; j<nparam; j++)
+    {
+      if (p2[j] < p_min[j] || p2[j] > p_max[j])
+      {
+        p2[j] = p_min[j] + dp[j]*r.nextDouble();
+      }
+    }
+    return p2;
+  }
+
+  /* Makes a trial for individual i. */
+  private void makeTrial(int i, Random r) throws Exception
+  {
+    Individual target = pop.get(i);
+    double[] p2 = trial(target.p, basis, r);
+    Individual ind = new Individual(p2, func.calculate(p2));
+    /*
+       A slow trial may still be running when the trial numbers have gone
+       round the population, so another worker may have replaced the target
+       meanwhile and the trial has to beat the current occupant.
+     */
+    for (;;)
+    {
+      Individual cur = pop.get(i);
+      if (!(ind.E < cur.E) || pop.compareAndSet(i, cur, ind))
+      {
+        break;
+      }
+    }
+    offerBest(ind);
+  }
+
+  private void signal()
+  {
+    synchronized (lock)
+    {
+      lock.notifyAll();
+    }
+  }
+
+  /* Counts a new worker in unless there are enough already. */
+  private boolean join()
+  {
+    for (;;)
+    {
+      int n = running.get();
+      if (n >= nworkers)
+      {
+        return false;
+      }
+      if (running.compareAndSet(n, n+1))
+      {
+        return true;
+      }
+    }
+  }
+
+  private class Worker implements Runnable {
+    public void run()
+    {
+      Random r = new Random();
+      try {
+        for (;;)
+        {
+          long t = started.get();
+          if (t >= limit)
+          {
+            running.decrementAndGet();
+            signal();
+            /*
+               iteration() may have raised the limit after the check above
+               but before the decrement, and then it didn't start a worker.
+             */
+            if (started.get() >= limit || !join())
+            {
+              return;
+            }
+            continue;
+          }
+          if (!started.compareAndSet(t, t+1))
+          {
+            continue;
+          }
+          makeTrial((int)(t % npop), r);
+          long n = evaluated.incrementAndGet();
+          if (cov_on && n % npop == 0)
+          {
+            basis = eigenbasis();
+          }
+          if (n >= goal)
+          {
+            signal();
+          }
+        }
+      }
+      catch (Throwable e)
+      {
+        failure.compareAndSet(null, e);
+        running.decrementAndGet();
+        signal();
+      }
+    }
+  }
+
+  /*
+     Waits until goal trials have been evaluated or, if idle is set, until
+     all workers have stopped. A pool thread that waits is compensated for,
+     so the workers can run even if the pool has no other free threads.
+   */
+  private void await(final boolean idle)
+  {
+    ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker() {
+      public boolean isReleasable()
+      {
+        return failure.get() != null
+               || (idle ? running.get() == 0 : evaluated.get() >= goal);
+      }
+      public boolean block() throws InterruptedException
+      {
+        synchronized (lock)
+        {
+          while (!isReleasable())
+          {
+            lock.wait();
+          }
+        }
+        return true;
+      }
+    };
+    for (;;)
+    {
+      try {
+        ForkJoinPool.managedBlock(blocker);
+        break;
+      }
+      catch (InterruptedException e)
+      {
+        /* ignored like in ComputeScheduler.invokeAll */
+      }
+    }
+    if (failure.get() != null)
+    {
+      throw new RuntimeException(failure.get());
+    }
+  }
+
+  public void iteration()
+  {
+    goal += npop;
+    limit = goal + nworkers;
+    while (started.get() < limit && join())
+    {
+      executor_service.execute(new Worker());
+    }
+    await(false);
+    sort();
+  }
+
+  public void finishEvaluations()
+  {
+    limit = 0;
+    await(true);
+  }
+
+  public void recalculateFittingErrors()
+  {
+    finishEvaluations();
+    double[][] p = new double[npop][];
+    for (int i=0; i<npop; i++)
+    {
+      p[i] = pop.get(i).p;
+    }
+    evaluate(p);
+    goal = evaluated.get();
+  }
+
+  public double[][] population()
+  {
+    double[][] result = new double[npop][];
+    for (int i=0; i<npop; i++)
+    {
+      result[i] = sorted[i].p.clone();
+    }
+    return result;
+  }
+  public double[] fittingErrors()
+  {
+    double[] result = new double[npop];
+    for (int i=0; i<npop; i++)
+    {
+      result[i] = sorted[i].E;
+    }
+    return result;
+  }
+  public double[] bestIndividual()
+  {
+    return sorted[0].p.clone();
+  }
+  public double[] medianIndividual()
+  {
+    return sorted[npop/2].p.clone();
+  }
+  public double bestFittingError()
+  {
+    return sorted[0].E;
+  }
+  public double medianFittingError()
+  {
+    return sorted[npop/2].E;
+  }
+  public double worstFittingError()
+  {
+    return sorted[npop-1].E;
+  }
+};
@@ -0,0 +1,343 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Bootstrap confidence intervals of fitted parameters.
+ *
+ * <p>
+ *
+ * A fit gives the parameters that best explain one measurement, but not how
+ * much they would vary if the measurement were repeated. The bootstrap
+ * estimates this by generating replicate measurements from the fit and
+ * fitting the model to each of them. The spread of the replicate fits
+ * gives a confidence interval for every fitted value.
+ *
+ * <p>
+ *
+ * A replicate measurement is generated in one of two ways. If a photon
+ * level is given, the fitted curve is sampled with Poisson noise as in
+ * GraphData.addNoise. Otherwise the residuals of the fit, which are the
+ * ratios of the measurement to the fitted curve, are resampled with
+ * replacement and multiplied back onto the fitted curve. The latter needs
+ * no noise model, but it assumes the errors of the angles to be
+ * independent. With Poisson noise, the fitted curve should be well above
+ * the photon level in the fitted range: the fitting error functions ignore
+ * the angles where no photons were counted, which biases the replicate
+ * fits.
+ *
+ * <p>
+ *
+ * The replicates are fitted concurrently in the shared pool of
+ * ComputeScheduler. Every replicate fit starts from the converged DE
+ * population of the original fit instead of a random one, so it only has
+ * to follow the optimum the short distance it moves. If the fitting error
+ * function is a least squares function, the replicate fits are refined
+ * with Levenberg-Marquardt right after the first DE iteration whatever the
+ * algorithm, which makes them an order of magnitude faster than fitting
+ * from scratch. If the population is not given, the original fit is
+ * repeated first from the fitted values.
+ *
+ */
+public class Bootstrap {
+    private final LayerStack stack;
+    private final GraphData data;
+    private final FittingErrorFunc func;
+    private final Algorithm algo;
+    private final int popsize;
+    private final AdvancedFitOptions opts;
+    private final int iterations;
+    private final int autostopFigures;
+    private double[][] population;
+    private double[] fitted;
+    private double[][] replicates;
+    private final AtomicInteger completed = new AtomicInteger();
+    private volatile boolean cancelled;
+
+    /** The confidence interval of one fitted value. */
+    public static class Interval {
+        /** a description of the value, e.g. "Layer 1 thickness" */
+        public final String name;
+        /** the unit the values are given in */
+        public final String unit;
+        /** the fitted value */
+        public final double value;
+        /** the standard deviation of the replicate fits */
+        public final double stddev;
+        /** the limits of the interval */
+        public final double low, high;
+
+        Interval(String name, String unit, double value, double stddev,
+                 double low, double high) {
+            this.name = name;
+            this.unit = unit;
+            this.value = value;
+            this.stddev = stddev;
+            this.low = low;
+            this.high = high;
+        }
+
+        public String toString() {
+            return name + " = " + String.format(Locale.US,"%.6g",value) +
+                   " " + unit + ", stddev " +
+                   String.format(Locale.US,"%.3g",stddev) + ", [" +
+                   String.format(Locale.US,"%.6g",low) + ", " +
+                   String.format(Locale.US,"%.6g",high) + "]";
+        }
+    }
+
+    /** Creates a bootstrap of a fit.
+     *
+     * @param stack the fitted layer model
+     * @param data the measurement the model was fitted to, normalized,
+     * linear and cropped to the fitted range like in JavaFitter
+     * @param func the fitting error function of the fit
+     * @param algo the fitting algorithm
+     * @param popsize the population size of the fit
+     * @param iterations the maximum number of iterations of a replicate fit
+     * @param autostopFigures a replicate fit stops when the worst and the
+     * best fitting errors agree to this many figures
+     * @param opts the fitting options
+     * @param population the final DE population of the fit from
+     * XRRFittingCtx.population, or null to fit again
+     */
+    public Bootstrap(LayerStack stack, GraphData data, FittingErrorFunc func,
+                     Algorithm algo, int popsize, int iterations,
+                     int autostopFigures, AdvancedFitOptions opts,
+                     double[][] population) {
+        this.stack = stack.deepCopy();
+        this.data = data.convertToLinear();
+        this.func = func;
+        this.algo = algo;
+        this.popsize = popsize;
+        this.iterations = iterations;
+        this.autostopFigures = autostopFigures;
+        this.opts = opts;
+        this.population = population;
+    }
+
+    /* Runs a fit until it has converged or the iterations run out. */
+    private void fit(XRRFittingCtx ctx) {
+        for (int round = 0; round < iterations && !cancelled; round++)
+        {
+            ctx.iteration();
+            if (ctx.worstFittingError()/ctx.bestFittingError() - 1
+                < Math.pow(0.1,autostopFigures))
+            {
+                break;
+            }
+        }
+    }
+
+    private XRRFittingCtx context(GraphData gd, double[][] initial) {
+        return new XRRFittingCtx(stack, gd, algo.covariance(),
+                                 algo.traditionalRecombination(),
+                                 algo.localRefinement() || initial != null,
+                                 algo.asynchronous(), algo.cmaes(), popsize,
+                                 func, ComputeScheduler.pool(), opts, initial);
+    }
+
+    /* Generates a replicate measurement from the fitted curve. */
+    private GraphData replicate(double[] simul, double photon, Random rand) {
+        if (photon > 0)
+        {
+            GraphData gd = new GraphData(data.alpha_0, simul, simul, false);
+            return gd.addNoise(photon);
+        }
+        double[] meas = data.meas.clone();
+        int n = 0;
+        double[] ratios = new double[meas.length];
+        for (int i = 0; i < meas.length; i++)
+        {
+            if (meas[i] > 0 && simul[i] > 0)
+            {
+                ratios[n++] = meas[i]/simul[i];
+            }
+        }
+        /* points that have no residual are kept as they are */
+        for (int i = 0; i < meas.length && n > 0; i++)
+        {
+            if (meas[i] > 0 && simul[i] > 0)
+            {
+                meas[i] = simul[i]*ratios[rand.nextInt(n)];
+            }
+        }
+        return new GraphData(data.alpha_0, meas, simul, false);
+    }
+
+    /** Fits the replicates.
+     *
+     * This may take a long time. It can be interrupted with cancel, after
+     * which the replicates fitted so far are used.
+     *
+     * @param count the number of replicates
+     * @param photon the linear intensity of a photon, or 0 to resample the
+     * residuals
+     * @param seed the seed of the resampling of the residuals, Poisson
+     * noise is not reproducible
+     * @throws PhotonLevelException if the photon level is so low that
+     * the fitted curve has more photons than an int holds
+     */
+    public void run(int count, final double photon, long seed) throws PhotonLevelException {
+        if (count < 2)
+        {
+            throw new IllegalArgumentException("too few replicates");
+        }
+        if (population == null)
+        {
+            XRRFittingCtx ctx = context(data, null);
+            fit(ctx);
+            population = ctx.population();
+        }
+        fitted = population[0];
+        LayerStack best = stack.deepCopy();
+        best.setFitValues(fitted);
+        final double[] simul = data.simulate(best).normalize(best).simul;
+        /* GraphData.addNoise can't count more photons than an int holds */
+        for (int i = 0; i < simul.length && photon > 0; i++)
+        {
+            if (simul[i]/photon >= Integer.MAX_VALUE)
+            {
+                throw new PhotonLevelException("The photon level is too low.");
+            }
+        }
+        final double[][] results = new double[count][];
+        final Random seeds = new Random(seed);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        completed.set(0);
+        for (int r = 0; r < count; r++)
+        {
+            final int index = r;
+            final Random rand = new Random(seeds.nextLong());
+            tasks.add(new Callable<Void>() {
+                public Void call()
+                {
+                    if (cancelled)
+                    {
+                        return null;
+                    }
+                    XRRFittingCtx ctx = context(replicate(simul, photon, rand),
+                                                population);
+                    fit(ctx);
+                    if (!cancelled)
+                    {
+                        results[index] = ctx.bestIndividual();
+                        completed.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+        }
+        ComputeScheduler.invokeAll(ComputeScheduler.pool(), tasks);
+        List<double[]> done = new ArrayList<double[]>();
+        for (double[] p: results)
+        {
+            if (p != null)
+            {
+                done.add(p);
+            }
+        }
+        replicates = done.toArray(new double[done.size()][]);
+    }
+
+    /** Stops a run as soon as possible. May be called from any thread. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /** Returns the number of replicates fitted so far. May be called from
+     * any thread during a run.
+     */
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    /** Returns the parameters of the replicate fits in the format of
+     * LayerStack.getFitValuesForFitting.
+     */
+    public double[][] getReplicates() {
+        return replicates;
+    }
+
+    private static double quantile(double[] sorted, double q) {
+        double x = q*(sorted.length-1);
+        int i = Math.min((int)x, sorted.length-2);
+        return sorted[i] + (x-i)*(sorted[i+1]-sorted[i]);
+    }
+
+    /** Returns percentile confidence intervals of the fitted values.
+     *
+     * Linked values are reported once and values that aren't fitted are
+     * omitted. Thicknesses and roughnesses are in nanometers and densities
+     * in g/cm^3 like in the layer list.
+     *
+     * @param confidence the confidence level, e.g. 0.95
+     * @return the intervals
+     * @throws IllegalStateException if fewer than two replicates were fitted
+     */
+    public List<Interval> intervals(double confidence) {
+        if (replicates == null || replicates.length < 2)
+        {
+            throw new IllegalStateException("too few replicates");
+        }
+        if (confidence <= 0 || confidence >= 1)
+        {
+            throw new IllegalArgumentException("confidence");
+        }
+        int size = stack.getSize();
+        FitValue[] values = new FitValue[3+3*size];
+        String[] names = new String[values.length];
+        String[] units = new String[values.length];
+        double[] scales = new double[values.length];
+        values[0] = stack.getProd();
+        values[1] = stack.getSum();
+        values[2] = stack.getBeam();
+        names[0] = "normalization";
+        names[1] = "sum";
+        names[2] = "beam";
+        units[0] = units[1] = "dB";
+        units[2] = "";
+        scales[0] = scales[1] = scales[2] = 1;
+        for (int i = 0; i < size; i++)
+        {
+            Layer l = stack.getElementAt(i);
+            values[3+i] = l.getThickness();
+            values[3+size+i] = l.getDensity();
+            values[3+2*size+i] = l.getRoughness();
+            names[3+i] = l.getName() + " thickness";
+            names[3+size+i] = l.getName() + " density";
+            names[3+2*size+i] = l.getName() + " roughness";
+            units[3+i] = units[3+2*size+i] = "nm";
+            units[3+size+i] = "g/cm^3";
+            scales[3+i] = scales[3+2*size+i] = 1e9;
+            scales[3+size+i] = 1e-3;
+        }
+        Set<FitValue> seen = Collections.newSetFromMap(
+            new IdentityHashMap<FitValue,Boolean>());
+        List<Interval> result = new ArrayList<Interval>();
+        double[] x = new double[replicates.length];
+        for (int k = 0; k < values.length; k++)
+        {
+            if (!values[k].getEnabled() || !seen.add(values[k]))
+            {
+                continue;
+            }
+            double sum = 0, sum2 = 0;
+            for (int r = 0; r < replicates.length; r++)
+            {
+                x[r] = replicates[r][k]*scales[k];
+                sum += x[r];
+            }
+            double mean = sum/x.length;
+            for (int r = 0; r < x.length; r++)
+            {
+                sum2 += (x[r]-mean)*(x[r]-mean);
+            }
+            Arrays.sort(x);
+            result.add(new Interval(names[k], units[k], fitted[k]*scales[k],
+                                    Math.sqrt(sum2/(x.length-1)),
+                                    quantile(x, (1-confidence)/2),
+                                    quantile(x, (1+confidence)/2)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+import javax.swing.*;
+import javax.swing.event.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.util.*;
+
+
+
+
+
+/* A dialog for bootstrap settings */
+public class BootstrapDialog extends TextFieldDialog {
+    private boolean succesful;
+    private int replicates;
+    private double confidence;
+    private Double level;
+
+    protected int nFields() {
+        return 3;
+    }
+    protected String getDefault(int i) {
+        switch(i) {
+            case 0:
+                return "50";
+            case 1:
+                return "95";
+            default:
+                return "";
+        }
+    }
+    protected String getLabel(int i) {
+        switch(i) {
+            case 0:
+                return "Replicates";
+            case 1:
+                return "Confidence (%)";
+            default:
+                return "Photon level (dB), empty to resample residuals";
+        }
+    }
+    protected void newValues(String[] v) throws InvalidValues {
+        int replicates = Integer.parseInt(v[0]);
+        double confidence = Double.parseDouble(v[1])/100;
+        if(replicates < 2)
+            throw new InvalidValues("At least two replicates are needed");
+        if(confidence <= 0 || confidence >= 1)
+            throw new InvalidValues("Confidence must be between 0 and 100 %");
+        this.level = v[2].trim().equals("") ? null : Double.parseDouble(v[2]);
+        this.replicates = replicates;
+        this.confidence = confidence;
+        succesful = true;
+    }
+    public boolean call() {
+        this.succesful = false;
+        showDialog();
+        return succesful;
+    }
+    public int getReplicates() {
+        return replicates;
+    }
+    public double getConfidence() {
+        return confidence;
+    }
+    /* the photon level in dB or null */
+    public Double getLevel() {
+        return level;
+    }
+    public BootstrapDialog(Frame f)
+    {
+        super(f,"Bootstrap");
+    }
+}
@@ -0,0 +1,564 @@
+import Jama.Matrix;
+import Jama.EigenvalueDecomposition;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Covariance matrix adaptation evolution strategy.
+ *
+ * <p>
+ *
+ * CMA-ES samples every generation from a multivariate normal distribution
+ * and moves the mean of the distribution to a weighted mean of the better
+ * half of the samples. The covariance matrix of the distribution learns the
+ * correlations of the parameters from the successful steps, and the step
+ * size is controlled by the length of the evolution path. On the strongly
+ * correlated valleys of thickness, density and roughness, it usually needs
+ * far fewer cost function evaluations than DE.
+ *
+ * <p>
+ *
+ * The parameters are normalized to [0,1] by their ranges, and a sample that
+ * falls outside the ranges is reflected back at the boundary. The reflected
+ * sample is used in the update of the distribution, so the distribution
+ * never drifts out of the ranges. The samples of a generation are evaluated
+ * concurrently in the executor service.
+ *
+ * <p>
+ *
+ * CMA-ES is a local search, so it may converge to a local optimum, which
+ * layer models have plenty of. When the distribution has stopped
+ * improving, CMA-ES is restarted from a random mean with twice as many
+ * samples per generation (IPOP-CMA-ES). A larger population smooths out
+ * the local optima and makes the search more global.
+ *
+ * <p>
+ *
+ * The population reported is the last generation, sorted, with the best
+ * individual found so far in place of the worst sample, so that the best
+ * fitting error never gets worse.
+ *
+ */
+public class CMAESCtx implements PopulationOptimizer {
+  /* a restart at most doubles the generation this many times in total */
+  private static final int MAX_DOUBLINGS = 4;
+  private DECtx.CostFunc func;
+  private int nparam;
+  private int lambda;
+  private int doublings;
+  /*
+     the best fitting error since the last restart, and its values after
+     the recent generations
+   */
+  private double runBest;
+  private LinkedList<Double> history = new LinkedList<Double>();
+  private int mu;
+  private double[] weights;
+  private double mueff;
+  private double cc, cs, c1, cmu, damps, chiN;
+  private double[] p_min;
+  private double[] dp;
+  private ExecutorService executor_service;
+  private Random r = new Random();
+  /* the state of the distribution in normalized coordinates */
+  private double[] xmean;
+  private double sigma;
+  private double[] pc;
+  private double[] ps;
+  private double[][] C;
+  private double[][] B;
+  private double[] D;
+  private double[][] invsqrtC;
+  private long counteval;
+  private long eigeneval;
+  /* the last generation sorted from the best to the worst, normalized */
+  private double[][] pop;
+  private double[] E;
+  private double[] bestX;
+  private double bestE = Double.POSITIVE_INFINITY;
+
+  /*
+     The distribution is centered at the first individual of initial. If
+     initial has more individuals, for example the converged population of
+     an earlier fit or of a checkpoint, the initial step size is their
+     spread, and if there are more of them than parameters, the covariance
+     matrix is their covariance matrix. Otherwise the step size is 0.3 of
+     the ranges. The generations have npop samples.
+   */
+  public CMAESCtx(DECtx.CostFunc func, double[] p_min, double[] p_max,
+                  double[][] initial, int npop,
+                  ExecutorService executor_service)
+  {
+    this.func = func;
+    this.nparam = p_min.length;
+    this.lambda = npop;
+    this.executor_service = executor_service;
+    if (p_max.length != nparam || initial.length < 1 || npop < 4)
+    {
+      throw new IllegalArgumentException();
+    }
+    this.p_min = p_min.clone();
+    this.dp = new double[nparam];
+    for (int j=0; j<nparam; j++)
+    {
+      this.dp[j] = p_max[j] - p_min[j];
+    }
+    xmean = normalize(clamp(initial[0]));
+    sigma = 0.3;
+    if (initial.length > 1)
+    {
+      double var = 0;
+      for (int i=1; i<initial.length; i++)
+      {
+        double[] x = normalize(clamp(initial[i]));
+        for (int j=0; j<nparam; j++)
+        {
+          var += (x[j]-xmean[j])*(x[j]-xmean[j]);
+        }
+      }
+      var /= Math.max(1, nparam*(initial.length-1));
+      sigma = Math.max(1e-6, Math.min(0.3, Math.sqrt(var)));
+    }
+    restart(xmean, sigma);
+    if (initial.length > nparam+1 && nparam > 0)
+    {
+      double[][] x = new double[initial.length-1][];
+      for (int i=1; i<initial.length; i++)
+      {
+        x[i-1] = normalize(clamp(initial[i]));
+      }
+      double[][] c = DECtx.cov(new Matrix(x)).getArray();
+      double trace = 0;
+      for (int j=0; j<nparam; j++)
+      {
+        trace += c[j][j];
+      }
+      if (trace > 0)
+      {
+        /* the step size carries the scale, C the shape */
+        this.sigma = Math.min(0.3, Math.sqrt(trace/nparam));
+        for (int j=0; j<nparam; j++)
+        {
+          for (int k=0; k<nparam; k++)
+          {
+            C[j][k] = c[j][k]*nparam/trace + (j == k ? 1e-10 : 0);
+          }
+        }
+        decompose();
+      }
+    }
+    this.pop = new double[][]{xmean.clone()};
+    this.E = new double[1];
+    evaluate(pop, E);
+    offerBest(pop[0], E[0]);
+    this.pop = sample();
+    this.E = new double[lambda];
+    evaluate(pop, E);
+    sortAndKeepBest();
+  }
+
+  /*
+     Starts the distribution anew from the normalized mean and the step
+     size with the strategy parameters for the current lambda.
+   */
+  private void restart(double[] mean, double sigma)
+  {
+    int n = nparam;
+    mu = lambda/2;
+    weights = new double[mu];
+    double sum = 0, sum2 = 0;
+    for (int i=0; i<mu; i++)
+    {
+      weights[i] = Math.log(mu+0.5) - Math.log(i+1);
+      sum += weights[i];
+    }
+    for (int i=0; i<mu; i++)
+    {
+      weights[i] /= sum;
+      sum2 += weights[i]*weights[i];
+    }
+    mueff = 1/sum2;
+    cc = (4 + mueff/n) / (n + 4 + 2*mueff/n);
+    cs = (mueff + 2) / (n + mueff + 5);
+    c1 = 2 / ((n+1.3)*(n+1.3) + mueff);
+    cmu = Math.min(1 - c1, 2*(mueff - 2 + 1/mueff) / ((n+2)*(n+2) + mueff));
+    damps = 1 + 2*Math.max(0, Math.sqrt((mueff-1)/(n+1)) - 1) + cs;
+    chiN = Math.sqrt(n)*(1 - 1.0/(4*n) + 1.0/(21.0*n*n));
+    this.xmean = mean;
+    this.sigma = sigma;
+    pc = new double[n];
+    ps = new double[n];
+    C = new double[n][n];
+    B = new double[n][n];
+    invsqrtC = new double[n][n];
+    D = new double[n];
+    for (int j=0; j<n; j++)
+    {
+      C[j][j] = B[j][j] = invsqrtC[j][j] = D[j] = 1;
+    }
+    counteval = eigeneval = 0;
+    runBest = Double.POSITIVE_INFINITY;
+    history.clear();
+  }
+
+  /*
+     Tests whether the distribution has stopped improving: the step size
+     has collapsed, the covariance matrix has become ill-conditioned, or the
+     best fitting error hasn't improved for a number of generations. The
+     last happens when the distribution gets stuck in a corner of the
+     ranges.
+   */
+  private boolean stagnated(double generationBest)
+  {
+    double maxD = 0, minD = Double.POSITIVE_INFINITY;
+    for (int k=0; k<nparam; k++)
+    {
+      maxD = Math.max(maxD, D[k]);
+      minD = Math.min(minD, D[k]);
+    }
+    if (sigma*maxD < 1e-12 || maxD > 1e7*minD)
+    {
+      return true;
+    }
+    runBest = Math.min(runBest, generationBest);
+    history.addLast(runBest);
+    if (history.size() <= 10 + (30*nparam + lambda - 1)/lambda)
+    {
+      return false;
+    }
+    double old = history.removeFirst();
+    return old - runBest <= 1e-12*Math.abs(runBest);
+  }
+
+  private double[] clamp(double[] p)
+  {
+    if (p.length != nparam)
+    {
+      throw new IllegalArgumentException();
+    }
+    double[] result = new double[nparam];
+    for (int j=0; j<nparam; j++)
+    {
+      result[j] = Math.max(p_min[j], Math.min(p_min[j]+dp[j], p[j]));
+    }
+    return result;
+  }
+  private double[] normalize(double[] p)
+  {
+    double[] x = new double[nparam];
+    for (int j=0; j<nparam; j++)
+    {
+      x[j] = dp[j] != 0 ? (p[j]-p_min[j])/dp[j] : 0;
+    }
+    return x;
+  }
+  private double[] denormalize(double[] x)
+  {
+    double[] p = new double[nparam];
+    for (int j=0; j<nparam; j++)
+    {
+      p[j] = p_min[j] + x[j]*dp[j];
+    }
+    return p;
+  }
+
+  /* Evaluates the normalized individuals concurrently. */
+  private void evaluate(final double[][] x, final double[] e)
+  {
+    int nchunks = ComputeScheduler.chunkCount(executor_service, x.length);
+    ArrayList<Callable<Void>> list = new ArrayList<Callable<Void>>(nchunks);
+    for (int c = 0; c < nchunks; c++)
+    {
+      final int from = (int)((long)x.length*c/nchunks);
+      final int to = (int)((long)x.length*(c+1)/nchunks);
+      list.add(new Callable<Void>() {
+        public Void call() throws Exception
+        {
+          for (int i = from; i < to; i++)
+          {
+            e[i] = func.calculate(denormalize(x[i]));
+          }
+          return null;
+        }
+      });
+    }
+    ComputeScheduler.invokeAll(executor_service, list);
+    counteval += x.length;
+  }
+
+  /* Samples a generation and reflects the samples into the ranges. */
+  private double[][] sample()
+  {
+    double[][] x = new double[lambda][nparam];
+    double[] z = new double[nparam];
+    for (int i=0; i<lambda; i++)
+    {
+      for (int k=0; k<nparam; k++)
+      {
+        z[k] = D[k]*r.nextGaussian();
+      }
+      for (int j=0; j<nparam; j++)
+      {
+        double y = 0;
+        for (int k=0; k<nparam; k++)
+        {
+          y += B[j][k]*z[k];
+        }
+        double t = xmean[j] + sigma*y;
+        t -= 2*Math.floor(t/2);
+        x[i][j] = t > 1 ? 2 - t : t;
+      }
+    }
+    return x;
+  }
+
+  private void offerBest(double[] x, double e)
+  {
+    if (e < bestE)
+    {
+      bestE = e;
+      bestX = x.clone();
+    }
+  }
+
+  private void sortAndKeepBest()
+  {
+    Integer[] order = new Integer[pop.length];
+    for (int i=0; i<order.length; i++)
+    {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b)
+      {
+        return Double.compare(E[a], E[b]);
+      }
+    });
+    double[][] p = new double[pop.length][];
+    double[] e = new double[pop.length];
+    for (int i=0; i<order.length; i++)
+    {
+      p[i] = pop[order[i]];
+      e[i] = E[order[i]];
+    }
+    pop = p;
+    E = e;
+    offerBest(pop[0], E[0]);
+    if (bestE < E[0])
+    {
+      System.arraycopy(pop, 0, pop, 1, pop.length-1);
+      System.arraycopy(E, 0, E, 1, E.length-1);
+      pop[0] = bestX.clone();
+      E[0] = bestE;
+    }
+  }
+
+  /* Updates the distribution from the sorted generation pop. */
+  private void update(double[][] sorted)
+  {
+    int n = nparam;
+    double[] xold = xmean;
+    xmean = new double[n];
+    for (int i=0; i<mu; i++)
+    {
+      for (int j=0; j<n; j++)
+      {
+        xmean[j] += weights[i]*sorted[i][j];
+      }
+    }
+    double[] step = new double[n];
+    for (int j=0; j<n; j++)
+    {
+      step[j] = (xmean[j] - xold[j]) / sigma;
+    }
+    double csn = Math.sqrt(cs*(2-cs)*mueff);
+    double psnorm2 = 0;
+    for (int j=0; j<n; j++)
+    {
+      double s = 0;
+      for (int k=0; k<n; k++)
+      {
+        s += invsqrtC[j][k]*step[k];
+      }
+      ps[j] = (1-cs)*ps[j] + csn*s;
+      psnorm2 += ps[j]*ps[j];
+    }
+    double psnorm = Math.sqrt(psnorm2);
+    boolean hsig = psnorm / Math.sqrt(1 - Math.pow(1-cs, 2.0*counteval/lambda))
+                   / chiN < 1.4 + 2.0/(n+1);
+    double ccn = Math.sqrt(cc*(2-cc)*mueff);
+    for (int j=0; j<n; j++)
+    {
+      pc[j] = (1-cc)*pc[j] + (hsig ? ccn*step[j] : 0);
+    }
+    double[][] artmp = new double[mu][n];
+    for (int i=0; i<mu; i++)
+    {
+      for (int j=0; j<n; j++)
+      {
+        artmp[i][j] = (sorted[i][j] - xold[j]) / sigma;
+      }
+    }
+    double keep = 1 - c1 - cmu + (hsig ? 0 : c1*cc*(2-cc));
+    for (int j=0; j<n; j++)
+    {
+      for (int k=0; k<=j; k++)
+      {
+        double rankmu = 0;
+        for (int i=0; i<mu; i++)
+        {
+          rankmu += weights[i]*artmp[i][j]*artmp[i][k];
+        }
+        C[j][k] = keep*C[j][k] + c1*pc[j]*pc[k] + cmu*rankmu;
+        C[k][j] = C[j][k];
+      }
+    }
+    sigma *= Math.exp((cs/damps)*(psnorm/chiN - 1));
+    // the whole range is covered well before this
+    sigma = Math.min(sigma, 1.0);
+    /*
+       The eigendecomposition is O(n^3), but the covariance matrix changes
+       so little per generation that it is only needed every few.
+     */
+    if (counteval - eigeneval > lambda/(c1+cmu)/n/10)
+    {
+      eigeneval = counteval;
+      decompose();
+    }
+  }
+
+  /* Calculates B, D and invsqrtC from C. */
+  private void decompose()
+  {
+    int n = nparam;
+    EigenvalueDecomposition eig = new Matrix(C).eig();
+    double[][] V = eig.getV().getArray();
+    double[] d = eig.getRealEigenvalues();
+    for (int k=0; k<n; k++)
+    {
+      D[k] = Math.sqrt(Math.max(d[k], 1e-20));
+    }
+    for (int j=0; j<n; j++)
+    {
+      for (int k=0; k<n; k++)
+      {
+        B[j][k] = V[j][k];
+      }
+    }
+    for (int j=0; j<n; j++)
+    {
+      for (int k=0; k<n; k++)
+      {
+        double s = 0;
+        for (int l=0; l<n; l++)
+        {
+          s += B[j][l]*B[k][l]/D[l];
+        }
+        invsqrtC[j][k] = s;
+      }
+    }
+  }
+
+  public void iteration()
+  {
+    if (nparam == 0)
+    {
+      return;
+    }
+    double[][] x = sample();
+    double[] e = new double[lambda];
+    evaluate(x, e);
+    pop = x;
+    E = e;
+    /* the distribution is updated from the samples only, not from the best */
+    Integer[] order = new Integer[lambda];
+    for (int i=0; i<lambda; i++)
+    {
+      order[i] = i;
+    }
+    final double[] fe = e;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b)
+      {
+        return Double.compare(fe[a], fe[b]);
+      }
+    });
+    double[][] sorted = new double[lambda][];
+    for (int i=0; i<lambda; i++)
+    {
+      sorted[i] = x[order[i]];
+    }
+    update(sorted);
+    if (stagnated(e[order[0]]))
+    {
+      if (doublings < MAX_DOUBLINGS)
+      {
+        lambda *= 2;
+        doublings++;
+      }
+      double[] mean = new double[nparam];
+      for (int j=0; j<nparam; j++)
+      {
+        mean[j] = r.nextDouble();
+      }
+      restart(mean, 0.3);
+    }
+    sortAndKeepBest();
+  }
+
+  /* every cost has been calculated when iteration() returns */
+  public void finishEvaluations()
+  {
+  }
+  /*
+     Needed when the cost function changes during the optimization, so that
+     the old fitting errors are not compared with new ones.
+   */
+  public void recalculateFittingErrors()
+  {
+    double[] best = new double[1];
+    evaluate(new double[][]{bestX}, best);
+    bestE = best[0];
+    evaluate(pop, E);
+    sortAndKeepBest();
+    /*
+       The best fitting errors of the run are in terms of the old cost
+       function, so the stagnation test starts over.
+     */
+    runBest = Double.POSITIVE_INFINITY;
+    history.clear();
+  }
+
+  public double[][] population()
+  {
+    double[][] result = new double[pop.length][];
+    for (int i=0; i<pop.length; i++)
+    {
+      result[i] = denormalize(pop[i]);
+    }
+    return result;
+  }
+  public double[] fittingErrors()
+  {
+    return E.clone();
+  }
+  public double[] bestIndividual()
+  {
+    return denormalize(pop[0]);
+  }
+  public double[] medianIndividual()
+  {
+    return denormalize(pop[pop.length/2]);
+  }
+  public double bestFittingError()
+  {
+    return E[0];
+  }
+  public double medianFittingError()
+  {
+    return E[E.length/2];
+  }
+  public double worstFittingError()
+  {
+    return E[E.length-1];
+  }
+};
@@ -1,4 +1,4 @@
-public class Chi2FittingErrorFunc implements FittingErrorFunc {
+public class Chi2FittingErrorFunc implements LeastSquaresFunc {
   public Chi2FittingErrorFunc()
   {
   }
@@ -21,6 +21,22 @@ public class Chi2FittingErrorFunc implements FittingErrorFunc {
     }
     return Math.sqrt(E/count);
   }
+  public void getResiduals(double[] meas, double[] simul, double[] residuals)
+  {
+    if (meas.length != simul.length || residuals.length != meas.length)
+    {
+      throw new IllegalArgumentException();
+    }
+    for (int i=0; i<meas.length; i++)
+    {
+      if (meas[i] <= 0 || simul[i] <= 0)
+      {
+        residuals[i] = 0;
+        continue;
+      }
+      residuals[i] = (meas[i]-simul[i])/Math.sqrt(meas[i]);
+    }
+  }
   public static void main(String[] args)
   {
     /*
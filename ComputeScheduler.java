@@ -0,0 +1,178 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Application-wide thread pool for computations.
+ *
+ * <p>
+ *
+ * Fitting, fitting error scans and plotting all run their parallel work in
+ * one shared work-stealing pool instead of creating threads of their own.
+ * This avoids the cost of starting new threads for every fit and every scan,
+ * which is significant when many short fits are run back to back, and it
+ * keeps the total number of computing threads bounded even if a plot is
+ * drawn while a fit is in progress.
+ *
+ * <p>
+ *
+ * The worker threads are daemon threads that exit after a period of
+ * inactivity, so the pool never has to be shut down.
+ *
+ * <p>
+ *
+ * The number of threads can be configured. Changing it creates a new pool
+ * for subsequent work; the old pool is left to finish the work already given
+ * to it and its threads exit when idle.
+ *
+ */
+public class ComputeScheduler {
+    /* contiguous chunks per thread in batched evaluation */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static int parallelism;
+    private static ForkJoinPool pool;
+    private static final ExecutorService sequential = new SequentialExecutor();
+
+    /* runs every task in the thread that submits it */
+    private static class SequentialExecutor extends AbstractExecutorService {
+        public void execute(Runnable command) {
+            command.run();
+        }
+        public void shutdown() {
+        }
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<Runnable>();
+        }
+        public boolean isShutdown() {
+            return false;
+        }
+        public boolean isTerminated() {
+            return false;
+        }
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+
+    private ComputeScheduler() {}
+
+    /** Returns the shared pool.
+     *
+     * The pool must not be shut down.
+     */
+    public static synchronized ForkJoinPool pool() {
+        if (pool == null)
+        {
+            pool = new ForkJoinPool(getParallelism());
+        }
+        return pool;
+    }
+
+    /** Returns an executor that runs tasks in the calling thread.
+     *
+     * This is for work that is already one of many concurrent tasks, such
+     * as an island of island-model DE, so that it doesn't split into
+     * smaller tasks. The executor must not be shut down.
+     */
+    public static ExecutorService sequential() {
+        return sequential;
+    }
+
+    /** Returns the number of threads of the shared pool. */
+    public static synchronized int getParallelism() {
+        if (parallelism == 0)
+        {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return parallelism;
+    }
+
+    /** Sets the number of threads of the shared pool.
+     *
+     * @param parallelism the number of threads or 0 to use one thread for
+     * each processor
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism < 0)
+        {
+            throw new IllegalArgumentException("negative parallelism");
+        }
+        int old = getParallelism();
+        ComputeScheduler.parallelism = parallelism;
+        if (pool != null && getParallelism() != old)
+        {
+            pool = null;
+        }
+    }
+
+    /** Returns the number of threads of an executor.
+     *
+     * @param exec the executor
+     * @return the number of threads, or the number of processors if it is
+     * not known
+     */
+    public static int getParallelism(ExecutorService exec) {
+        if (exec == sequential)
+        {
+            return 1;
+        }
+        if (exec instanceof ForkJoinPool)
+        {
+            return ((ForkJoinPool)exec).getParallelism();
+        }
+        if (exec instanceof ThreadPoolExecutor)
+        {
+            return ((ThreadPoolExecutor)exec).getMaximumPoolSize();
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Returns the number of contiguous chunks to split a batch into.
+     *
+     * There are a few chunks for each thread, so that a thread that falls
+     * behind does not delay the whole batch, but far fewer chunks than items
+     * for large batches.
+     *
+     * @param exec the executor that runs the chunks
+     * @param n the number of items in the batch
+     * @return the number of chunks, between 1 and n unless n is 0
+     */
+    public static int chunkCount(ExecutorService exec, int n) {
+        return Math.max(1, Math.min(n, CHUNKS_PER_THREAD*getParallelism(exec)));
+    }
+
+    /** Runs tasks and waits for all of them to complete.
+     *
+     * Interruptions of the waiting thread are ignored. If a task fails, a
+     * RuntimeException is thrown.
+     *
+     * @param exec the executor that runs the tasks
+     * @param tasks the tasks to run
+     */
+    public static void invokeAll(ExecutorService exec,
+                                 Collection<? extends Callable<Void>> tasks)
+    {
+        for (;;)
+        {
+            try {
+                for (Future<Void> f: exec.invokeAll(tasks))
+                {
+                    try {
+                        f.get();
+                    }
+                    catch(ExecutionException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                    catch(CancellationException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return;
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Memoizing wrapper of a cost function.
+ *
+ * <p>
+ *
+ * Differential evolution often produces trial vectors that are identical to
+ * vectors already evaluated: a crossover may keep every parameter of the
+ * old individual, and with few free parameters and a low crossover
+ * probability this is common. A cost cache remembers the costs of recently
+ * evaluated parameter vectors and returns the remembered cost for a repeated
+ * vector instead of simulating it again.
+ *
+ * <p>
+ *
+ * The vectors are compared bit by bit, so only exact repeats hit the cache.
+ * The cache holds a bounded number of vectors; when it is full, the vectors
+ * evaluated first are evicted first.
+ *
+ * <p>
+ *
+ * If the cost function changes, for example when the fit switches to a more
+ * accurate simulation, the cache must be cleared.
+ *
+ * <p>
+ *
+ * CostCache objects are thread safe. Two threads evaluating the same new
+ * vector at the same time may both call the cost function.
+ *
+ */
+public class CostCache implements DECtx.CostFunc {
+    private final DECtx.CostFunc func;
+    private final int capacity;
+    private final ConcurrentHashMap<Key,Double> map;
+    private final ConcurrentLinkedQueue<Key> order =
+        new ConcurrentLinkedQueue<Key>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Key {
+        private final double[] p;
+        private final int hash;
+        Key(double[] p) {
+            this.p = p;
+            this.hash = Arrays.hashCode(p);
+        }
+        public int hashCode() {
+            return hash;
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key k = (Key)o;
+            if (k.hash != hash || k.p.length != p.length)
+            {
+                return false;
+            }
+            for (int i = 0; i < p.length; i++)
+            {
+                if (Double.doubleToRawLongBits(k.p[i]) !=
+                    Double.doubleToRawLongBits(p[i]))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Creates a cache.
+     *
+     * @param func the cost function to cache
+     * @param capacity the maximum number of vectors to remember, 0 to
+     * disable caching
+     */
+    public CostCache(DECtx.CostFunc func, int capacity) {
+        if (capacity < 0)
+        {
+            throw new IllegalArgumentException("negative capacity");
+        }
+        this.func = func;
+        this.capacity = capacity;
+        this.map = new ConcurrentHashMap<Key,Double>(Math.max(16, capacity/4*3));
+    }
+
+    /** Returns the cost of a parameter vector.
+     *
+     * The vector is not modified, and it may be modified after the call.
+     */
+    public double calculate(double[] p) throws Exception {
+        if (capacity == 0)
+        {
+            misses.incrementAndGet();
+            return func.calculate(p);
+        }
+        Key key = new Key(p.clone());
+        Double cached = map.get(key);
+        if (cached != null)
+        {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        double E = func.calculate(p);
+        if (map.putIfAbsent(key, E) == null)
+        {
+            order.add(key);
+            if (size.incrementAndGet() > capacity)
+            {
+                Key oldest = order.poll();
+                if (oldest != null)
+                {
+                    map.remove(oldest);
+                    size.decrementAndGet();
+                }
+            }
+        }
+        return E;
+    }
+
+    /** Forgets all remembered costs.
+     *
+     * Must not be called while costs are being calculated. The hit and miss
+     * counts are kept.
+     */
+    public void clear() {
+        order.clear();
+        map.clear();
+        size.set(0);
+    }
+
+    /** Returns the number of costs returned from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of costs calculated by the cost function. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the fraction of costs returned from the cache.
+     *
+     * @return the hit rate between 0 and 1, or 0 if no costs have been
+     * requested
+     */
+    public double getHitRate() {
+        long h = hits.get(), m = misses.get();
+        return h+m == 0 ? 0 : (double)h/(h+m);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final AtomicLong calls = new AtomicLong();
+        DECtx.CostFunc func = new DECtx.CostFunc() {
+            public double calculate(double[] p) {
+                calls.incrementAndGet();
+                return p[0] + 2*p[1];
+            }
+        };
+
+        /* repeats hit, and the key is a copy of the vector */
+        CostCache c = new CostCache(func, 3);
+        double[] a = {1, 2};
+        assert(c.calculate(a) == 5);
+        a[0] = 3;
+        assert(c.calculate(new double[]{1, 2}) == 5);
+        assert(c.calculate(a) == 7);
+        assert(calls.get() == 2 && c.getHits() == 1 && c.getMisses() == 2);
+        assert(c.getHitRate() == 1.0/3);
+
+        /* the vectors are compared bit by bit */
+        assert(c.calculate(new double[]{0.0, 1}) == 2);
+        assert(c.calculate(new double[]{-0.0, 1}) == 2);
+        assert(calls.get() == 4 && c.getHits() == 1);
+
+        /* the first vector evaluated is evicted first, hits don't count
+           as uses */
+        c = new CostCache(func, 3);
+        calls.set(0);
+        for (int i = 0; i < 4; i++)
+        {
+            c.calculate(new double[]{i, 0});
+        }
+        c.calculate(new double[]{2, 0});
+        c.calculate(new double[]{3, 0});
+        assert(calls.get() == 4 && c.getHits() == 2);
+        c.calculate(new double[]{0, 0});
+        assert(calls.get() == 5);
+        c.calculate(new double[]{1, 0});
+        assert(calls.get() == 6);
+        c.calculate(new double[]{3, 0});
+        assert(calls.get() == 6);
+        assert(c.map.size() == 3 && c.order.size() == 3 && c.size.get() == 3);
+
+        /* clearing forgets the costs but keeps the counts */
+        c.clear();
+        assert(c.map.isEmpty() && c.order.isEmpty() && c.size.get() == 0);
+        c.calculate(new double[]{3, 0});
+        assert(calls.get() == 7 && c.getHits() == 3 && c.getMisses() == 7);
+
+        /* capacity 0 disables caching */
+        c = new CostCache(func, 0);
+        calls.set(0);
+        c.calculate(a);
+        c.calculate(a);
+        assert(calls.get() == 2 && c.getHits() == 0 && c.getHitRate() == 0);
+
+        /* concurrent use stays within the capacity and counts every cost */
+        final CostCache cc = new CostCache(func, 20);
+        calls.set(0);
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < 4; t++)
+        {
+            final long seed = t;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    Random r = new Random(seed);
+                    for (int i = 0; i < 10000; i++)
+                    {
+                        double x = r.nextInt(50);
+                        assert(cc.calculate(new double[]{x, 1}) == x + 2);
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> f: exec.invokeAll(tasks))
+        {
+            f.get();
+        }
+        exec.shutdown();
+        assert(cc.getHits() + cc.getMisses() == 40000);
+        assert(calls.get() == cc.getMisses() && cc.getHits() > 0);
+        assert(cc.map.size() == cc.size.get() && cc.order.size() == cc.size.get());
+        assert(cc.size.get() <= 20);
+    }
+}
@@ -1,7 +1,7 @@
 import Jama.Matrix;
 import java.util.*;
 import java.util.concurrent.*;
-public class DECtx {
+public class DECtx implements PopulationOptimizer {
   public static interface CostFunc {
     public double calculate(double[] p) throws Exception;
   };
@@ -19,7 +19,46 @@ public class DECtx {
   private double[] p_min;
   private double[] p_max;
   private double[] dp;
-  private PopulationIndividual[] pop;
+  /*
+     The population is stored as a structure of arrays: the parameters of
+     individual i are pop[i*nparam] to pop[i*nparam+nparam-1] and its fitting
+     error is E[i]. The individuals stay in their slots, order lists the
+     slots from the best to the worst. The trial population of a generation
+     and the scratch space of the rotation are allocated once, so that a
+     generation allocates next to nothing.
+   */
+  private double[] pop;
+  private double[] E;
+  private int[] order;
+  private double[] trial;
+  private double[] trialE;
+  private double[][] covBuf;
+  private double[] mean;
+  /*
+     The eigenbasis T of the covariance matrix is cached. It is recalculated
+     every eigenInterval generations, or when the covariance matrix has
+     drifted from cov0, the one T was calculated from, by more than
+     eigenDrift in relative Frobenius norm. For the drift test the covariance
+     matrix is kept up to date from the sums sum1 and sum2 of the normalized
+     individuals and their outer products, which only change for the
+     replaced individuals.
+     The sums are taken relative to the mean at the last recalculation,
+     shift, so that they don't lose the small spread of a converged
+     population to cancellation.
+   */
+  private double[][] T;
+  private double[][] cov0;
+  private double[] shift;
+  private double[] sum1;
+  private double[][] sum2;
+  private int age;
+  private int eigenInterval;
+  private double eigenDrift;
+  private boolean eigenConcurrent;
+  private double[] xn;
+  private double[] mn;
+  private double[] y;
+  private double[][] evalBuf;
   private ExecutorService executor_service;
   private boolean reportPerf;
 
@@ -63,125 +102,95 @@ public class DECtx {
   }
 
 
-  private class PopulationIndividual
-    implements Callable<Void>, Comparable<PopulationIndividual>
+  /*
+     The individuals are evaluated in a few contiguous chunks per thread
+     instead of one task per individual, which saves the task overhead
+     of large populations. Each chunk copies the individual to a buffer of
+     its own for the cost function.
+   */
+  private void calculateFittingErrors(final double[] p, final double[] e)
   {
-    private double[] p;
-    private double E;
-    public Void call() throws Exception
-    {
-      this.E = func.calculate(this.p);
-      return null;
-    }
-    public PopulationIndividual deepCopy()
-    {
-      PopulationIndividual i = new PopulationIndividual(p);
-      i.E = this.E;
-      return i;
-    }
-    private PopulationIndividual(double[] p)
-    {
-      this.p = new double[p.length];
-      for (int i=0; i<p.length; i++)
-      {
-        this.p[i] = p[i];
-      }
-    }
-    private PopulationIndividual()
-    {
-      this.p = new double[nparam];
-      for (int j=0; j<nparam; j++)
-      {
-        this.p[j] = p_min[j] + dp[j]*Math.random();
-      }
-    }
-    private int doubleCmp(double a, double b)
-    {
-      if (a > b)
-      {
-        return 1;
-      }
-      if (a < b)
-      {
-        return -1;
-      }
-      return 0;
-    }
-    public int compareTo(PopulationIndividual o)
-    {
-      return doubleCmp(this.E, o.E);
-    }
-  };
-
-  private void calculateFittingErrors()
-  {
-    calculateFittingErrors(pop);
+    calculateFittingErrors(p, e, null);
   }
-  private void calculateFittingErrors(PopulationIndividual[] pop)
+  /* extra is run concurrently with the evaluation if not null */
+  private void calculateFittingErrors(final double[] p, final double[] e,
+                                      Callable<Void> extra)
   {
-    for (;;)
+    int nchunks = ComputeScheduler.chunkCount(executor_service, npop);
+    if (evalBuf == null || evalBuf.length < nchunks)
     {
-      try {
-        ArrayList<Callable<Void>> list = new ArrayList<Callable<Void>>();
-        list.addAll(Arrays.asList(pop));
-        for (Future f: executor_service.invokeAll(list))
+      evalBuf = new double[nchunks][nparam];
+    }
+    ArrayList<Callable<Void>> list = new ArrayList<Callable<Void>>(nchunks);
+    for (int c = 0; c < nchunks; c++)
+    {
+      final int from = (int)((long)npop*c/nchunks);
+      final int to = (int)((long)npop*(c+1)/nchunks);
+      final double[] buf = evalBuf[c];
+      list.add(new Callable<Void>() {
+        public Void call() throws Exception
         {
-          try {
-            f.get();
-          }
-          catch(ExecutionException e)
+          for (int i = from; i < to; i++)
           {
-            // XXX: what to do?
-            throw new RuntimeException(e);
-          }
-          catch(CancellationException e)
-          {
-            // XXX: what to do?
-            throw new RuntimeException(e);
+            System.arraycopy(p, i*nparam, buf, 0, nparam);
+            e[i] = func.calculate(buf);
           }
+          return null;
         }
-        return;
-      }
-      catch (InterruptedException e)
-      {
-      }
+      });
     }
-  }
-
-  private double[][] getRawPop(PopulationIndividual[] pop)
-  {
-    double[][] result = new double[npop][];
-    for (int i=0; i<npop; i++)
+    if (extra != null)
     {
-      result[i] = pop[i].p;
+      list.add(extra);
     }
-    return result;
+    ComputeScheduler.invokeAll(executor_service, list);
   }
-  private double[][] getRawPop()
+
+  private double[] row(int slot)
   {
-    return getRawPop(pop);
+    double[] result = new double[nparam];
+    System.arraycopy(pop, slot*nparam, result, 0, nparam);
+    return result;
   }
-  private double[][] getPop()
+
+  /*
+     Insertion sort of the slots by the fitting error. Between generations
+     only the improved individuals move, so the order is nearly sorted
+     already.
+   */
+  private void sortAll()
   {
-    double[][] result = new double[npop][];
-    for (int i=0; i<npop; i++)
+    for (int i=1; i<npop; i++)
     {
-      result[i] = new double[nparam];
-      for (int j=0; j<nparam; j++)
+      int slot = order[i];
+      double e = E[slot];
+      int k = i;
+      while (k > 0 && E[order[k-1]] > e)
       {
-        result[i][j] = pop[i].p[j];
+        order[k] = order[k-1];
+        k--;
       }
+      order[k] = slot;
     }
-    return result;
   }
 
-  private void sortAll()
+  public DECtx(CostFunc func, double[] p_min, double[] p_max,
+               double[] p, boolean cov_on, boolean traditional_recombination_on,
+               int npop, ExecutorService executor_service,
+               AdvancedFitOptions opts)
   {
-    Arrays.sort(pop);
+    this(func, p_min, p_max, new double[][]{p}, cov_on,
+         traditional_recombination_on, npop, executor_service, opts);
   }
-
+  /*
+     Starts from the individuals of initial, for example the population of
+     an earlier optimization of a similar cost function. The individuals are
+     clamped to the ranges. If there are fewer of them than npop, the rest of
+     the population is random, and extra ones are ignored.
+   */
   public DECtx(CostFunc func, double[] p_min, double[] p_max,
-               double[] p, boolean cov_on, boolean traditional_recombination_on,
+               double[][] initial, boolean cov_on,
+               boolean traditional_recombination_on,
                int npop, ExecutorService executor_service,
                AdvancedFitOptions opts)
   {
@@ -191,6 +200,9 @@ public class DECtx {
     this.cr = opts.cr;
     this.lambda = opts.lambda;
     this.reportPerf = opts.reportPerf;
+    this.eigenInterval = opts.eigenInterval;
+    this.eigenDrift = opts.eigenDrift;
+    this.eigenConcurrent = opts.eigenConcurrent;
     this.cycle = 0;
     this.traditional_recombination_on = traditional_recombination_on;
     this.func = func;
@@ -198,53 +210,233 @@ public class DECtx {
     this.npop = npop;
     this.nparam = p_min.length;
     this.executor_service = executor_service;
-    if (p_max.length != nparam || p.length != nparam)
+    if (p_max.length != nparam || initial.length < 1)
     {
       throw new IllegalArgumentException();
     }
-    if (npop < 1)
+    for (int i=0; i<initial.length; i++)
     {
-      throw new IllegalArgumentException();
+      if (initial[i].length != nparam)
+      {
+        throw new IllegalArgumentException();
+      }
     }
-    this.p_min = new double[nparam];
-    for (int i=0; i<nparam; i++)
+    if (npop < 1)
     {
-      this.p_min[i] = p_min[i];
+      throw new IllegalArgumentException();
     }
-    this.p_max = new double[nparam];
+    this.p_min = p_min.clone();
+    this.p_max = p_max.clone();
     this.dp = new double[nparam];
     for (int i=0; i<nparam; i++)
     {
-      this.p_max[i] = p_max[i];
       this.dp[i] = this.p_max[i] - this.p_min[i];
     }
-    this.pop = new PopulationIndividual[npop];
-    this.pop[0] = new PopulationIndividual(p);
-    for (int i=1; i<npop; i++)
+    this.pop = new double[npop*nparam];
+    this.E = new double[npop];
+    this.order = new int[npop];
+    this.trial = new double[npop*nparam];
+    this.trialE = new double[npop];
+    this.covBuf = new double[nparam][nparam];
+    this.mean = new double[nparam];
+    this.cov0 = new double[nparam][nparam];
+    this.shift = new double[nparam];
+    this.sum1 = new double[nparam];
+    this.sum2 = new double[nparam][nparam];
+    this.xn = new double[nparam];
+    this.mn = new double[nparam];
+    this.y = new double[nparam];
+    for (int i=0; i<npop; i++)
     {
-      this.pop[i] = new PopulationIndividual();
+      order[i] = i;
+      for (int j=0; j<nparam; j++)
+      {
+        if (i < initial.length)
+        {
+          pop[i*nparam+j] = Math.max(this.p_min[j],
+                                     Math.min(this.p_max[j], initial[i][j]));
+        }
+        else
+        {
+          pop[i*nparam+j] = this.p_min[j] + dp[j]*Math.random();
+        }
+      }
     }
-    calculateFittingErrors();
+    calculateFittingErrors(pop, E);
     sortAll();
   }
+  /* every cost has been calculated when iteration() returns */
+  public void finishEvaluations()
+  {
+  }
+  /*
+     Needed when the cost function changes during the optimization, so that
+     the old fitting errors are not compared with new ones.
+   */
+  public void recalculateFittingErrors()
+  {
+    calculateFittingErrors(pop, E);
+    sortAll();
+  }
+  /*
+     Recalculates the sums from the population and the eigenbasis from them.
+   */
+  private void refresh()
+  {
+    /*
+       Normalize parameters to range [0,1]. Due to the simplicity of DE,
+       normalization is not normally necessary. In order to calculate the
+       covariance matrix accurately, the parameters must not differ by too
+       many orders of magnitude, so in this case we have to normalize the
+       parameters.
+     */
+    Arrays.fill(mean, 0);
+    for (int i=0; i<npop; i++)
+    {
+      normalize(pop, i*nparam, xn);
+      for (int j=0; j<nparam; j++)
+      {
+        mean[j] += xn[j];
+      }
+    }
+    for (int j=0; j<nparam; j++)
+    {
+      shift[j] = mean[j] / npop;
+      sum1[j] = 0;
+      Arrays.fill(sum2[j], 0);
+    }
+    for (int i=0; i<npop; i++)
+    {
+      normalize(pop, i*nparam, xn);
+      addToSums(xn, 1);
+    }
+    covariance(cov0);
+    for (int j=0; j<nparam; j++)
+    {
+      System.arraycopy(cov0[j], 0, covBuf[j], 0, nparam);
+    }
+    T = new Matrix(covBuf, nparam, nparam).eig().getV().getArray();
+    age = 0;
+  }
+  /* adds the normalized individual x with the weight 1 or -1 to the sums */
+  private void addToSums(double[] x, double weight)
+  {
+    for (int j=0; j<nparam; j++)
+    {
+      double dj = weight*(x[j] - shift[j]);
+      sum1[j] += dj;
+      for (int k=0; k<=j; k++)
+      {
+        sum2[j][k] += dj*(x[k] - shift[k]);
+      }
+    }
+  }
+  /* Calculates the covariance matrix from the sums into c. */
+  private void covariance(double[][] c)
+  {
+    for (int j=0; j<nparam; j++)
+    {
+      for (int k=0; k<=j; k++)
+      {
+        // the matrix is symmetric
+        c[j][k] = (sum2[j][k] - sum1[j]*sum1[k]/npop) / (npop-1);
+        c[k][j] = c[j][k];
+      }
+    }
+  }
+  /*
+     Whether the sums are kept up to date between the recalculations. Only
+     the drift test reads them, refresh() calculates them anew.
+   */
+  private boolean incremental()
+  {
+    return T != null && eigenInterval > 1 && eigenDrift > 0;
+  }
+  /* Replaces the individual in the slot by x and updates the sums. */
+  private void replace(int slot, double[] x, int off, double e)
+  {
+    if (incremental())
+    {
+      normalize(pop, slot*nparam, xn);
+      addToSums(xn, -1);
+      normalize(x, off, xn);
+      addToSums(xn, 1);
+    }
+    System.arraycopy(x, off, pop, slot*nparam, nparam);
+    E[slot] = e;
+  }
+  /* Tests whether the eigenbasis needs to be recalculated. */
+  private boolean eigenbasisDue()
+  {
+    if (T == null || age >= eigenInterval)
+    {
+      return true;
+    }
+    if (eigenDrift <= 0)
+    {
+      return false;
+    }
+    covariance(covBuf);
+    double diff = 0, norm = 0;
+    for (int j=0; j<nparam; j++)
+    {
+      for (int k=0; k<nparam; k++)
+      {
+        double d = covBuf[j][k] - cov0[j][k];
+        diff += d*d;
+        norm += cov0[j][k]*cov0[j][k];
+      }
+    }
+    return diff > eigenDrift*eigenDrift*norm;
+  }
+  private void normalize(double[] src, int off, double[] dst)
+  {
+    for (int j=0; j<nparam; j++)
+    {
+      dst[j] = dp[j] != 0 ? (src[off+j]-p_min[j]) / dp[j] : 0;
+    }
+  }
   public void iteration()
   {
     Random r = new Random();
-    Matrix T = null;
-    double[][] mm = new double[npop][];
-    double[] b = pop[0].p;
-    PopulationIndividual[] pop2 = new PopulationIndividual[npop];
+    int b = order[0]*nparam;
+    // nothing to rotate if all parameters are fixed
+    boolean rotate = cov_on && nparam > 0;
+    Callable<Void> concurrentRefresh = null;
+    if (rotate && eigenbasisDue())
+    {
+      /*
+         The first eigenbasis is always calculated before the first
+         generation. Later ones may be calculated while the trial population
+         is evaluated, and are then used from the next generation on.
+       */
+      if (eigenConcurrent && T != null)
+      {
+        concurrentRefresh = new Callable<Void>() {
+          public Void call()
+          {
+            refresh();
+            return null;
+          }
+        };
+      }
+      else
+      {
+        refresh();
+      }
+    }
+    double[][] T = rotate ? this.T : null;
     for (int i=0; i<npop; i++)
     {
-      double[] pa = pop[r.nextInt(npop)].p;
-      double[] pb = pop[r.nextInt(npop)].p;
-      double[] pc = pop[r.nextInt(npop)].p;
+      int a = r.nextInt(npop)*nparam;
+      int bb = r.nextInt(npop)*nparam;
+      int c = r.nextInt(npop)*nparam;
+      int t = i*nparam;
       boolean mutate;
-      mm[i] = new double[nparam];
       // calculate the individual to mutate
       for (int j=0; j<nparam; j++)
       {
-        mm[i][j] = pc[j] + (b[j] - pc[j])*lambda;
+        trial[t+j] = pop[c+j] + (pop[b+j] - pop[c+j])*lambda;
       }
       // mutate the best individual by sampled differences scaled
       // by the mutation constant
@@ -254,197 +446,156 @@ public class DECtx {
       }
       else
       {
-        mutate = Math.random() < pm;
+        mutate = r.nextDouble() < pm;
       }
       if (mutate)
       {
         for (int j=0; j<nparam; j++)
         {
-          mm[i][j] = mm[i][j] + km*(pa[j] - pb[j]);
+          trial[t+j] += km*(pop[a+j] - pop[bb+j]);
         }
       }
       else
       {
         for (int j=0; j<nparam; j++)
         {
-          mm[i][j] = mm[i][j] + kr*(pa[j] + pb[j] - 2*mm[i][j]);
+          trial[t+j] += kr*(pop[a+j] + pop[bb+j] - 2*trial[t+j]);
         }
       }
-    }
-    if (cov_on)
-    {
-      for (int i=0; i<npop; i++)
+      /*
+         The crossover operator chooses each parameter randomly from the old
+         population and bm. The crossover constant cr is used as weight.
+         Higher crossover constant means higher probability of getting a
+         parameter from the mutated individual. With cov_on, the crossover
+         is done in the eigenbasis of the covariance matrix of the
+         normalized population. Without the traditional recombination the
+         mutated individual is the trial vector as it is.
+       */
+      if (traditional_recombination_on && T != null)
       {
-        double[] p = pop[i].p;
-        /*
-           Normalize parameters to range [0,1]. Due to the simplicity of DE,
-           normalization is not normally necessary. In order to calculate the
-           covariance matrix accurately, the parameters must not differ by too
-           many orders of magnitude, so in this case we have to normalize the
-           parameters.
-         */
-        for (int j=0; j<nparam; j++)
+        normalize(pop, t, xn);
+        normalize(trial, t, mn);
+        for (int k=0; k<nparam; k++)
         {
-          if (dp[j] != 0)
-          {
-            p[j] = (p[j]-p_min[j]) / dp[j];
-            mm[i][j] = (mm[i][j]-p_min[j]) / dp[j];
-          }
-          else
+          double sx = 0, sm = 0;
+          for (int j=0; j<nparam; j++)
           {
-            p[j] = 0;
-            mm[i][j] = 0;
+            sx += xn[j]*T[j][k];
+            sm += mn[j]*T[j][k];
           }
+          y[k] = r.nextDouble() < cr ? sm : sx;
         }
-      }
-      Matrix popm = new Matrix(getRawPop());
-      Matrix mmm = new Matrix(mm);
-      Matrix covm = cov(popm);
-      T = covm.eig().getV();
-      popm = popm.times(T);
-      mmm = mmm.times(T);
-      for (int i=0; i<npop; i++)
-      {
-        pop[i].p = popm.getArray()[i];
-        mm[i] = mmm.getArray()[i];
-      }
-    }
-    /*
-       The crossover operator chooses each parameter randomly from the old
-       population and bm. The crossover constant cr is used as weight.
-       Higher crossover constant means higher probability of getting a parameter
-       from the mutated individual.
-     */
-    if (traditional_recombination_on)
-    {
-      for (int i=0; i<npop; i++)
-      {
-        double[] p = pop[i].p;
-        pop2[i] = new PopulationIndividual(p);
-        double[] p2 = pop2[i].p;
+        // Rotate the coordinates back and denormalize them
         for (int j=0; j<nparam; j++)
         {
-          if (r.nextDouble() < cr)
+          double sum = 0;
+          double[] Tj = T[j];
+          for (int k=0; k<nparam; k++)
           {
-            p2[j] = mm[i][j];
+            sum += y[k]*Tj[k];
           }
+          trial[t+j] = p_min[j] + sum*dp[j];
         }
       }
-    }
-    else
-    {
-      for (int i=0; i<npop; i++)
-      {
-        double[] p = pop[i].p;
-        pop2[i] = new PopulationIndividual(p);
-        double[] p2 = pop2[i].p;
-        for (int j=0; j<nparam; j++)
-        {
-          p2[j] = mm[i][j];
-        }
-      }
-    }
-    if (cov_on)
-    {
-      // Rotate the coordinates back and denormalize them
-      Matrix popm = new Matrix(getRawPop());
-      Matrix pop2m = new Matrix(getRawPop(pop2));
-      popm = popm.times(T.transpose());
-      pop2m = pop2m.times(T.transpose());
-      for (int i=0; i<npop; i++)
+      else if (traditional_recombination_on)
       {
-        pop[i].p = popm.getArray()[i];
-        pop2[i].p = pop2m.getArray()[i];
-        double[] p = pop[i].p;
-        double[] p2 = pop2[i].p;
         for (int j=0; j<nparam; j++)
         {
-          p[j] = p_min[j] + p[j]*dp[j];
-          p2[j] = p_min[j] + p2[j]*dp[j];
+          if (!(r.nextDouble() < cr))
+          {
+            trial[t+j] = pop[t+j];
+          }
         }
       }
-    }
-    // replace all the parameters that are outside the limits by random values
-    for (int i=0; i<npop; i++)
-    {
-      double[] p2 = pop2[i].p;
+      // replace all the parameters that are outside the limits by random values
       for (int j=0; j<nparam; j++)
       {
-        if (p2[j] < p_min[j] || p2[j] > p_max[j])
+        if (trial[t+j] < p_min[j] || trial[t+j] > p_max[j])
         {
-          p2[j] = p_min[j] + dp[j]*r.nextDouble();
+          trial[t+j] = p_min[j] + dp[j]*r.nextDouble();
         }
       }
     }
     // evaluate fitnesses for new trial population
-    calculateFittingErrors(pop2);
+    calculateFittingErrors(trial, trialE, concurrentRefresh);
     // new population: each individual is compared to it's child and the best
     // is selected
     for (int i=0; i<npop; i++)
     {
-      if (pop2[i].E < pop[i].E)
+      if (trialE[i] < E[i])
       {
-        pop[i] = pop2[i];
+        replace(i, trial, i*nparam, trialE[i]);
       }
     }
     // sort by fitness
     sortAll();
+    age += 1;
     cycle += 1;
   }
-  private PopulationIndividual worst()
-  {
-    return pop[npop-1];
-  }
-  private PopulationIndividual median()
-  {
-    return pop[npop/2];
-  }
-  private PopulationIndividual best()
-  {
-    return pop[0];
-  }
   public double worstFittingError()
   {
-    return worst().E;
+    return E[order[npop-1]];
   }
   public double medianFittingError()
   {
-    return median().E;
+    return E[order[npop/2]];
   }
   public double bestFittingError()
   {
-    return best().E;
+    return E[order[0]];
   }
   public double[] medianIndividual()
   {
-    double[] p = median().p;
-    double[] result = new double[nparam];
-    for (int i=0; i<nparam; i++)
+    return row(order[npop/2]);
+  }
+  /* the individuals sorted from the best to the worst */
+  public double[][] population()
+  {
+    double[][] result = new double[npop][];
+    for (int i=0; i<npop; i++)
     {
-      result[i] = p[i];
+      result[i] = row(order[i]);
     }
     return result;
   }
-  public double[] bestIndividual()
+  public double[] fittingErrors()
   {
-    double[] p = best().p;
-    double[] result = new double[nparam];
-    for (int i=0; i<nparam; i++)
+    double[] result = new double[npop];
+    for (int i=0; i<npop; i++)
     {
-      result[i] = p[i];
+      result[i] = E[order[i]];
     }
     return result;
   }
+  /*
+     Replaces the worst individual by p, whose fitting error E has been
+     calculated with the same cost function, if p is better. Used for
+     migration between the islands of IslandDECtx.
+   */
+  public void immigrate(double[] p, double E)
+  {
+    if (p.length != nparam)
+    {
+      throw new IllegalArgumentException();
+    }
+    int worst = order[npop-1];
+    if (!(E < this.E[worst]))
+    {
+      return;
+    }
+    replace(worst, p, 0, E);
+    sortAll();
+  }
+  public double[] bestIndividual()
+  {
+    return row(order[0]);
+  }
   public static void main(String[] args)
   {
     double[] p_min = {-10, -10};
     double[] p_max = {10, 10};
     double[] p = {10, 10};
-    int cpus = Runtime.getRuntime().availableProcessors();
-    ThreadPoolExecutor exec =
-      new ThreadPoolExecutor(cpus, cpus,
-                             1, TimeUnit.SECONDS,
-                             new LinkedBlockingQueue<Runnable>());
+    ExecutorService exec = ComputeScheduler.pool();
     CostFunc func = new CostFunc() {
       public double calculate(double[] p)
       {
@@ -467,6 +618,5 @@ public class DECtx {
       System.out.println("best " + ctx.bestFittingError() +
                          ", median " + ctx.medianFittingError());
     }
-    exec.shutdown();
   }
 };
@@ -0,0 +1,180 @@
+/** FFT-based convolution with an odd filter.
+ *
+ * <p>
+ *
+ * This class implements the same symmetric convolution as the direct FIR
+ * filter of XRRSimul, but in O(L log L) time where L is the smallest power of
+ * two of at least n+filter.length-1. The transform of the zero-padded filter
+ * is calculated once in the constructor, so a convolver should be cached and
+ * reused for all signals of the same length.
+ *
+ * <p>
+ *
+ * The direct convolution is faster for short filters. The method useFFT
+ * tells which one to use.
+ *
+ * <p>
+ *
+ * The rounding error of the FFT is relative to the largest value of the
+ * signal, not to each individual value. With reflectivity curves spanning
+ * ten orders of magnitude, this still leaves the smallest values accurate
+ * to many significant figures.
+ *
+ * <p>
+ *
+ * FFTConvolver objects are immutable and may be shared by multiple threads.
+ * The scratch arrays are supplied by the caller.
+ *
+ */
+public class FFTConvolver {
+    /* filters shorter than this are always applied directly */
+    private static final int MIN_TAPS = 32;
+
+    private final int n;
+    private final int filterside;
+    private final int size;
+    private final int[] bitrev;
+    private final double[] cosTable, sinTable;
+    private final double[] filterRe, filterIm;
+
+    /** Tests whether FFT convolution is faster than direct convolution.
+     *
+     * @param n the number of data points
+     * @param taps the length of the filter
+     * @return true if the FFT convolution should be used
+     */
+    public static boolean useFFT(int n, int taps) {
+        if (taps < MIN_TAPS)
+        {
+            return false;
+        }
+        int size = fftSize(n + taps - 1);
+        int log2 = Integer.numberOfTrailingZeros(size);
+        /* two transforms of size/2*log2 butterflies against one
+           multiply-add per tap and data point; a butterfly costs about
+           1.5 times as much as a multiply-add in the direct loop */
+        return 1.5*size*log2 < (double)n*taps;
+    }
+
+    /** Returns the smallest power of two that is at least n. */
+    static int fftSize(int n) {
+        int size = 1;
+        while (size < n)
+        {
+            size *= 2;
+        }
+        return size;
+    }
+
+    /** Creates a convolver for an odd filter and a signal length.
+     *
+     * @param filter the odd filter
+     * @param n the number of data points in the signals to filter
+     */
+    public FFTConvolver(double[] filter, int n) {
+        if ((filter.length-1)%2 != 0)
+        {
+            throw new IllegalArgumentException("filter length must be odd");
+        }
+        this.n = n;
+        this.filterside = (filter.length-1)/2;
+        this.size = fftSize(n + filter.length - 1);
+        this.bitrev = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++)
+        {
+            bitrev[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        this.cosTable = new double[size/2];
+        this.sinTable = new double[size/2];
+        for (int i = 0; i < size/2; i++)
+        {
+            cosTable[i] = Math.cos(2*Math.PI*i/size);
+            sinTable[i] = Math.sin(2*Math.PI*i/size);
+        }
+        this.filterRe = new double[size];
+        this.filterIm = new double[size];
+        System.arraycopy(filter, 0, filterRe, 0, filter.length);
+        transform(filterRe, filterIm, false);
+    }
+
+    /** Returns the size of the scratch arrays needed by apply. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the number of data points this convolver was made for. */
+    public int getLength() {
+        return n;
+    }
+
+    /** Applies the filter.
+     *
+     * The result is identical, apart from rounding errors, to the direct
+     * symmetric convolution of XRRSimul: result[i] is the sum of
+     * data[i+filterside-j]*filter[j] over valid indices.
+     *
+     * @param data the signal, of which the first getLength() values are used
+     * @param result the array for the first getLength() filtered values
+     * @param re scratch array of at least getSize() elements
+     * @param im scratch array of at least getSize() elements
+     */
+    public void apply(double[] data, double[] result, double[] re, double[] im) {
+        System.arraycopy(data, 0, re, 0, n);
+        for (int i = n; i < size; i++)
+        {
+            re[i] = 0;
+        }
+        for (int i = 0; i < size; i++)
+        {
+            im[i] = 0;
+        }
+        transform(re, im, false);
+        for (int i = 0; i < size; i++)
+        {
+            double a = re[i], b = im[i];
+            re[i] = a*filterRe[i] - b*filterIm[i];
+            im[i] = a*filterIm[i] + b*filterRe[i];
+        }
+        transform(re, im, true);
+        for (int i = 0; i < n; i++)
+        {
+            result[i] = re[i+filterside]/size;
+        }
+    }
+
+    /* In-place iterative radix-2 transform. The inverse transform is not
+     * scaled. */
+    private void transform(double[] re, double[] im, boolean inverse) {
+        double sign = inverse ? 1 : -1;
+        for (int i = 0; i < size; i++)
+        {
+            int j = bitrev[i];
+            if (j > i)
+            {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+        for (int len = 2; len <= size; len *= 2)
+        {
+            int half = len/2;
+            int step = size/len;
+            for (int i = 0; i < size; i += len)
+            {
+                for (int k = 0; k < half; k++)
+                {
+                    double wr = cosTable[k*step];
+                    double wi = sign*sinTable[k*step];
+                    int a = i+k, b = i+k+half;
+                    double tr = re[b]*wr - im[b]*wi;
+                    double ti = re[b]*wi + im[b]*wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
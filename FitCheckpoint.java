@@ -0,0 +1,453 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A checkpoint of a running fit.
+ *
+ * <p>
+ *
+ * A fit of a large model may run for hours, and its state lives only in
+ * memory. A checkpoint saves the state of the fit in a file in the fencode
+ * format of Fcode, so that the fit can be resumed if the program is closed
+ * or crashes.
+ *
+ * <p>
+ *
+ * The checkpoint contains the fitted layer model, the fitting settings and
+ * the population of the optimizer as full parameter vectors, best first.
+ * Differential evolution has no state besides its population, so a resumed
+ * DE fit continues where it was, except that the fitting errors of the
+ * population are calculated once more. The distribution of CMA-ES is
+ * estimated anew from the population, which costs a few generations.
+ * Decimation of the angles and the single precision kernel are not used
+ * after resuming.
+ *
+ * <p>
+ *
+ * A fit can only be resumed with the same layer model, i.e. the same
+ * layers, compounds, repeat block, fitted values and ranges, the same
+ * measurement, which is checked by comparing its angles and every measured
+ * point, and the same fitting error function, as the fitting errors of the
+ * population are not comparable otherwise.
+ *
+ */
+public class FitCheckpoint {
+    private static final int VERSION = 3;
+    private final LayerStack stack;
+    private final Algorithm algo;
+    private final int popsize;
+    private final FitnessFunction func;
+    private final double dBthreshold;
+    private final int pNorm;
+    private final int round;
+    private final boolean refining;
+    private final double[][] population;
+    private final double bestFittingError;
+    private final double[] meas;
+    private final double firstAngle, lastAngle;
+
+    private FitCheckpoint(LayerStack stack, Algorithm algo, int popsize,
+                          FitnessFunction func, double dBthreshold, int pNorm,
+                          int round, boolean refining, double[][] population,
+                          double bestFittingError, double[] meas,
+                          double firstAngle, double lastAngle) {
+        this.stack = stack;
+        this.algo = algo;
+        this.popsize = popsize;
+        this.func = func;
+        this.dBthreshold = dBthreshold;
+        this.pNorm = pNorm;
+        this.round = round;
+        this.refining = refining;
+        this.population = population;
+        this.bestFittingError = bestFittingError;
+        this.meas = meas;
+        this.firstAngle = firstAngle;
+        this.lastAngle = lastAngle;
+    }
+
+    /** Takes a checkpoint of a fit.
+     *
+     * @param stack the layer model being fitted
+     * @param data the measurement the model is fitted to, normalized,
+     * linear and cropped to the fitted range like in JavaFitter
+     * @param algo the fitting algorithm
+     * @param popsize the population size setting of the fit
+     * @param func the fitting error function of the fit
+     * @param dBthreshold the threshold the function was created with
+     * @param pNorm the p-norm the function was created with
+     * @param round the number of iterations done
+     * @param ctx the fit
+     */
+    public FitCheckpoint(LayerStack stack, GraphData data, Algorithm algo,
+                         int popsize, FitnessFunction func, double dBthreshold,
+                         int pNorm, int round, XRRFittingCtx ctx) {
+        this(stack.deepCopy(), algo, popsize, func, dBthreshold, pNorm,
+             round, ctx.refining(),
+             ctx.population(), ctx.bestFittingError(), data.meas.clone(),
+             data.alpha_0[0], data.alpha_0[data.alpha_0.length-1]);
+        this.stack.setFitValues(population[0]);
+    }
+
+    /** Tests whether the fit can be resumed with a layer model, a
+     * measurement and a fitting error function.
+     *
+     * The threshold and the p-norm are compared only if the function
+     * depends on them.
+     *
+     * @param stack the layer model
+     * @param data the measurement, processed like in the constructor
+     * @param func the fitting error function
+     * @param dBthreshold the threshold of the function
+     * @param pNorm the p-norm of the function
+     */
+    public boolean matches(LayerStack stack, GraphData data,
+                           FitnessFunction func, double dBthreshold, int pNorm) {
+        return func == this.func
+               && (!func.usesThreshold() || dBthreshold == this.dBthreshold)
+               && (!func.usesPNorm() || pNorm == this.pNorm)
+               && data.alpha_0.length == meas.length
+               && data.alpha_0[0] == firstAngle
+               && data.alpha_0[meas.length-1] == lastAngle
+               && Arrays.equals(data.meas, meas)
+               && sameStructure(stack, this.stack)
+               && Arrays.equals(stack.getFitValuesForFitting(FitValue.FitValueType.MIN),
+                                this.stack.getFitValuesForFitting(FitValue.FitValueType.MIN))
+               && Arrays.equals(stack.getFitValuesForFitting(FitValue.FitValueType.MAX),
+                                this.stack.getFitValuesForFitting(FitValue.FitValueType.MAX));
+    }
+
+    /* Compares everything but the fitted values of two layer models. */
+    private static boolean sameStructure(LayerStack s1, LayerStack s2) {
+        if (   s1.getLambda() != s2.getLambda()
+            || s1.getSize() != s2.getSize()
+            || s1.getRepeatFirst() != s2.getRepeatFirst()
+            || s1.getRepeatLast() != s2.getRepeatLast()
+            || s1.getRepeatCount() != s2.getRepeatCount()
+            || s1.getStdDev().getExpected() != s2.getStdDev().getExpected())
+        {
+            return false;
+        }
+        for (int i = 0; i < s1.getSize(); i++)
+        {
+            Layer l1 = s1.getElementAt(i), l2 = s2.getElementAt(i);
+            if (   !l1.getCompound1().equals(l2.getCompound1())
+                || !l1.getCompound2().equals(l2.getCompound2())
+                || l1.getF() != l2.getF())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Creates a fit that continues from this checkpoint.
+     *
+     * @param data the measurement, which must match the checkpoint
+     * @param func the fitting error function, which must match the
+     * checkpoint
+     * @param dBthreshold the threshold of the function
+     * @param pNorm the p-norm of the function
+     * @param exec the executor service of the fit
+     * @param opts the fitting options
+     * @throws IllegalArgumentException if the measurement or the fitting
+     * error function doesn't match
+     */
+    public XRRFittingCtx resume(GraphData data, FitnessFunction func,
+                                double dBthreshold, int pNorm,
+                                ExecutorService exec, AdvancedFitOptions opts) {
+        if (!matches(stack, data, func, dBthreshold, pNorm))
+        {
+            throw new IllegalArgumentException("the measurement or the fitting error function doesn't match the checkpoint");
+        }
+        XRRFittingCtx ctx = new XRRFittingCtx(stack, data, algo.covariance(),
+                                              algo.traditionalRecombination(),
+                                              algo.localRefinement(),
+                                              algo.asynchronous(), algo.cmaes(),
+                                              popsize,
+                                              func.create(dBthreshold, pNorm),
+                                              exec, opts, population);
+        if (!refining)
+        {
+            /* the local refinement hadn't started, so wait for DE as usual */
+            ctx.deferRefinement();
+        }
+        return ctx;
+    }
+
+    /** Returns a copy of the layer model with the best values so far. */
+    public LayerStack getStack() {
+        return stack.deepCopy();
+    }
+    public Algorithm getAlgorithm() {
+        return algo;
+    }
+    public int getPopsize() {
+        return popsize;
+    }
+    public FitnessFunction getFitnessFunction() {
+        return func;
+    }
+    public double getThreshold() {
+        return dBthreshold;
+    }
+    public int getPNorm() {
+        return pNorm;
+    }
+    /** Returns the number of iterations done before the checkpoint. */
+    public int getRound() {
+        return round;
+    }
+    public double getBestFittingError() {
+        return bestFittingError;
+    }
+
+    /** Exports the checkpoint to its fencodeable structure representation. */
+    public Object structExport() {
+        Map<String,Object> m = new HashMap<String,Object>();
+        ArrayList<Object> pop = new ArrayList<Object>();
+        for (double[] p: population)
+        {
+            pop.add(list(p));
+        }
+        m.put("version", VERSION);
+        m.put("stack", stack.structExport(null));
+        m.put("algorithm", algo.toString());
+        m.put("popsize", popsize);
+        m.put("fitnessFunction", func.name());
+        m.put("threshold", dBthreshold);
+        m.put("pNorm", pNorm);
+        m.put("round", round);
+        m.put("refining", refining ? 1 : 0);
+        m.put("population", pop);
+        m.put("bestFittingError", bestFittingError);
+        m.put("meas", list(meas));
+        m.put("firstAngle", firstAngle);
+        m.put("lastAngle", lastAngle);
+        return m;
+    }
+
+    /* Converts an array to a fencodeable list. */
+    private static ArrayList<Object> list(double[] a) {
+        ArrayList<Object> l = new ArrayList<Object>();
+        for (double d: a)
+        {
+            l.add(d);
+        }
+        return l;
+    }
+
+    /* Converts a list of n floating point numbers back to an array. */
+    private static double[] array(Object o, int n) throws InvalidStructException {
+        if (!(o instanceof ArrayList) || ((ArrayList<?>)o).size() != n)
+        {
+            throw new InvalidStructException();
+        }
+        ArrayList<?> l = (ArrayList<?>)o;
+        double[] a = new double[n];
+        for (int j = 0; j < n; j++)
+        {
+            if (!(l.get(j) instanceof Double))
+            {
+                throw new InvalidStructException();
+            }
+            a[j] = (Double)l.get(j);
+        }
+        return a;
+    }
+
+    private static Object get(Map<?,?> m, String key, Class<?> c) throws InvalidStructException {
+        Object o = m.get(key);
+        if (o == null || !c.isInstance(o))
+        {
+            throw new InvalidStructException();
+        }
+        return o;
+    }
+
+    /** Imports a checkpoint from its structure representation.
+     *
+     * @param o the structure representation
+     * @param table the lookup table of the layer model
+     * @throws InvalidStructException the structure does not represent a
+     * checkpoint of this version
+     * @throws ElementNotFound an element was not found in the lookup table
+     */
+    public static FitCheckpoint structImport(Object o, LookupTable table) throws InvalidStructException, ElementNotFound {
+        if (!(o instanceof Map))
+        {
+            throw new InvalidStructException();
+        }
+        Map<?,?> m = (Map<?,?>)o;
+        if ((Integer)get(m, "version", Integer.class) != VERSION)
+        {
+            throw new InvalidStructException("Unsupported checkpoint version");
+        }
+        LayerStack stack = LayerStack.structImport(get(m, "stack", Map.class), table);
+        String name = (String)get(m, "algorithm", String.class);
+        Algorithm algo = null;
+        for (Algorithm a: Algorithm.values())
+        {
+            if (a.toString().equals(name))
+            {
+                algo = a;
+            }
+        }
+        if (algo == null)
+        {
+            throw new InvalidStructException("Unknown algorithm " + name);
+        }
+        FitnessFunction func;
+        try {
+            func = FitnessFunction.valueOf((String)get(m, "fitnessFunction", String.class));
+        }
+        catch(IllegalArgumentException ex) {
+            throw new InvalidStructException("Unknown fitting error function");
+        }
+        int nparam = stack.getFitValuesForFitting(FitValue.FitValueType.EXPECTED).length;
+        ArrayList<?> pop = (ArrayList<?>)get(m, "population", ArrayList.class);
+        if (pop.isEmpty())
+        {
+            throw new InvalidStructException();
+        }
+        double[][] population = new double[pop.size()][];
+        for (int i = 0; i < population.length; i++)
+        {
+            population[i] = array(pop.get(i), nparam);
+        }
+        int pNorm = (Integer)get(m, "pNorm", Integer.class);
+        if (pNorm < 1)
+        {
+            throw new InvalidStructException();
+        }
+        ArrayList<?> measList = (ArrayList<?>)get(m, "meas", ArrayList.class);
+        if (measList.size() < 2)
+        {
+            throw new InvalidStructException();
+        }
+        double[] meas = array(measList, measList.size());
+        return new FitCheckpoint(stack, algo,
+                                 (Integer)get(m, "popsize", Integer.class),
+                                 func,
+                                 (Double)get(m, "threshold", Double.class),
+                                 pNorm,
+                                 (Integer)get(m, "round", Integer.class),
+                                 (Integer)get(m, "refining", Integer.class) != 0,
+                                 population,
+                                 (Double)get(m, "bestFittingError", Double.class),
+                                 meas,
+                                 (Double)get(m, "firstAngle", Double.class),
+                                 (Double)get(m, "lastAngle", Double.class));
+    }
+
+    /** Saves the checkpoint.
+     *
+     * The checkpoint is first written to a temporary file, which then
+     * replaces the file, so that a crash while saving doesn't destroy the
+     * previous checkpoint.
+     */
+    public void save(File f) throws IOException, FencException {
+        File tmp = new File(f.getPath() + ".tmp");
+        OutputStream str = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            Fcode.fencode(structExport(), str);
+        }
+        finally {
+            str.close();
+        }
+        if (!tmp.renameTo(f))
+        {
+            /* renaming doesn't replace an existing file on all platforms */
+            if (!f.delete() || !tmp.renameTo(f))
+            {
+                throw new IOException("can't replace " + f);
+            }
+        }
+    }
+
+    /** Loads a checkpoint saved by save. */
+    public static FitCheckpoint load(File f, LookupTable table)
+            throws IOException, FdecException, InvalidStructException, ElementNotFound {
+        InputStream str = new FileInputStream(f);
+        try {
+            return structImport(Fcode.fdecode(str, true), table);
+        }
+        finally {
+            str.close();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        LookupTable table = new XRRFittingCtx.TestLookup();
+        final double lambda = 1.5405600e-10; /* Cu K_alpha */
+        LayerStack stack = new LayerStack(lambda, table);
+        stack.add(new Layer("Substrate", new FitValue(0,0,0),
+                  new FitValue(2.26e3,2.33e3,2.4e3), new FitValue(0,0.3e-9,1e-9),
+                  new ChemicalFormula("Si"),new ChemicalFormula("Si"),0,table,lambda));
+        stack.add(new Layer("Native oxide", new FitValue(1e-9,2e-9,3e-9),
+                  new FitValue(1e3,2.5e3,4e3), new FitValue(0,0.4e-9,1e-9),
+                  new ChemicalFormula("Si"),new ChemicalFormula("O"),2.0/3,table,lambda));
+        stack.add(new Layer("Film", new FitValue(40e-9,50e-9,60e-9),
+                  new FitValue(3e3,3.9e3,4e3), new FitValue(0,0.5e-9,1e-9),
+                  new ChemicalFormula("Al"),new ChemicalFormula("O"),3/5.0,table,lambda));
+
+        double[] alpha_0 = new double[500];
+        for (int i = 0; i < alpha_0.length; i++)
+        {
+            alpha_0[i] = 0.05 + 4.0*i/alpha_0.length;
+        }
+        double[] simul = new GraphData(alpha_0, new double[alpha_0.length],
+                                       new double[alpha_0.length]).simulate(stack).simul;
+        GraphData data = new GraphData(alpha_0, simul, simul, false).normalize(stack).convertToLinear();
+        AdvancedFitOptions opts = new AdvancedFitOptions();
+        XRRFittingCtx ctx = new XRRFittingCtx(stack, data, true, true, 20,
+                                              FitnessFunction.logfitness.create(-30, 2),
+                                              ComputeScheduler.sequential(), opts);
+        for (int i = 0; i < 5; i++)
+        {
+            ctx.iteration();
+        }
+        FitCheckpoint c = new FitCheckpoint(stack, data, Algorithm.JavaCovDE, 20,
+                                            FitnessFunction.logfitness, -30, 2, 5, ctx);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Fcode.fencode(c.structExport(), stream);
+        InputStream is = new ByteArrayInputStream(stream.toByteArray());
+        FitCheckpoint c2 = structImport(Fcode.fdecode(is, true), table);
+        assert(c2.structExport().equals(c.structExport()));
+        assert(c2.getAlgorithm() == Algorithm.JavaCovDE && c2.getPopsize() == 20);
+        assert(c2.getRound() == 5);
+        assert(c2.getFitnessFunction() == FitnessFunction.logfitness);
+        assert(c2.getThreshold() == -30 && c2.getPNorm() == 2);
+        assert(c2.getBestFittingError() == ctx.bestFittingError());
+        assert(Arrays.equals(c2.getStack().getFitValuesForFitting(FitValue.FitValueType.EXPECTED),
+                             ctx.bestIndividual()));
+
+        /* the threshold doesn't matter for the logarithmic p-norm */
+        assert(c2.matches(stack, data, FitnessFunction.logfitness, -30, 2));
+        assert(c2.matches(stack, data, FitnessFunction.logfitness, -20, 2));
+        assert(!c2.matches(stack, data, FitnessFunction.logfitness, -30, 1));
+        assert(!c2.matches(stack, data, FitnessFunction.sqrtfitness, -30, 2));
+        assert(!c2.matches(stack, data.crop(0.1, 4), FitnessFunction.logfitness, -30, 2));
+
+        /* another measurement on the same angles */
+        double[] meas2 = data.meas.clone();
+        meas2[100] *= 1.01;
+        GraphData data2 = new GraphData(alpha_0, meas2, data.simul, false);
+        assert(!c2.matches(stack, data2, FitnessFunction.logfitness, -30, 2));
+
+        /* the same ranges with another compound or a repeat block */
+        LayerStack stack2 = stack.deepCopy();
+        stack2.getElementAt(2).setCompounds(new ChemicalFormula("Si"), new ChemicalFormula("O"));
+        assert(c2.matches(stack.deepCopy(), data, FitnessFunction.logfitness, -30, 2));
+        assert(!c2.matches(stack2, data, FitnessFunction.logfitness, -30, 2));
+        stack2 = stack.deepCopy();
+        stack2.setRepeat(1, 1, 3);
+        assert(!c2.matches(stack2, data, FitnessFunction.logfitness, -30, 2));
+
+        XRRFittingCtx ctx2 = c2.resume(data, FitnessFunction.logfitness, -30, 2,
+                                       ComputeScheduler.sequential(), opts);
+        assert(Math.abs(ctx2.bestFittingError() - c.getBestFittingError())
+               <= 1e-12*c.getBestFittingError());
+    }
+}
@@ -17,4 +17,41 @@ public enum FitnessFunction {
     public String toString() {
         return name;
     }
+
+    /** Tests whether the function depends on the threshold of create. */
+    public boolean usesThreshold() {
+        return this == relchi2 || this == relchi2transform;
+    }
+
+    /** Tests whether the function depends on the p-norm of create. */
+    public boolean usesPNorm() {
+        return this == logfitness || this == sqrtfitness || this == relchi2transform;
+    }
+
+    /** Creates the fitting error function.
+     *
+     * @param dBthreshold the threshold of the relative and chi-squared
+     * functions in dB
+     * @param p the norm of the p-norm functions
+     * @return a new fitting error function
+     */
+    public FittingErrorFunc create(double dBthreshold, int p) {
+        switch (this)
+        {
+          case relchi2:
+            return new RelChi2FittingErrorFunc(Math.exp(Math.log(10)*dBthreshold/10));
+          case logfitness:
+            return new LogFittingErrorFunc(p);
+          case rel:
+            return new RelFittingErrorFunc();
+          case sqrtfitness:
+            return new SqrtFittingErrorFunc(p);
+          case chi2:
+            return new Chi2FittingErrorFunc();
+          case relchi2transform:
+            return new RelChi2TransformFittingErrorFunc(Math.exp(Math.log(10)*dBthreshold/10), p);
+          default:
+            throw new IllegalArgumentException();
+        }
+    }
 };
@@ -0,0 +1,524 @@
+import java.util.*;
+
+/** Layer model compiled to flat arrays for fast fitting.
+ *
+ * <p>
+ *
+ * Fitting evaluates the same layer model with thousands of different fitting
+ * parameter vectors. Doing that through LayerStack requires copying the whole
+ * object graph and looking up the X-ray properties of each layer for every
+ * evaluation. A flat model is compiled once from a LayerStack and maps a
+ * parameter vector in the format of LayerStack.getFitValuesForFitting
+ * directly to the delta, beta, thickness and roughness arrays used by
+ * XRRSimul.
+ *
+ * <p>
+ *
+ * The mapping reproduces LayerStack.setFitValues exactly: each value is
+ * clamped to the range of its FitValue, and if a FitValue is linked to
+ * multiple places in the layer model, the value from the last place in the
+ * parameter vector takes precedence.
+ *
+ * <p>
+ *
+ * Most of the full parameter vector is usually fixed: disabled values,
+ * values with an empty range and duplicates of linked values. The model
+ * therefore also defines a compact parameter vector that contains only the
+ * free parameters, one for each distinct enabled FitValue with min &lt; max.
+ * The optimizer searches the compact space, and compact vectors are
+ * expanded to full vectors for simulation.
+ *
+ * <p>
+ *
+ * A repeat block of the layer stack is simulated by XRRSimul.rawSimulatePeriodic
+ * regardless of the kernel.
+ *
+ * <p>
+ *
+ * FlatModel objects are immutable and may be shared by multiple threads.
+ *
+ */
+public class FlatModel {
+    private static final int PROD = 0, SUM = 1, BEAM = 2;
+
+    private final SimulationKernel kernel;
+    private final int nlayers;
+    private final double lambda;
+    private final double stddevrad;
+    private final double[] deltaPerRho;
+    private final double[] betaPerDelta;
+    /* the repeat block as array indices, repeatCount == 1 if none */
+    private final int repeatFirst, repeatLast, repeatCount;
+    /* the layer of each layer of the unrolled stack */
+    private final int[] unrolled;
+
+    /* For each element of the parameter vector, the index of the element
+     * whose value is used and the range of the FitValue. */
+    private final int[] source;
+    private final double[] min, max;
+
+    /* The values of the full parameter vector at compile time, the full
+     * index of each free parameter and the free parameter index of each
+     * element of the full vector or -1 if the element is fixed. */
+    private final double[] initial;
+    private final int[] free;
+    private final int[] freeIndex;
+
+    /** Compiles a layer stack for the default simulation kernel,
+     * SimulationKernel.getDefault().
+     *
+     * @param stack the layer model to compile
+     */
+    public FlatModel(LayerStack stack) {
+        this(stack, SimulationKernel.getDefault());
+    }
+
+    /** Compiles a layer stack.
+     *
+     * The layer stack is not referenced after the constructor returns, so it
+     * may be modified afterwards.
+     *
+     * @param stack the layer model to compile
+     * @param kernel the simulation kernel used by simulate
+     */
+    public FlatModel(LayerStack stack, SimulationKernel kernel) {
+        List<FitValue> vals = new ArrayList<FitValue>();
+        Map<FitValue,Integer> last = new IdentityHashMap<FitValue,Integer>();
+
+        this.kernel = kernel;
+        this.nlayers = stack.getSize();
+        this.lambda = stack.getLambda();
+        this.stddevrad = stack.getStdDev().getExpected();
+        this.deltaPerRho = new double[nlayers];
+        this.betaPerDelta = new double[nlayers];
+        this.repeatFirst = stack.getRepeatFirst()+1;
+        this.repeatLast = stack.getRepeatLast()+1;
+        this.repeatCount = stack.getRepeatCount();
+        this.unrolled = new int[nlayers + (repeatCount-1)*(repeatLast-repeatFirst+1)];
+        for (int i = 0, u = 0; i < nlayers; i++)
+        {
+            unrolled[u++] = i;
+            if (i == repeatLast-1)
+            {
+                for (int c = 1; c < repeatCount; c++)
+                {
+                    for (int j = repeatFirst-1; j < repeatLast; j++)
+                    {
+                        unrolled[u++] = j;
+                    }
+                }
+            }
+        }
+
+        vals.add(stack.getProd());
+        vals.add(stack.getSum());
+        vals.add(stack.getBeam());
+        for (int i = 0; i < nlayers; i++)
+        {
+            vals.add(stack.getElementAt(i).getThickness());
+        }
+        for (int i = 0; i < nlayers; i++)
+        {
+            vals.add(stack.getElementAt(i).getDensity());
+        }
+        for (int i = 0; i < nlayers; i++)
+        {
+            vals.add(stack.getElementAt(i).getRoughness());
+        }
+        /*
+           LayerStack.setFitValues sets the values layer by layer, so the
+           last value of a linked FitValue is the one of the last layer.
+         */
+        last.put(vals.get(PROD), PROD);
+        last.put(vals.get(SUM), SUM);
+        last.put(vals.get(BEAM), BEAM);
+        for (int i = 0; i < nlayers; i++)
+        {
+            last.put(vals.get(3+0*nlayers+i), 3+0*nlayers+i);
+            last.put(vals.get(3+1*nlayers+i), 3+1*nlayers+i);
+            last.put(vals.get(3+2*nlayers+i), 3+2*nlayers+i);
+        }
+
+        this.source = new int[vals.size()];
+        this.min = new double[vals.size()];
+        this.max = new double[vals.size()];
+        this.initial = new double[vals.size()];
+        List<Integer> freeList = new ArrayList<Integer>();
+        for (int i = 0; i < vals.size(); i++)
+        {
+            FitValue val = vals.get(i);
+            source[i] = last.get(val);
+            min[i] = val.getMin();
+            max[i] = val.getMax();
+            initial[i] = val.getValueForFitting(FitValue.FitValueType.EXPECTED);
+            if (source[i] == i && val.getEnabled() && min[i] < max[i])
+            {
+                freeList.add(i);
+            }
+        }
+        this.free = new int[freeList.size()];
+        this.freeIndex = new int[vals.size()];
+        Arrays.fill(freeIndex, -1);
+        for (int k = 0; k < free.length; k++)
+        {
+            free[k] = freeList.get(k);
+            freeIndex[free[k]] = k;
+        }
+        for (int i = 0; i < nlayers; i++)
+        {
+            Compound compound = stack.getElementAt(i).getXRRCompound();
+            deltaPerRho[i] = compound.getDeltaPerRho();
+            betaPerDelta[i] = compound.getBetaPerDelta();
+        }
+    }
+
+    /** Returns the number of layers, excluding the ambient layer. */
+    public int getLayerCount() {
+        return nlayers;
+    }
+
+    /** Returns the length of the parameter vector. */
+    public int getParameterCount() {
+        return source.length;
+    }
+
+    /** Returns the length of the compact parameter vector. */
+    public int getFreeParameterCount() {
+        return free.length;
+    }
+
+    /** Extracts the free parameters of a full parameter vector.
+     *
+     * @param p the full parameter vector
+     * @return a new compact parameter vector
+     */
+    public double[] compact(double[] p) {
+        if (p.length != source.length)
+        {
+            throw new IllegalArgumentException();
+        }
+        double[] q = new double[free.length];
+        for (int k = 0; k < free.length; k++)
+        {
+            q[k] = p[free[k]];
+        }
+        return q;
+    }
+
+    /** Expands a compact parameter vector to a full parameter vector.
+     *
+     * Fixed parameters are set to their values at compile time and all
+     * places of a linked FitValue are set to the same value, so the result
+     * may be given to LayerStack.setFitValues.
+     *
+     * @param q the compact parameter vector
+     * @param p the array for the full parameter vector
+     */
+    public void expand(double[] q, double[] p) {
+        if (q.length != free.length || p.length != source.length)
+        {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0; i < source.length; i++)
+        {
+            int k = freeIndex[source[i]];
+            p[i] = k >= 0 ? q[k] : initial[i];
+        }
+    }
+
+    /** Expands a compact parameter vector to a new full parameter vector.
+     *
+     * @param q the compact parameter vector
+     * @return the full parameter vector
+     */
+    public double[] expand(double[] q) {
+        double[] p = new double[source.length];
+        expand(q, p);
+        return p;
+    }
+
+    /* The value of parameter i as LayerStack.setFitValues would set it. */
+    private double value(double[] p, int i) {
+        double v = p[source[i]];
+        if (v < min[i])
+            v = min[i];
+        if (v > max[i])
+            v = max[i];
+        return v;
+    }
+
+    /** Converts a parameter vector to layer property arrays.
+     *
+     * The arrays are in the format of XRRSimul.rawSimulate, so they must
+     * have room for getLayerCount()+1 layers including the ambient layer.
+     *
+     * @param p the parameter vector
+     * @param delta the array for delta of all the layers
+     * @param beta the array for beta of all the layers
+     * @param d the array for the thicknesses of all the layers
+     * @param r the array for the roughnesses of all the layers
+     */
+    public void layerArrays(double[] p, double[] delta, double[] beta, double[] d, double[] r) {
+        if (p.length != source.length)
+        {
+            throw new IllegalArgumentException();
+        }
+        delta[0] = beta[0] = d[0] = r[0] = 0; /* ambient (air) */
+        for (int i = 0; i < nlayers; i++)
+        {
+            d[i+1] = value(p, 3+0*nlayers+i);
+            r[i+1] = value(p, 3+2*nlayers+i);
+            delta[i+1] = value(p, 3+1*nlayers+i) * deltaPerRho[i];
+            beta[i+1] = delta[i+1] * betaPerDelta[i];
+        }
+    }
+
+    /** Simulates a normalized reflectivity curve.
+     *
+     * The result is the same as GraphData.simulate followed by
+     * GraphData.normalize for a layer stack to which the parameter vector
+     * has been set, but no objects are allocated if the workspace is reused.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param p the parameter vector
+     * @param result an array of at least plan.size() elements for the
+     * normalized reflectivity in linear format
+     */
+    public void simulate(SimulationPlan plan, SimulationWorkspace ws, double[] p, double[] result) {
+        int n = plan.size();
+        double beam = value(p, BEAM);
+        double prod = Math.exp(Math.log(10)*value(p, PROD)/10);
+        double sum = Math.exp(Math.log(10)*value(p, SUM)/10);
+
+        if (nlayers == 0)
+        {
+            /* Special handling for empty layers */
+            for (int i = 0; i < n; i++)
+            {
+                result[i] = 1;
+            }
+        }
+        else
+        {
+            ws.ensureLayers(nlayers+1);
+            layerArrays(p, ws.delta, ws.beta, ws.d, ws.r);
+            if (repeatCount > 1)
+            {
+                XRRSimul.rawSimulatePeriodic(plan, ws, ws.delta, ws.beta,
+                                             ws.d, ws.r, repeatFirst,
+                                             repeatLast, repeatCount, lambda,
+                                             stddevrad, beam, result);
+            }
+            else
+            {
+                kernel.simulate(plan, ws, ws.delta, ws.beta, ws.d, ws.r,
+                                lambda, stddevrad, beam, result);
+            }
+        }
+        for (int i = 0; i < n; i++)
+        {
+            result[i] = result[i]*prod + sum;
+        }
+    }
+
+    /** Simulates a normalized reflectivity curve and its derivatives.
+     *
+     * The reflectivity is the same as that of simulate, apart from
+     * rounding errors. The derivatives are calculated analytically by
+     * XRRSimul.rawSimulateJacobian in one pass. A linked value gets the sum
+     * of the derivatives of all its places, and a repeat block is unrolled,
+     * so each layer of the block gets the sum of the derivatives of its
+     * copies. A parameter outside its range has a zero derivative, because
+     * it is clamped.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param p the parameter vector
+     * @param result an array of at least plan.size() elements for the
+     * normalized reflectivity in linear format
+     * @param jac getFreeParameterCount() arrays of at least plan.size()
+     * elements for the derivatives of the result with respect to the
+     * parameters of the compact parameter vector
+     */
+    public void simulateJacobian(SimulationPlan plan, SimulationWorkspace ws, double[] p, double[] result, double[][] jac) {
+        int n = plan.size();
+        int L = unrolled.length+1;
+        double beam = value(p, BEAM);
+        double prod = Math.exp(Math.log(10)*value(p, PROD)/10);
+        double sum = Math.exp(Math.log(10)*value(p, SUM)/10);
+        double[] delta = new double[L], beta = new double[L];
+        double[] d = new double[L], r = new double[L];
+        double[] ddelta = new double[L], dbeta = new double[L];
+        double[][] rows = new double[3*L][n];
+        double[] dbeam = new double[n];
+
+        if (p.length != source.length || jac.length != free.length)
+        {
+            throw new IllegalArgumentException();
+        }
+        if (nlayers == 0)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                result[i] = 1;
+            }
+        }
+        else
+        {
+            ws.ensureLayers(nlayers+1);
+            layerArrays(p, ws.delta, ws.beta, ws.d, ws.r);
+            for (int u = 0; u < unrolled.length; u++)
+            {
+                int i = unrolled[u];
+                delta[u+1] = ws.delta[i+1];
+                beta[u+1] = ws.beta[i+1];
+                d[u+1] = ws.d[i+1];
+                r[u+1] = ws.r[i+1];
+                ddelta[u+1] = deltaPerRho[i];
+                dbeta[u+1] = deltaPerRho[i]*betaPerDelta[i];
+            }
+            XRRSimul.rawSimulateJacobian(plan, ws, delta, beta, d, r,
+                                         ddelta, dbeta, lambda, stddevrad,
+                                         beam, result, rows, dbeam);
+        }
+
+        for (int k = 0; k < free.length; k++)
+        {
+            Arrays.fill(jac[k], 0, n, 0);
+        }
+        for (int i = 0; i < source.length; i++)
+        {
+            int k = freeIndex[source[i]];
+            double v = p[source[i]];
+            if (k < 0 || v < min[i] || v > max[i])
+            {
+                continue;
+            }
+            double[] out = jac[k];
+            if (i == PROD)
+            {
+                for (int j = 0; j < n; j++)
+                {
+                    out[j] += result[j]*prod*Math.log(10)/10;
+                }
+            }
+            else if (i == SUM)
+            {
+                for (int j = 0; j < n; j++)
+                {
+                    out[j] += sum*Math.log(10)/10;
+                }
+            }
+            else if (i == BEAM)
+            {
+                for (int j = 0; j < n && nlayers > 0; j++)
+                {
+                    out[j] += dbeam[j]*prod;
+                }
+            }
+            else
+            {
+                /* thickness, density and roughness rows of the layer */
+                int layer = (i-3)%nlayers, kind = (i-3)/nlayers;
+                for (int u = 0; u < unrolled.length; u++)
+                {
+                    if (unrolled[u] != layer)
+                    {
+                        continue;
+                    }
+                    double[] row = rows[3*(u+1)+kind];
+                    for (int j = 0; j < n; j++)
+                    {
+                        out[j] += row[j]*prod;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < n; i++)
+        {
+            result[i] = result[i]*prod + sum;
+        }
+    }
+
+    /** Regression test of simulateJacobian.
+     *
+     * The derivatives are compared with central differences of simulate
+     * for a layer model that has a linked value and a repeat block, with
+     * the normalization and beam parameters fitted as well.
+     */
+    public static void main(String[] args) throws Throwable
+    {
+        LookupTable table = new XRRFittingCtx.TestLookup();
+        final double lambda = 1.5405600e-10; /* Cu K_alpha */
+        LayerStack stack = new LayerStack(lambda, table);
+        Layer oxide = new Layer("Native oxide", new FitValue(1e-9,2e-9,3e-9),
+                  new FitValue(1e3,2.5e3,4e3), new FitValue(0,0.4e-9,1e-9),
+                  new ChemicalFormula("Si"),new ChemicalFormula("O"),2.0/3,table,lambda);
+        Layer cap = new Layer("Cap", new FitValue(5e-9,10e-9,15e-9),
+                  new FitValue(1e3,2.5e3,4e3), new FitValue(0,0.6e-9,1e-9),
+                  new ChemicalFormula("Si"),new ChemicalFormula("O"),2.0/3,table,lambda);
+        /* the oxide and the cap have the same density */
+        cap.setDensityObject(oxide.getDensity());
+        stack.add(new Layer("Substrate", new FitValue(0,0,0),
+                  new FitValue(2.26e3,2.33e3,2.4e3), new FitValue(0,0.3e-9,1e-9),
+                  new ChemicalFormula("Si"),new ChemicalFormula("Si"),0,table,lambda));
+        stack.add(oxide);
+        stack.add(new Layer("Period A", new FitValue(1e-9,3e-9,5e-9),
+                  new FitValue(3e3,3.9e3,4e3), new FitValue(0,0.3e-9,1e-9),
+                  new ChemicalFormula("Al"),new ChemicalFormula("O"),3/5.0,table,lambda));
+        stack.add(new Layer("Period B", new FitValue(2e-9,4e-9,6e-9),
+                  new FitValue(2e3,2.3e3,2.4e3), new FitValue(0,0.5e-9,1e-9),
+                  new ChemicalFormula("Si"),new ChemicalFormula("Si"),0,table,lambda));
+        stack.add(cap);
+        stack.setRepeat(1, 2, 8);
+        stack.getStdDev().setValues(0, 0.01*Math.PI/180, 0.1*Math.PI/180);
+        stack.getProd().setValues(-10, 2, 10, true);
+        stack.getSum().setValues(-80, -60, -40, true);
+        stack.getBeam().setValues(100, 250, 1000, true);
+
+        double[] alpha0rad = new double[1000];
+        for (int i = 0; i < alpha0rad.length; i++)
+        {
+            alpha0rad[i] = (0.01 + 4.0*i/alpha0rad.length)*Math.PI/180;
+        }
+        SimulationPlan plan = new SimulationPlan(alpha0rad);
+        SimulationWorkspace ws = new SimulationWorkspace();
+        FlatModel model = new FlatModel(stack);
+        int n = plan.size();
+        int m = model.getFreeParameterCount();
+        double[] q = model.compact(stack.getFitValuesForFitting(FitValue.FitValueType.EXPECTED));
+        double[] qmin = model.compact(stack.getFitValuesForFitting(FitValue.FitValueType.MIN));
+        double[] qmax = model.compact(stack.getFitValuesForFitting(FitValue.FitValueType.MAX));
+        double[] ref = new double[n], result = new double[n];
+        double[] plus = new double[n], minus = new double[n];
+        double[][] jac = new double[m][n];
+
+        /* prod, sum, beam, 4 thicknesses, 4 densities and 5 roughnesses */
+        assert(m == 16);
+        model.simulate(plan, ws, model.expand(q), ref);
+        model.simulateJacobian(plan, ws, model.expand(q), result, jac);
+        for (int i = 0; i < n; i++)
+        {
+            assert(Math.abs(result[i]-ref[i]) <= 1e-10*Math.abs(ref[i]));
+        }
+        for (int k = 0; k < m; k++)
+        {
+            double h = 1e-5*(qmax[k]-qmin[k]);
+            double q0 = q[k];
+            double err = 0, max = 0;
+            q[k] = q0 + h;
+            model.simulate(plan, ws, model.expand(q), plus);
+            q[k] = q0 - h;
+            model.simulate(plan, ws, model.expand(q), minus);
+            q[k] = q0;
+            for (int i = 0; i < n; i++)
+            {
+                double fd = (plus[i]-minus[i])/(2*h);
+                err = Math.max(err, Math.abs(fd-jac[k][i]));
+                max = Math.max(max, Math.abs(fd));
+            }
+            assert(max > 0 && err < 1e-5*max);
+        }
+    }
+}
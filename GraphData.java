@@ -312,10 +312,30 @@ public class GraphData {
      *         thread without worrying about thread safety
      */
     public GraphData simulate(LayerStack tempStack) {
-        double[] alpha_0, alpha0rad, meas, simul;
+        return simulate(tempStack, null, null);
+    }
+
+    /** Makes a simulated copy of GraphData in a linear format.
+     *
+     * This method is like simulate(LayerStack), but the angle-dependent
+     * simulation data is taken from a precompiled plan and the simulation
+     * temporaries from a workspace that can be reused between calls. The
+     * plan must have been made for alpha_0 of this object. Both the plan and
+     * the workspace may be null, in which case new ones are made. The
+     * simulation kernel is SimulationKernel.getDefault().
+     *
+     * @return a new object, which can therefore be used from the calling
+     *         thread without worrying about thread safety
+     */
+    public GraphData simulate(LayerStack tempStack, SimulationPlan plan,
+                              SimulationWorkspace ws) {
+        double[] alpha_0, meas, simul;
         GraphData linear = convertToLinear();
 
         tempStack = tempStack.deepCopy();
+        if (ws == null) {
+            ws = new SimulationWorkspace();
+        }
 
         alpha_0 = linear.alpha_0;
         meas = linear.meas;
@@ -344,12 +364,84 @@ public class GraphData {
         }
         */
 
+        if (plan == null) {
+            plan = SimulationPlan.fromDegrees(alpha_0);
+        }
+        assert(plan.size() == alpha_0.length);
+
+        simul = new double[alpha_0.length];
+        XRRSimul.simulate(plan, ws, SimulationKernel.getDefault(), tempStack, simul);
+
+        return new GraphData(alpha_0, meas, simul);
+    }
+
+    /** Makes a simulated copy of GraphData in a linear format using
+     * multiple cores.
+     *
+     * This method is like simulate(LayerStack), but large simulations are
+     * split across the cores by the given parallel simulation. The result
+     * is identical to simulate(LayerStack).
+     *
+     * @return a new object, which can therefore be used from the calling
+     *         thread without worrying about thread safety
+     */
+    public GraphData simulate(LayerStack tempStack, ParallelSimulation par) {
+        double[] alpha_0, meas, simul, alpha0rad;
+        GraphData linear = convertToLinear();
+
+        tempStack = tempStack.deepCopy();
+
+        alpha_0 = linear.alpha_0;
+        meas = linear.meas;
+        simul = new double[alpha_0.length];
+
+        /* Special handling for empty layers */
+        if(tempStack.getSize() == 0) {
+            for(int i=0; i<alpha_0.length; i++)
+                simul[i] = 1;
+            return new GraphData(alpha_0, meas, simul);
+        }
+
         alpha0rad = new double[alpha_0.length];
-        for(int i=0; i<alpha0rad.length; i++) {
+        for(int i=0; i<alpha_0.length; i++)
             alpha0rad[i] = alpha_0[i]*Math.PI/180;
+        par.simulate(par.plan(alpha0rad), tempStack, simul);
+
+        return new GraphData(alpha_0, meas, simul);
+    }
+
+    /** Makes a simulated copy of GraphData in a linear format reusing the
+     * previous simulation.
+     *
+     * This method is like simulate(LayerStack), but only the part of the
+     * layer model that has changed since the previous simulation made with
+     * the same incremental simulation is recalculated. The result is
+     * identical to XRRSimul.rawSimulate.
+     *
+     * @return a new object, which can therefore be used from the calling
+     *         thread without worrying about thread safety
+     */
+    public GraphData simulate(LayerStack tempStack, IncrementalSimulation inc) {
+        double[] alpha_0, meas, simul, alpha0rad;
+        GraphData linear = convertToLinear();
+
+        tempStack = tempStack.deepCopy();
+
+        alpha_0 = linear.alpha_0;
+        meas = linear.meas;
+        simul = new double[alpha_0.length];
+
+        /* Special handling for empty layers */
+        if(tempStack.getSize() == 0) {
+            for(int i=0; i<alpha_0.length; i++)
+                simul[i] = 1;
+            return new GraphData(alpha_0, meas, simul);
         }
 
-        simul = XRRSimul.simulateComplexBufferArray(alpha0rad, tempStack);
+        alpha0rad = new double[alpha_0.length];
+        for(int i=0; i<alpha_0.length; i++)
+            alpha0rad[i] = alpha_0[i]*Math.PI/180;
+        inc.simulate(inc.plan(alpha0rad), tempStack, simul);
 
         return new GraphData(alpha_0, meas, simul);
     }
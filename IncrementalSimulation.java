@@ -0,0 +1,321 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Simulation that reuses the unchanged part of the previous simulation.
+ *
+ * <p>
+ *
+ * The Parratt recursion starts from the substrate and proceeds towards the
+ * surface. The reflection coefficient below an interface depends only on
+ * the layers below it, so when only the upper layers change between two
+ * simulations, the reflection coefficients of the lower interfaces can be
+ * reused. This class keeps the z components of the wavevector of every
+ * layer and the reflection coefficients of every interface of the previous
+ * simulation. On the next simulation it compares the layer arrays to the
+ * previous ones and restarts the recursion from the deepest interface that
+ * is affected by a change.
+ *
+ * <p>
+ *
+ * This is useful when a layer near the surface is tuned interactively: the
+ * update costs O(k*n) instead of O(layers*n), where k is the number of
+ * layers above the changed one and n the number of angles. Changing the
+ * angles, the wavelength or the number of layers makes a full simulation.
+ *
+ * <p>
+ *
+ * The results are identical to XRRSimul.rawSimulate. Large updates are split
+ * across the cores by angle ranges like in ParallelSimulation.
+ *
+ * <p>
+ *
+ * IncrementalSimulation objects are thread safe, but simulations using the
+ * same object are serialized.
+ *
+ */
+public class IncrementalSimulation {
+    /* angles times steps below which the update is done sequentially */
+    private static final int MIN_WORK = 50000;
+    /* minimum number of angles in a chunk */
+    private static final int MIN_CHUNK = 64;
+
+    private final ForkJoinPool pool;
+    private final SimulationWorkspace ws = new SimulationWorkspace();
+
+    /* the previous simulation */
+    private SimulationPlan plan;
+    private double lambda;
+    private double[] delta, beta, d, r;
+    /* z components of the wavevector of every layer, kz[layer][angle] */
+    private double[][] kz_reals, kz_imags;
+    /* R[i] is the reflection coefficient after step i of the recursion,
+     * i.e. at the top of layer i; R[d.length] is zero */
+    private double[][] R_reals, R_imags;
+    private boolean[] kzDirty;
+    private int lastSteps;
+
+    /** Creates an incremental simulation using the shared pool of
+     * ComputeScheduler.
+     */
+    public IncrementalSimulation() {
+        this(null);
+    }
+
+    /** Creates an incremental simulation.
+     *
+     * @param pool the pool that runs large updates, or null for the shared
+     * pool of ComputeScheduler
+     */
+    public IncrementalSimulation(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Returns a simulation plan for the given angles.
+     *
+     * The plan of the previous call is reused if the angles are identical.
+     * Using the same plan for consecutive simulations is what allows the
+     * previous results to be reused.
+     *
+     * @param alpha0rad angles of incidence in radians
+     * @return a plan for the angles
+     */
+    public synchronized SimulationPlan plan(double[] alpha0rad) {
+        return ws.plan(alpha0rad);
+    }
+
+    /** Returns the number of recursion steps calculated by the previous
+     * simulation.
+     */
+    public synchronized int getLastSteps() {
+        return lastSteps;
+    }
+
+    /** Simulates the layers of a layer stack.
+     *
+     * The ambient layer (air) is included automatically in the simulation.
+     * A repeat block is simulated layer by layer.
+     * The layer stack must not be modified by other threads during the
+     * simulation.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param layers the layer stack to simulate
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     */
+    public synchronized void simulate(SimulationPlan plan, LayerStack layers, double[] result) {
+        layers = layers.unroll();
+        ws.ensureLayers(layers.getSize()+1);
+        XRRSimul.layerArrays(layers, ws.delta, ws.beta, ws.d, ws.r);
+        simulate(plan, ws.delta, ws.beta, ws.d, ws.r, layers.getLambda(),
+                 layers.getStdDev().getExpected(),
+                 layers.getBeam().getExpected(), result);
+    }
+
+    /** Simulates layers given as arrays.
+     *
+     * The parameters are the same as in XRRSimul.rawSimulate. The arrays
+     * are copied, so they may be modified afterwards.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     */
+    public synchronized void simulate(SimulationPlan plan, double[] delta,
+                                      double[] beta, double[] d, double[] r,
+                                      double lambda, double stddevrad,
+                                      double beam, double[] result)
+    {
+        final int n = plan.size();
+        final int top;
+        int steps;
+
+        if (plan != this.plan || lambda != this.lambda
+            || this.d == null || d.length != this.d.length)
+        {
+            this.plan = plan;
+            this.lambda = lambda;
+            this.delta = new double[d.length];
+            this.beta = new double[d.length];
+            this.d = new double[d.length];
+            this.r = new double[d.length];
+            kz_reals = new double[d.length][n];
+            kz_imags = new double[d.length][n];
+            R_reals = new double[d.length+1][n];
+            R_imags = new double[d.length+1][n];
+            kzDirty = new boolean[d.length];
+            Arrays.fill(kzDirty, true);
+            top = d.length-1;
+        }
+        else
+        {
+            int t = 0;
+            for (int m = 0; m < d.length; m++)
+            {
+                if (delta[m] != this.delta[m] || beta[m] != this.beta[m])
+                {
+                    /* kz of layer m is used by steps m and m+1 */
+                    kzDirty[m] = true;
+                    t = Math.max(t, Math.min(m+1, d.length-1));
+                }
+                if (d[m] != this.d[m] || r[m] != this.r[m])
+                {
+                    t = Math.max(t, m);
+                }
+            }
+            top = t;
+        }
+        System.arraycopy(delta, 0, this.delta, 0, d.length);
+        System.arraycopy(beta, 0, this.beta, 0, d.length);
+        System.arraycopy(d, 0, this.d, 0, d.length);
+        System.arraycopy(r, 0, this.r, 0, d.length);
+
+        steps = top;
+        for (int m = 0; m < d.length; m++)
+        {
+            if (kzDirty[m])
+            {
+                steps++;
+            }
+        }
+        lastSteps = top;
+
+        ForkJoinPool pool = this.pool != null ? this.pool : ComputeScheduler.pool();
+        int nchunks = Math.max(1, Math.min(pool.getParallelism(), n/MIN_CHUNK));
+        if ((long)n*steps < MIN_WORK || nchunks <= 1)
+        {
+            update(top, 0, n);
+        }
+        else
+        {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int c = 0; c < nchunks; c++)
+            {
+                final int lo = (int)((long)n*c/nchunks);
+                final int hi = (int)((long)n*(c+1)/nchunks);
+                tasks.add(new Callable<Void>() {
+                    public Void call()
+                    {
+                        update(top, lo, hi);
+                        return null;
+                    }
+                });
+            }
+            ComputeScheduler.invokeAll(pool, tasks);
+        }
+        Arrays.fill(kzDirty, false);
+
+        double[] filter = plan.filter(stddevrad);
+        double[] sinAlpha0 = plan.sinAlpha0;
+        ws.ensureAngles(n);
+        double[] R2 = filter != null ? ws.R2 : result;
+        double[] Rr = R_reals[1];
+        double[] Ri = R_imags[1];
+        for(int j=0; j<n; j++) {
+            double F = beam*sinAlpha0[j];
+            if (F > 1.0)
+                F = 1.0;
+            R2[j] = Rr[j]*Rr[j] + Ri[j]*Ri[j];
+            R2[j] *= F;
+        }
+        if(filter != null)
+            XRRSimul.convolve(plan, stddevrad, filter, ws, R2, result);
+    }
+
+    /* Recalculates the dirty wavevectors and the recursion steps from top
+     * down to 1 for the angles lo..hi-1. */
+    private void update(int top, int lo, int hi) {
+        double k0 = 2*Math.PI/lambda;
+        double[] alpha0sq = plan.alpha0sq;
+
+        for(int m=0; m<d.length; m++) {
+            if (!kzDirty[m])
+                continue;
+            double[] kzr = kz_reals[m], kzi = kz_imags[m];
+            for(int j=lo; j<hi; j++) {
+                // Calculate z component of wavevector
+                double sq_real = alpha0sq[j] - 2*delta[m];
+                double sq_imag = - 2*beta[m];
+                double absval = Math.sqrt(sq_real*sq_real + sq_imag*sq_imag);
+                kzr[j] = k0*Math.sqrt((absval+sq_real)/2);
+                kzi[j] = -k0*Math.sqrt((absval-sq_real)/2);
+            }
+        }
+
+        for(int i=top; i>=1; i--) {
+            double[] kz0r = kz_reals[i-1], kz0i = kz_imags[i-1];
+            double[] kz1r = kz_reals[i], kz1i = kz_imags[i];
+            double[] Rr_in = R_reals[i+1], Ri_in = R_imags[i+1];
+            double[] Rr = R_reals[i], Ri = R_imags[i];
+            for(int j=lo; j<hi; j++) {
+                double kz_real = kz0r[j];
+                double kz_imag = kz0i[j];
+                double kz1_real = kz1r[j];
+                double kz1_imag = kz1i[j];
+
+                // phase factor
+                double ph_real = Math.exp(2*kz1_imag*d[i])*Math.cos(-2*kz1_real*d[i]);
+                double ph_imag = Math.exp(2*kz1_imag*d[i])*Math.sin(-2*kz1_real*d[i]);
+
+                double num_real, num_imag;
+                double den_real, den_imag;
+                double divisor;
+                double ri_real, ri_imag;
+                double roughri_real, roughri_imag;
+
+                // Fresnel reflection coefficient
+                num_real = kz_real - kz1_real;
+                num_imag = kz_imag - kz1_imag;
+                den_real = kz_real + kz1_real;
+                den_imag = kz_imag + kz1_imag;
+
+                divisor = den_real*den_real + den_imag*den_imag;
+
+                ri_real = (num_real*den_real + num_imag*den_imag)/divisor;
+                ri_imag = (num_imag*den_real - num_real*den_imag)/divisor;
+
+                /* this can actually occur at small angles when there's no reflection. */
+                if(Double.isNaN(ri_real) || Double.isNaN(ri_imag)) {
+                    ri_real = 0;
+                    ri_imag = 0;
+                }
+
+                double kzkz1_real = kz_real*kz1_real-kz_imag*kz1_imag;
+                double kzkz1_imag = kz_real*kz1_imag+kz_imag*kz1_real;
+                double roughexp_real = -2*r[i]*r[i]*kzkz1_real;
+                double roughexp_imag = -2*r[i]*r[i]*kzkz1_imag;
+                double rough_real = Math.exp(roughexp_real)*Math.cos(roughexp_imag);
+                double rough_imag = Math.exp(roughexp_real)*Math.sin(roughexp_imag);
+
+                roughri_real = ri_real*rough_real - ri_imag*rough_imag;
+                roughri_imag = ri_real*rough_imag + ri_imag*rough_real;
+
+                // recursive formula
+                double b_real, b_imag; // ri*ph
+
+                // a = ri + R[j]*ph
+                num_real = roughri_real + Rr_in[j]*ph_real - Ri_in[j]*ph_imag;
+                num_imag = roughri_imag + Rr_in[j]*ph_imag + Ri_in[j]*ph_real;
+
+                // b = ri*ph
+                b_real = roughri_real*ph_real - roughri_imag*ph_imag;
+                b_imag = roughri_real*ph_imag + roughri_imag*ph_real;
+
+                // c = 1 + R[j]*b = 1 + R[j]*ri*ph
+                den_real = 1 + Rr_in[j]*b_real - Ri_in[j]*b_imag;
+                den_imag = Rr_in[j]*b_imag + Ri_in[j]*b_real;
+
+                divisor = den_real*den_real + den_imag*den_imag;
+
+                Rr[j] = (num_real*den_real + num_imag*den_imag)/divisor;
+                Ri[j] = (num_imag*den_real - num_real*den_imag)/divisor;
+            }
+        }
+    }
+}
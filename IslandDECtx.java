@@ -0,0 +1,224 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Island-model differential evolution.
+ *
+ * <p>
+ *
+ * DECtx evaluates the trial vectors of a generation concurrently but waits
+ * for all of them before the selection, and the sorting and the
+ * eigendecomposition of the covariance matrix run in one thread. With many
+ * cores, the cores that finish their share of a generation early sit idle
+ * until the slowest one is done.
+ *
+ * <p>
+ *
+ * Island-model DE splits the population into islands that evolve
+ * independently, each in one task that evaluates its own trial vectors. An
+ * iteration runs every island for a fixed number of generations without any
+ * synchronization between them, and then the best individual of every
+ * island migrates to the next island in a ring, replacing its worst
+ * individual if it is better. The islands only meet at migration, and the
+ * smaller populations are sorted and rotated concurrently.
+ *
+ * <p>
+ *
+ * The islands also keep the population more diverse than one panmictic
+ * population, which makes premature convergence to a local optimum less
+ * likely but slows down the final convergence somewhat.
+ *
+ */
+public class IslandDECtx implements PopulationOptimizer {
+  /* the smallest population of an island */
+  private static final int MIN_ISLAND = 10;
+  private DECtx[] islands;
+  private int interval;
+  private ExecutorService executor_service;
+  /* the merged population and its fitting errors, best first */
+  private double[][] pop;
+  private double[] E;
+
+  /*
+     The population of npop individuals is split into nislands islands, or
+     fewer if the islands would have fewer than MIN_ISLAND individuals. The
+     individuals of initial are dealt to the islands in turn. Each iteration
+     runs interval generations of every island.
+   */
+  public IslandDECtx(final DECtx.CostFunc func,
+                     final double[] p_min, final double[] p_max,
+                     double[][] initial, final boolean cov_on,
+                     final boolean traditional_recombination_on,
+                     int npop, int nislands, int interval,
+                     ExecutorService executor_service,
+                     final AdvancedFitOptions opts)
+  {
+    if (nislands < 1 || interval < 1 || npop < 1)
+    {
+      throw new IllegalArgumentException();
+    }
+    nislands = Math.max(1, Math.min(nislands, npop/MIN_ISLAND));
+    this.interval = interval;
+    this.executor_service = executor_service;
+    this.islands = new DECtx[nislands];
+    ArrayList<Callable<Void>> list = new ArrayList<Callable<Void>>(nislands);
+    for (int k=0; k<nislands; k++)
+    {
+      final List<double[]> mine = new ArrayList<double[]>();
+      for (int i=k; i<initial.length; i+=nislands)
+      {
+        mine.add(initial[i]);
+      }
+      if (mine.isEmpty())
+      {
+        mine.add(initial[0]);
+      }
+      final int island = k;
+      final int size = (int)((long)npop*(k+1)/nislands - (long)npop*k/nislands);
+      list.add(new Callable<Void>() {
+        public Void call()
+        {
+          /*
+             Each island evaluates its trial vectors in its own thread, the
+             parallelism comes from running the islands concurrently.
+           */
+          islands[island] = new DECtx(func, p_min, p_max,
+                                      mine.toArray(new double[mine.size()][]),
+                                      cov_on, traditional_recombination_on,
+                                      size, ComputeScheduler.sequential(),
+                                      opts);
+          return null;
+        }
+      });
+    }
+    ComputeScheduler.invokeAll(executor_service, list);
+    merge();
+  }
+
+  /* Runs a task for every island concurrently. */
+  private void forEachIsland(final int generations, final boolean recalculate)
+  {
+    ArrayList<Callable<Void>> list = new ArrayList<Callable<Void>>(islands.length);
+    for (final DECtx island: islands)
+    {
+      list.add(new Callable<Void>() {
+        public Void call()
+        {
+          if (recalculate)
+          {
+            island.recalculateFittingErrors();
+          }
+          for (int g=0; g<generations; g++)
+          {
+            island.iteration();
+          }
+          return null;
+        }
+      });
+    }
+    ComputeScheduler.invokeAll(executor_service, list);
+  }
+
+  /* Collects the populations of the islands into one sorted population. */
+  private void merge()
+  {
+    int n = 0;
+    for (DECtx island: islands)
+    {
+      n += island.fittingErrors().length;
+    }
+    final double[][] p = new double[n][];
+    final double[] e = new double[n];
+    Integer[] order = new Integer[n];
+    n = 0;
+    for (DECtx island: islands)
+    {
+      double[][] ip = island.population();
+      double[] ie = island.fittingErrors();
+      for (int i=0; i<ip.length; i++)
+      {
+        p[n] = ip[i];
+        e[n] = ie[i];
+        order[n] = n;
+        n++;
+      }
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b)
+      {
+        return Double.compare(e[a], e[b]);
+      }
+    });
+    this.pop = new double[n][];
+    this.E = new double[n];
+    for (int i=0; i<n; i++)
+    {
+      this.pop[i] = p[order[i]];
+      this.E[i] = e[order[i]];
+    }
+  }
+
+  public void iteration()
+  {
+    forEachIsland(interval, false);
+    if (islands.length > 1)
+    {
+      double[][] best = new double[islands.length][];
+      double[] bestE = new double[islands.length];
+      for (int k=0; k<islands.length; k++)
+      {
+        best[k] = islands[k].bestIndividual();
+        bestE[k] = islands[k].bestFittingError();
+      }
+      for (int k=0; k<islands.length; k++)
+      {
+        islands[(k+1)%islands.length].immigrate(best[k], bestE[k]);
+      }
+    }
+    merge();
+  }
+
+  /* the islands calculate every cost within iteration() */
+  public void finishEvaluations()
+  {
+  }
+
+  public void recalculateFittingErrors()
+  {
+    forEachIsland(0, true);
+    merge();
+  }
+
+  public double[][] population()
+  {
+    double[][] result = new double[pop.length][];
+    for (int i=0; i<pop.length; i++)
+    {
+      result[i] = pop[i].clone();
+    }
+    return result;
+  }
+  public double[] fittingErrors()
+  {
+    return E.clone();
+  }
+  public double[] bestIndividual()
+  {
+    return pop[0].clone();
+  }
+  public double[] medianIndividual()
+  {
+    return pop[pop.length/2].clone();
+  }
+  public double bestFittingError()
+  {
+    return E[0];
+  }
+  public double medianFittingError()
+  {
+    return E[E.length/2];
+  }
+  public double worstFittingError()
+  {
+    return E[E.length-1];
+  }
+};
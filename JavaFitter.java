@@ -32,6 +32,16 @@ public class JavaFitter implements FitterInterface {
     private XRRFittingCtx ctx;
     private boolean autostop;
     private int autostopFigures;
+    private GraphData data;
+    private int popsize;
+    private AdvancedFitOptions opts;
+    private int firstRound;
+    private volatile double[][] population;
+    private FitnessFunction fitnessFunc;
+    private double dBthreshold;
+    private int pNorm;
+    private boolean checkpointed; /* opts.checkpointFile is of this fit */
+    private String checkpointError; /* the first failure to save */
 
 
     /** Constructor.
@@ -75,6 +85,29 @@ public class JavaFitter implements FitterInterface {
             Algorithm algo,
             boolean autostop, int autostopFigures,
             AdvancedFitOptions opts) throws FittingNotStartedException {
+        this(xrr, light, data, endTask, plotTask, errTask, stack, popsize,
+             iterations, firstAngle, lastAngle, green, yellow, algo, autostop,
+             autostopFigures, opts, null);
+    }
+
+    /** Constructor that may resume a fit from a checkpoint.
+     *
+     * If checkpoints are enabled in opts, the state of the fit is saved to
+     * opts.checkpointFile periodically and when the fitting is stopped. The
+     * checkpoint is removed when the fitting ends normally, so a finished
+     * fit isn't continued.
+     *
+     * @param resume a checkpoint of a fit of the same model to the same
+     * measurement to continue, or null to start a new fit. The algorithm,
+     * the population size and the stack come from the checkpoint, and the
+     * iterations done before it count towards the iterations.
+     * @throws FittingNotStartedException if there are too few data points
+     * or resume doesn't match the stack and the measurement
+     */
+    public JavaFitter(XRRApp xrr, JPlotArea light, GraphData data, LayerTask endTask, LayerTask plotTask, Runnable errTask, LayerStack stack, int popsize, int iterations, double firstAngle, double lastAngle, Image green, Image yellow,
+            Algorithm algo,
+            boolean autostop, int autostopFigures,
+            AdvancedFitOptions opts, FitCheckpoint resume) throws FittingNotStartedException {
         FittingErrorFunc func2;
         stack = stack.deepCopy();
         data = data.normalize(stack).convertToLinear();
@@ -83,6 +116,20 @@ public class JavaFitter implements FitterInterface {
         {
             throw new FittingNotStartedException();
         }
+        this.fitnessFunc = xrr.fitnessFunc();
+        this.dBthreshold = xrr.dBthreshold();
+        this.pNorm = xrr.pNorm();
+        if (resume != null)
+        {
+            /* compared with the model given, before it is replaced */
+            if (!resume.matches(stack, data, fitnessFunc, dBthreshold, pNorm))
+            {
+                throw new FittingNotStartedException();
+            }
+            stack = resume.getStack();
+            algo = resume.getAlgorithm();
+            popsize = resume.getPopsize();
+        }
         this.green = green;
         this.yellow = yellow;
         this.light = light;
@@ -93,6 +140,10 @@ public class JavaFitter implements FitterInterface {
         this.autostop = autostop;
         this.autostopFigures = autostopFigures;
         this.stack = stack;
+        this.data = data;
+        this.algo = algo;
+        this.popsize = popsize;
+        this.opts = opts;
         this.start = System.nanoTime();
         closing = false;
         t = new Thread(new Runnable() {
@@ -100,29 +151,41 @@ public class JavaFitter implements FitterInterface {
                 runThread();
             }
         });
-        int cpus = Runtime.getRuntime().availableProcessors();
-        boolean ok = false;
-        this.exec = new ThreadPoolExecutor(cpus, cpus,
-                                           1, TimeUnit.SECONDS,
-                                           new LinkedBlockingQueue<Runnable>());
-        func2 = xrr.func();
-        try {
-            this.ctx = new XRRFittingCtx(stack, data,
-                                         algo == Algorithm.JavaCovDE,
-                                         algo != Algorithm.JavaEitherOrDE,
-                                         popsize, func2, exec, opts);
-            ok = true;
+        this.exec = ComputeScheduler.pool();
+        func2 = fitnessFunc.create(dBthreshold, pNorm);
+        if (resume != null)
+        {
+            this.ctx = resume.resume(data, fitnessFunc, dBthreshold, pNorm, exec, opts);
+            this.firstRound = resume.getRound();
+            this.checkpointed = true;
         }
-        finally
+        else
         {
-            if (!ok)
-            {
-                exec.shutdown();
-            }
+            this.ctx = new XRRFittingCtx(stack, data,
+                                         algo.covariance(),
+                                         algo.traditionalRecombination(),
+                                         algo.localRefinement(),
+                                         algo.asynchronous(), algo.cmaes(),
+                                         popsize, func2, exec, opts, null);
         }
         t.start();
     }
 
+    /** Returns the population of the fit when it ended, best first, in the
+     * format of LayerStack.getFitValuesForFitting, or null if the fit
+     * hasn't ended or failed. May be called from endTask.
+     */
+    public double[][] getPopulation() {
+        return population;
+    }
+
+    /** Returns the measurement fitted, normalized, linear and cropped to
+     * the fitting range.
+     */
+    public GraphData getData() {
+        return data;
+    }
+
     /** Stop the fitting without waiting. */
     public void closeWithoutWaiting() {
         closing = true;
@@ -142,14 +205,39 @@ public class JavaFitter implements FitterInterface {
     }
 
 
+    /* Saves a checkpoint if checkpoints are enabled. A failure to save
+     * doesn't stop the fitting, the next checkpoint is tried as usual, but
+     * the first failure is reported when the fitting ends.
+     */
+    private void checkpoint(int round) {
+        if (opts.checkpointInterval <= 0 || opts.checkpointFile == null)
+        {
+            return;
+        }
+        try {
+            new FitCheckpoint(stack, data, algo, popsize, fitnessFunc,
+                              dBthreshold, pNorm, round, ctx).save(opts.checkpointFile);
+            checkpointed = true;
+        }
+        catch(IOException ex) {
+            if (checkpointError == null)
+                checkpointError = ex.getMessage();
+        }
+        catch(FencException ex) {
+            if (checkpointError == null)
+                checkpointError = ex.getMessage();
+        }
+    }
+
     /* This methods runs in another thread.
      * It acquires the following locks:
      * - oct, when octave is called
      */
     private void runThread() {
-        int round = 0;
+        int round = firstRound;
         double bestfit = 1e6;
         long curTime = System.nanoTime();
+        long checkpointTime = System.nanoTime();
         light.newImage(yellow);
         try {
             while (!closing) {
@@ -177,6 +265,11 @@ public class JavaFitter implements FitterInterface {
                     });
                 }
                 round++;
+                if (System.nanoTime() > checkpointTime + (long)(opts.checkpointInterval*1e9))
+                {
+                    checkpointTime = System.nanoTime();
+                    checkpoint(round);
+                }
                 if (!autostop && round >= iterations)
                 {
                     break;
@@ -190,10 +283,18 @@ public class JavaFitter implements FitterInterface {
         catch(Throwable t) {
             SwingUtilities.invokeLater(errTask);
             light.newImage(green);
-            this.exec.shutdown();
             return;
         }
-        this.exec.shutdown();
+        if (closing)
+        {
+            /* so that the fit can be continued later */
+            checkpoint(round);
+        }
+        else if (checkpointed)
+        {
+            opts.checkpointFile.delete();
+        }
+        population = ctx.population();
         final int finalRound = round;
         final double finalBestfit = bestfit;
         final LayerStack stackToReturn = stack.deepCopy();
@@ -207,7 +308,15 @@ public class JavaFitter implements FitterInterface {
                         String.format("%.2f", (end - start) / 1e9) +
                         " seconds and " + finalRound + " iterations" +
                         " to obtain fitting error value " +
-                        String.format(Locale.US,"%.6g",finalBestfit);
+                        String.format(Locale.US,"%.6g",finalBestfit) +
+                        ", " + String.format(Locale.US,"%.1f",100*ctx.cacheHitRate()) +
+                        " % of the evaluations were repeats";
+                }
+                if(checkpointError != null)
+                {
+                    if(!msg.equals(""))
+                        msg += "\n";
+                    msg += "The checkpoint could not be saved: " + checkpointError;
                 }
                 if(plotTask != null)
                     plotTask.run(stackToReturn,"");
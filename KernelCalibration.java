@@ -0,0 +1,282 @@
+import java.io.*;
+import java.util.*;
+
+/** Selection of the fastest simulation kernel.
+ *
+ * <p>
+ *
+ * The relative speed of the simulation kernels depends on the JVM, the CPU
+ * and the problem size, so the fastest kernel is found by measuring. The
+ * problem sizes are divided into a few classes by the number of layers and
+ * the number of angles. When a kernel is needed for a class for the first
+ * time, every kernel is timed on a representative problem of the class and
+ * the fastest one is remembered. A calibration takes a fraction of a second.
+ *
+ * <p>
+ *
+ * The calibration results can be kept in a file, so that they are measured
+ * only once. The file records the JVM and the CPU it was measured on, and
+ * it is ignored on any other JVM or CPU.
+ *
+ * <p>
+ *
+ * All methods are thread safe. Selecting an already calibrated kernel does
+ * not lock.
+ *
+ */
+public class KernelCalibration {
+    private static final SimulationKernel[] CANDIDATES = {
+        SimulationKernel.SCALAR, SimulationKernel.VECTOR,
+        SimulationKernel.INLINE, SimulationKernel.COMPLEX,
+        SimulationKernel.COMPLEX_BUFFER,
+    };
+    /* upper limits of the size classes, the last class has no limit */
+    private static final int[] LAYER_LIMITS = {4, 16};
+    private static final int[] POINT_LIMITS = {512};
+    /* the problem size calibrated for each class */
+    private static final int[] LAYERS = {3, 10, 40};
+    private static final int[] POINTS = {256, 1024};
+    /* nanoseconds and rounds to run the kernels before timing them */
+    private static final long WARMUP = 100*1000*1000;
+    private static final int MIN_WARMUP_ROUNDS = 10;
+    /* the number of timed batches of each kernel and nanoseconds per batch */
+    private static final int BATCHES = 7;
+    private static final long BATCH = 1000*1000;
+
+    private static volatile SimulationKernel[] selected =
+        new SimulationKernel[LAYERS.length*POINTS.length];
+    private static File file;
+
+    private KernelCalibration() {}
+
+    private static int sizeClass(int n, int[] limits) {
+        for (int i = 0; i < limits.length; i++)
+        {
+            if (n <= limits[i])
+            {
+                return i;
+            }
+        }
+        return limits.length;
+    }
+
+    /** Returns the fastest kernel for a problem size.
+     *
+     * The size class is calibrated if it hasn't been already.
+     *
+     * @param nlayers the number of layers including the ambient layer
+     * @param points the number of angles
+     * @return the fastest kernel
+     */
+    public static SimulationKernel select(int nlayers, int points) {
+        int c = sizeClass(nlayers, LAYER_LIMITS)*POINTS.length
+                + sizeClass(points, POINT_LIMITS);
+        SimulationKernel k = selected[c];
+        if (k == null)
+        {
+            k = calibrate(c);
+        }
+        return k;
+    }
+
+    private static synchronized SimulationKernel calibrate(int c) {
+        SimulationKernel k = selected[c];
+        if (k != null)
+        {
+            return k;
+        }
+        k = fastest(LAYERS[c/POINTS.length], POINTS[c%POINTS.length]);
+        SimulationKernel[] s = selected.clone();
+        s[c] = k;
+        selected = s;
+        if (file != null)
+        {
+            try {
+                save(file);
+            }
+            catch (IOException ex)
+            {
+                /* the calibration is just repeated next time */
+            }
+        }
+        return k;
+    }
+
+    /** Times all kernels.
+     *
+     * @param nlayers the number of layers including the ambient layer
+     * @param points the number of angles
+     * @return the nanoseconds per simulation of each kernel in CANDIDATES
+     */
+    private static double[] time(int nlayers, int points) {
+        double lambda = 1.5405600e-10;
+        double[] alpha0rad = new double[points];
+        double[] delta = new double[nlayers];
+        double[] beta = new double[nlayers];
+        double[] d = new double[nlayers];
+        double[] r = new double[nlayers];
+        double[] result = new double[points];
+        double[] nanos = new double[CANDIDATES.length];
+
+        for (int i = 0; i < points; i++)
+        {
+            alpha0rad[i] = 5.0*i/points*Math.PI/180;
+        }
+        for (int m = 1; m < nlayers; m++)
+        {
+            delta[m] = (m%2 == 0 ? 7.6e-6 : 1.2e-5);
+            beta[m] = delta[m]*0.02;
+            d[m] = 3e-9;
+            r[m] = 0.3e-9;
+        }
+        SimulationPlan plan = new SimulationPlan(alpha0rad);
+        SimulationWorkspace ws = new SimulationWorkspace();
+        /*
+           The kernels are run in turns, so that a disturbance such as
+           another process or a garbage collection affects all of them alike
+           instead of making one look slow. The best batch of each kernel
+           is what counts.
+         */
+        long start = System.nanoTime();
+        int rounds = 0;
+        while (System.nanoTime() - start < WARMUP || rounds < MIN_WARMUP_ROUNDS)
+        {
+            for (SimulationKernel kernel: CANDIDATES)
+            {
+                kernel.simulate(plan, ws, delta, beta, d, r, lambda, 0, 1, result);
+            }
+            rounds++;
+        }
+        Arrays.fill(nanos, Double.MAX_VALUE);
+        for (int b = 0; b < BATCHES; b++)
+        {
+            for (int k = 0; k < CANDIDATES.length; k++)
+            {
+                SimulationKernel kernel = CANDIDATES[k];
+                int runs = 0;
+                long t0 = System.nanoTime(), t1;
+                do {
+                    kernel.simulate(plan, ws, delta, beta, d, r, lambda, 0, 1, result);
+                    runs++;
+                    t1 = System.nanoTime();
+                } while (t1 - t0 < BATCH);
+                nanos[k] = Math.min(nanos[k], (double)(t1 - t0)/runs);
+            }
+        }
+        return nanos;
+    }
+
+    private static SimulationKernel fastest(int nlayers, int points) {
+        double[] nanos = time(nlayers, points);
+        int best = 0;
+        for (int k = 1; k < nanos.length; k++)
+        {
+            if (nanos[k] < nanos[best])
+            {
+                best = k;
+            }
+        }
+        return CANDIDATES[best];
+    }
+
+    /* identifies the JVM and the CPU the calibration is valid for */
+    private static String fingerprint() {
+        return System.getProperty("java.vm.name") + " " +
+               System.getProperty("java.vm.version") + " " +
+               System.getProperty("os.arch") + " " +
+               Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Sets the file the calibration is kept in.
+     *
+     * The calibration of the file is used if it was measured on this JVM
+     * and CPU. New calibrations are saved to the file.
+     *
+     * @param f the calibration file or null to keep the calibration in
+     * memory only
+     */
+    public static synchronized void setFile(File f) {
+        file = f;
+        if (f == null || !f.exists())
+        {
+            return;
+        }
+        Properties props = new Properties();
+        try {
+            FileInputStream fin = new FileInputStream(f);
+            try {
+                props.load(fin);
+            }
+            finally {
+                fin.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            return;
+        }
+        if (!fingerprint().equals(props.getProperty("fingerprint")))
+        {
+            return;
+        }
+        SimulationKernel[] s = selected.clone();
+        for (int c = 0; c < s.length; c++)
+        {
+            String name = props.getProperty("kernel."+LAYERS[c/POINTS.length]+"."+POINTS[c%POINTS.length]);
+            if (s[c] == null && name != null)
+            {
+                try {
+                    SimulationKernel k = SimulationKernel.forName(name);
+                    if (k != SimulationKernel.AUTO)
+                    {
+                        s[c] = k;
+                    }
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    /* a kernel of another version, calibrate again */
+                }
+            }
+        }
+        selected = s;
+    }
+
+    private static void save(File f) throws IOException {
+        Properties props = new Properties();
+        SimulationKernel[] s = selected;
+        props.setProperty("fingerprint", fingerprint());
+        for (int c = 0; c < s.length; c++)
+        {
+            if (s[c] != null)
+            {
+                props.setProperty("kernel."+LAYERS[c/POINTS.length]+"."+POINTS[c%POINTS.length],
+                                  s[c].toString());
+            }
+        }
+        FileOutputStream fout = new FileOutputStream(f);
+        try {
+            props.store(fout, "Simulation kernel calibration");
+        }
+        finally {
+            fout.close();
+        }
+    }
+
+    /** Prints the timings of all kernels for all size classes. */
+    public static void main(String[] args) {
+        for (int l = 0; l < LAYERS.length; l++)
+        {
+            for (int p = 0; p < POINTS.length; p++)
+            {
+                double[] nanos = time(LAYERS[l], POINTS[p]);
+                System.out.print(LAYERS[l] + " layers, " + POINTS[p] + " points:");
+                for (int k = 0; k < CANDIDATES.length; k++)
+                {
+                    System.out.print(" " + CANDIDATES[k] + " " +
+                                     String.format(Locale.US, "%.1f", nanos[k]/1e3) + " us");
+                }
+                System.out.println();
+            }
+        }
+    }
+}
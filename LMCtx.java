@@ -0,0 +1,287 @@
+import Jama.Matrix;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Levenberg-Marquardt refinement of fitting parameters.
+ *
+ * <p>
+ *
+ * Differential evolution finds the basin of the global optimum reliably but
+ * converges slowly in the last digits. Near the optimum the residuals are
+ * nearly linear in the parameters, and the Levenberg-Marquardt method
+ * converges in a few iterations from there.
+ *
+ * <p>
+ *
+ * The Jacobian of the residuals is taken from the residual function if it
+ * can calculate it, and otherwise calculated by forward differences, the
+ * parameters being perturbed concurrently. The parameters are scaled by
+ * their ranges, so that thicknesses in meters and densities in kg/m^3 are
+ * treated alike, and the Marquardt damping is proportional to the diagonal
+ * of the approximate Hessian. Parameters at the limits of their ranges are
+ * kept there if the step would take them out, and the rest of a step that
+ * leaves the range is clamped to it.
+ *
+ * <p>
+ *
+ * Each iteration calculates one Jacobian and tries steps with increasing
+ * damping until the fitting error decreases. If no step decreases it, the
+ * refinement has converged and further iterations do nothing.
+ *
+ */
+public class LMCtx implements Optimizer {
+  public static interface ResidualFunc {
+    /* stores the residuals of p to r and returns the fitting error */
+    public double calculate(double[] p, double[] r) throws Exception;
+  };
+  public static interface JacobianFunc extends ResidualFunc {
+    /* stores also the Jacobian of the residuals, J[i][k] = dr[i]/dp[k] */
+    public double calculate(double[] p, double[] r, double[][] J) throws Exception;
+  };
+  /* the finite difference step as a fraction of the parameter range */
+  private static final double STEP = 1e-6;
+  /* the initial damping and the limits of the damping */
+  private static final double MU_INITIAL = 1e-3;
+  private static final double MU_MIN = 1e-12;
+  private static final double MU_MAX = 1e12;
+  private ResidualFunc func;
+  private int nparam;
+  private int nres;
+  private double[] p_min;
+  private double[] p_max;
+  private double[] dp;
+  private double[] p;
+  private double[] r;
+  private double E;
+  private double E_prev;
+  private double mu;
+  private boolean converged;
+  private ExecutorService executor_service;
+
+  public LMCtx(ResidualFunc func, int nres, double[] p_min, double[] p_max,
+               double[] p, ExecutorService executor_service)
+  {
+    this.func = func;
+    this.nparam = p_min.length;
+    this.nres = nres;
+    this.executor_service = executor_service;
+    if (p_max.length != nparam || p.length != nparam)
+    {
+      throw new IllegalArgumentException();
+    }
+    this.p_min = p_min.clone();
+    this.p_max = p_max.clone();
+    this.dp = new double[nparam];
+    this.p = new double[nparam];
+    for (int i=0; i<nparam; i++)
+    {
+      this.dp[i] = p_max[i] - p_min[i];
+      this.p[i] = Math.max(p_min[i], Math.min(p_max[i], p[i]));
+    }
+    this.r = new double[nres];
+    this.E = evaluate(this.p, this.r);
+    this.E_prev = this.E;
+    this.mu = MU_INITIAL;
+  }
+
+  private double evaluate(double[] p, double[] r)
+  {
+    try {
+      return func.calculate(p, r);
+    }
+    catch(Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /* Calculates the Jacobian with respect to the scaled parameters. The
+     step is taken backwards at the upper limit of the range. */
+  private Matrix jacobian()
+  {
+    final double[][] J = new double[nres][nparam];
+    if (func instanceof JacobianFunc)
+    {
+      try {
+        ((JacobianFunc)func).calculate(p, new double[nres], J);
+      }
+      catch(Exception e)
+      {
+        throw new RuntimeException(e);
+      }
+      for (int i=0; i<nres; i++)
+      {
+        for (int j=0; j<nparam; j++)
+        {
+          J[i][j] *= dp[j];
+        }
+      }
+      return new Matrix(J);
+    }
+    ArrayList<Callable<Void>> list = new ArrayList<Callable<Void>>(nparam);
+    for (int j=0; j<nparam; j++)
+    {
+      final int col = j;
+      list.add(new Callable<Void>() {
+        public Void call() throws Exception
+        {
+          double[] p2 = p.clone();
+          double[] r2 = new double[nres];
+          double h = STEP;
+          if (dp[col] == 0)
+          {
+            return null;
+          }
+          if (p[col] + h*dp[col] > p_max[col])
+          {
+            h = -h;
+          }
+          p2[col] = p[col] + h*dp[col];
+          func.calculate(p2, r2);
+          for (int i=0; i<nres; i++)
+          {
+            J[i][col] = (r2[i] - r[i])/h;
+          }
+          return null;
+        }
+      });
+    }
+    ComputeScheduler.invokeAll(executor_service, list);
+    return new Matrix(J);
+  }
+
+  /* Solves the damped normal equations, with the fixed parameters
+     excluded. Returns null if the equations are singular. */
+  private Matrix solve(Matrix A, Matrix g, boolean[] fixed)
+  {
+    Matrix M = A.copy();
+    Matrix b = g.copy();
+    for (int j=0; j<nparam; j++)
+    {
+      if (fixed != null && fixed[j])
+      {
+        for (int k=0; k<nparam; k++)
+        {
+          M.set(j, k, 0);
+          M.set(k, j, 0);
+        }
+        M.set(j, j, 1);
+        b.set(j, 0, 0);
+      }
+      else
+      {
+        M.set(j, j, A.get(j, j) + mu*Math.max(A.get(j, j), Double.MIN_NORMAL));
+      }
+    }
+    try {
+      return M.solve(b);
+    }
+    catch(RuntimeException e)
+    {
+      return null;
+    }
+  }
+
+  public boolean converged()
+  {
+    return converged;
+  }
+
+  public void iteration()
+  {
+    E_prev = E;
+    if (converged || nparam == 0)
+    {
+      converged = true;
+      return;
+    }
+    Matrix J = jacobian();
+    Matrix Jt = J.transpose();
+    Matrix A = Jt.times(J);
+    Matrix g = Jt.times(new Matrix(r, nres));
+    double[] r2 = new double[nres];
+    for (;;)
+    {
+      double[] p2 = new double[nparam];
+      boolean moved = false;
+      Matrix delta = solve(A, g, null);
+      if (delta != null)
+      {
+        /*
+           A parameter at the limit of its range that the step would push
+           out of the range is kept fixed, and the step of the others is
+           solved again. Otherwise clamping would spoil the step whenever
+           the optimum lies at a limit.
+         */
+        boolean[] fixed = new boolean[nparam];
+        boolean anyFixed = false;
+        for (int j=0; j<nparam; j++)
+        {
+          double step = -delta.get(j, 0);
+          if ((p[j] <= p_min[j] && step < 0) || (p[j] >= p_max[j] && step > 0))
+          {
+            fixed[j] = true;
+            anyFixed = true;
+          }
+        }
+        if (anyFixed)
+        {
+          delta = solve(A, g, fixed);
+        }
+      }
+      if (delta != null)
+      {
+        for (int j=0; j<nparam; j++)
+        {
+          p2[j] = p[j] - delta.get(j, 0)*dp[j];
+          p2[j] = Math.max(p_min[j], Math.min(p_max[j], p2[j]));
+          if (p2[j] != p[j])
+          {
+            moved = true;
+          }
+        }
+        if (!moved)
+        {
+          converged = true;
+          return;
+        }
+        double E2 = evaluate(p2, r2);
+        if (E2 < E)
+        {
+          p = p2;
+          r = r2;
+          E = E2;
+          mu = Math.max(mu/10, MU_MIN);
+          return;
+        }
+      }
+      mu *= 10;
+      if (mu > MU_MAX)
+      {
+        converged = true;
+        return;
+      }
+    }
+  }
+
+  public double[] bestIndividual()
+  {
+    return p.clone();
+  }
+  public double[] medianIndividual()
+  {
+    return p.clone();
+  }
+  public double bestFittingError()
+  {
+    return E;
+  }
+  public double medianFittingError()
+  {
+    return E;
+  }
+  public double worstFittingError()
+  {
+    return E_prev;
+  }
+};
@@ -17,6 +17,7 @@ public class LayerPlotter extends Plotter implements ListDataListener {
     private LayerStack stack;
     private volatile LayerStack tempStack;
     private GraphData data;
+    private final IncrementalSimulation incremental = new IncrementalSimulation();
 
     /** Creates an automatic plotting thread
      * 
@@ -70,6 +71,6 @@ public class LayerPlotter extends Plotter implements ListDataListener {
     /** Performs a simulation of a LayerStack to get simulation data.
      */
     protected GraphData getData() {
-        return data.simulate(this.tempStack).normalize(tempStack).convertToDB(); /* data.simulate(...) is thread safe */
+        return data.simulate(this.tempStack, incremental).normalize(tempStack).convertToDB(); /* data.simulate(...) is thread safe */
     }
 }
@@ -36,6 +36,16 @@ import fi.iki.jmtilli.javaxmlfrag.*;
  * LayerStack supports fencode serialization. Of course, listeners are not
  * stored in fencode structures.
  *
+ * <p>
+ *
+ * A contiguous range of layers may be marked as a repeat block, which means
+ * that the sample contains the block the given number of times in
+ * succession. Only one period is stored in the layer list, so the layers of
+ * the block are edited and fitted only once. The simulation code calculates
+ * the block with a matrix power instead of layer by layer where possible;
+ * other code can get an equivalent layer stack without a repeat block from
+ * the unroll method.
+ *
  */
 
 public class LayerStack implements LayerListener, ValueListener, XMLRowable {
@@ -53,6 +63,11 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
 
     private LookupTable table;
 
+    /* the repeat block, repeatCount == 1 if there is none */
+    private int repeatFirst = 0;
+    private int repeatLast = -1;
+    private int repeatCount = 1;
+
     public double[] getFitValuesForFitting(FitValue.FitValueType type)
     {
       double[] result = new double[3+3*layers.size()];
@@ -125,6 +140,12 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
       {
         return false;
       }
+      if (   this.repeatFirst != that.repeatFirst
+          || this.repeatLast != that.repeatLast
+          || this.repeatCount != that.repeatCount)
+      {
+        return false;
+      }
       Map<FitValue,Integer> this_numbering = this.getFitValueNumbering();
       Map<FitValue,Integer> that_numbering = that.getFitValueNumbering();
       for (int i = 0; i < this.layers.size(); i++)
@@ -240,6 +261,10 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         public String getElementAt(int i) {
             Map<FitValue,Integer> fitValueNumbering = getFitValueNumbering();
             Layer l = layers.get(i);
+            if (hasRepeat() && i >= repeatFirst && i <= repeatLast)
+            {
+                return "[x" + repeatCount + "] " + l.toString(fitValueNumbering);
+            }
             return l.toString(fitValueNumbering);
         }
     };
@@ -435,6 +460,7 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         result.prod.deepCopyFrom(this.prod.deepCopy());
         result.beam.deepCopyFrom(this.beam.deepCopy());
         result.sum.deepCopyFrom(this.sum.deepCopy());
+        result.copyRepeat(this);
         if (this.stddev == val)
         {
             val2 = result.stddev; 
@@ -461,68 +487,31 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
     {
         final LayerStack ls = this;
         double min = val.getMin(), max = val.getMax();
-        int cpus = Runtime.getRuntime().availableProcessors();
-        ExecutorService exec =
-            new ThreadPoolExecutor(cpus, cpus, 1, TimeUnit.SECONDS,
-                                   new LinkedBlockingQueue<Runnable>());
-        try
+        if (mids.length != errs.length)
         {
-            if (mids.length != errs.length)
-            {
-                throw new IllegalArgumentException();
-            }
-            ArrayList<Callable<Void>> list = new ArrayList<Callable<Void>>();
-            for (int i = 0; i < mids.length; i++)
-            {
-                final int finalI = i;
-                final double mid = min + (max-min)/(mids.length-1) * i;
-                mids[i] = mid;
-                list.add(new Callable<Void>() {
-                    public Void call() throws Exception
-                    {
-                        LayerStack.Pair pair = ls.deepCopy(val);
-                        LayerStack ls = pair.stack;
-                        FitValue val = pair.value;
-                        val.setExpected(mid);
-                        GraphData gd2 = gd.simulate(ls).normalize(ls);
-                        double err = func.getError(gd2.meas, gd2.simul);
-                        errs[finalI] = err;
-                        return null;
-                    }
-                });
-            }
-            for (;;)
-            {
-                try
-                {
-                    for (Future f: exec.invokeAll(list))
-                    {
-                      try
-                      {
-                          f.get();
-                      }
-                      catch(ExecutionException e)
-                      {
-                        // XXX: what to do?
-                        throw new RuntimeException(e);
-                      }
-                      catch(CancellationException e)
-                      {
-                        // XXX: what to do?
-                        throw new RuntimeException(e);
-                      }
-                    }
-                    return;
-                }
-                catch (InterruptedException ex)
-                {
-                }
-            }
+            throw new IllegalArgumentException();
         }
-        finally
+        ArrayList<Callable<Void>> list = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < mids.length; i++)
         {
-            exec.shutdown();
+            final int finalI = i;
+            final double mid = min + (max-min)/(mids.length-1) * i;
+            mids[i] = mid;
+            list.add(new Callable<Void>() {
+                public Void call() throws Exception
+                {
+                    LayerStack.Pair pair = ls.deepCopy(val);
+                    LayerStack ls = pair.stack;
+                    FitValue val = pair.value;
+                    val.setExpected(mid);
+                    GraphData gd2 = gd.simulate(ls).normalize(ls);
+                    double err = func.getError(gd2.meas, gd2.simul);
+                    errs[finalI] = err;
+                    return null;
+                }
+            });
         }
+        ComputeScheduler.invokeAll(ComputeScheduler.pool(), list);
     }
 
     /** Deep copy.
@@ -545,6 +534,104 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         result.prod.deepCopyFrom(this.prod.deepCopy());
         result.beam.deepCopyFrom(this.beam.deepCopy());
         result.sum.deepCopyFrom(this.sum.deepCopy());
+        result.copyRepeat(this);
+        return result;
+    }
+
+    private void copyRepeat(LayerStack s2) {
+        this.repeatFirst = s2.repeatFirst;
+        this.repeatLast = s2.repeatLast;
+        this.repeatCount = s2.repeatCount;
+    }
+
+    /** Tests whether this layer stack has a repeat block. */
+    public boolean hasRepeat() {
+        return repeatCount > 1;
+    }
+    /** Returns the index of the uppermost layer of the repeat block. */
+    public int getRepeatFirst() {
+        return repeatFirst;
+    }
+    /** Returns the index of the lowermost layer of the repeat block. */
+    public int getRepeatLast() {
+        return repeatLast;
+    }
+    /** Returns the number of periods in the repeat block, 1 if none. */
+    public int getRepeatCount() {
+        return repeatCount;
+    }
+
+    /** Sets the repeat block.
+     *
+     * <p>
+     *
+     * The layers first..last (inclusive) form one period of a block that
+     * is repeated count times in the sample. The upper interface of the
+     * uppermost repetition is between the layer above the block and the
+     * first layer, the other repetitions have an interface between the
+     * last and the first layer. The roughness of the first layer is used
+     * for both.
+     *
+     * @param first the index of the uppermost layer of the block
+     * @param last the index of the lowermost layer of the block
+     * @param count the number of periods, 1 to remove the repeat block
+     *
+     * @throws IllegalArgumentException if the range or count is invalid
+     */
+    public void setRepeat(int first, int last, int count) {
+        if (count < 1 || first < 0 || first > last || last >= getSize())
+        {
+            throw new IllegalArgumentException("invalid repeat block");
+        }
+        if (count == 1)
+        {
+            first = 0;
+            last = -1;
+        }
+        this.repeatFirst = first;
+        this.repeatLast = last;
+        this.repeatCount = count;
+        invalidate(null);
+    }
+
+    /** Removes the repeat block. The layers of one period remain. */
+    public void clearRepeat() {
+        if (hasRepeat())
+        {
+            this.repeatFirst = 0;
+            this.repeatLast = -1;
+            this.repeatCount = 1;
+            invalidate(null);
+        }
+    }
+
+    /** Returns an equivalent layer stack without a repeat block.
+     *
+     * <p>
+     *
+     * If this layer stack has no repeat block, this object is returned.
+     * Otherwise a deep copy is returned where the layers of the block
+     * appear repeatCount times in succession. The repetitions are the same
+     * Layer objects, so the result is meant for simulation and other read-only
+     * purposes.
+     *
+     * @return a layer stack without a repeat block
+     */
+    public LayerStack unroll() {
+        if (!hasRepeat())
+        {
+            return this;
+        }
+        LayerStack result = deepCopy();
+        List<Layer> period = new ArrayList<Layer>(
+            result.layers.subList(repeatFirst, repeatLast+1));
+        for (int i = 1; i < repeatCount; i++)
+        {
+            result.layers.addAll(repeatLast+1, period);
+        }
+        result.repeatFirst = 0;
+        result.repeatLast = -1;
+        result.repeatCount = 1;
         return result;
     }
 
@@ -577,6 +664,13 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         m.put("beam", beam.structExport());
         m.put("sum", sum.structExport());
         m.put("measSum",0.0);
+        if(hasRepeat()) {
+            Map<String,Object> rm = new HashMap<String,Object>();
+            rm.put("first",repeatFirst);
+            rm.put("last",repeatLast);
+            rm.put("count",repeatCount);
+            m.put("repeat",rm);
+        }
         if(additional_data != null)
             m.put("additional_data",additional_data);
         return m;
@@ -597,6 +691,13 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         {
             fl.add("layer").setThisRow(l.xmlRowable(fitValueNumbering, alreadyAdded));
         }
+        if (hasRepeat())
+        {
+            DocumentFragment fr = f.set("repeat");
+            fr.setAttrInt("first", repeatFirst);
+            fr.setAttrInt("last", repeatLast);
+            fr.setAttrInt("count", repeatCount);
+        }
     }
 
     public LayerStack(DocumentFragment f, LookupTable table)
@@ -618,6 +719,23 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         for(Layer l: order) {
             this.layers.add(l);
         }
+        DocumentFragment repeatNode = f.get("repeat");
+        if (repeatNode != null)
+        {
+            int first = repeatNode.getAttrIntNotNull("first");
+            int last = repeatNode.getAttrIntNotNull("last");
+            int count = repeatNode.getAttrIntNotNull("count");
+            if (count < 1 || first < 0 || first > last || last >= getSize())
+            {
+                throw new XMLException("invalid repeat block");
+            }
+            if (count > 1)
+            {
+                this.repeatFirst = first;
+                this.repeatLast = last;
+                this.repeatCount = count;
+            }
+        }
     }
 
     /** Imports a layer stack from its fencodeable structure representation.
@@ -715,6 +833,28 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         for(Object o2: layersL) {
             temp.layers.add(Layer.structImport(o2, fitValueById, table, lambda));
         }
+
+        obj = m.get("repeat");
+        if(obj != null) {
+            Map<?,?> rm;
+            if(!(obj instanceof Map))
+                throw new InvalidStructException();
+            rm = (Map<?,?>)obj;
+            if(!(rm.get("first") instanceof Integer)
+               || !(rm.get("last") instanceof Integer)
+               || !(rm.get("count") instanceof Integer))
+                throw new InvalidStructException("invalid repeat block");
+            int first = (Integer)rm.get("first");
+            int last = (Integer)rm.get("last");
+            int count = (Integer)rm.get("count");
+            if(count < 1 || first < 0 || first > last || last >= temp.getSize())
+                throw new InvalidStructException("invalid repeat block");
+            if(count > 1) {
+                temp.repeatFirst = first;
+                temp.repeatLast = last;
+                temp.repeatCount = count;
+            }
+        }
         return temp;
     }
     /** Deep copy from an object.
@@ -732,6 +872,7 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
             signalStackChange(new ListDataEvent(this, ListDataEvent.INTERVAL_REMOVED, 0, getSize()-1));
         this.layers = temp.layers;
         this.lambda = temp.lambda;
+        copyRepeat(temp);
         this.stddev.deepCopyFrom(temp.stddev);
         this.prod.deepCopyFrom(temp.prod);
         this.beam.deepCopyFrom(temp.beam);
@@ -801,6 +942,13 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
             throw new NullPointerException();
         l.updateWlData(this.table, this.lambda);
         this.layers.add(i, l);
+        if (hasRepeat() && i <= repeatLast)
+        {
+            /* inserted above the block or into it */
+            if (i <= repeatFirst)
+                repeatFirst++;
+            repeatLast++;
+        }
         signalStackChange(new ListDataEvent(this, ListDataEvent.INTERVAL_ADDED, i, i));
     }
     /** Removes a layer from this stack.
@@ -809,6 +957,18 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
      */
     public void remove(int i) {
         this.layers.remove(i);
+        if (hasRepeat() && i <= repeatLast)
+        {
+            if (i < repeatFirst)
+                repeatFirst--;
+            repeatLast--;
+            if (repeatLast < repeatFirst)
+            {
+                repeatFirst = 0;
+                repeatLast = -1;
+                repeatCount = 1;
+            }
+        }
         signalStackChange(new ListDataEvent(this, ListDataEvent.INTERVAL_REMOVED, i, i));
     }
     /** Moves a layer up.
@@ -821,6 +981,7 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         if(i <= 0)
             throw new IndexOutOfBoundsException();
         layers.add(i-1,layers.remove(i));
+        repeatMoved(i-1, i);
         signalStackChange(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, i-1, i));
     }
     public void moveUp(int low, int high) {
@@ -830,6 +991,7 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         {
             layers.add(i-1,layers.remove(i));
         }
+        repeatMoved(low-1, high-1);
         signalStackChange(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, low-1, high-1));
     }
     /** Moves a layer down.
@@ -842,6 +1004,7 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         if(i >= getSize()-1)
             throw new IndexOutOfBoundsException();
         layers.add(i+1,layers.remove(i));
+        repeatMoved(i, i+1);
         signalStackChange(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, i, i+1));
     }
     public void moveDown(int low, int high) {
@@ -851,8 +1014,22 @@ public class LayerStack implements LayerListener, ValueListener, XMLRowable {
         {
             layers.add(i+1,layers.remove(i));
         }
+        repeatMoved(low, high);
         signalStackChange(new ListDataEvent(this, ListDataEvent.CONTENTS_CHANGED, low, high));
     }
+    /* Layers low..high have been reordered. Layers moved across the
+     * boundary of the repeat block would change its contents, so the block
+     * is removed in that case. */
+    private void repeatMoved(int low, int high) {
+        if (!hasRepeat() || high < repeatFirst || low > repeatLast)
+            return;
+        if (low >= repeatFirst && high <= repeatLast)
+            return;
+        repeatFirst = 0;
+        repeatLast = -1;
+        repeatCount = 1;
+    }
+
     /** Signals a change of the layer stack to all listeners.
      *
      * <p>
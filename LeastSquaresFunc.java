@@ -0,0 +1,21 @@
+/** A fitting error function that is a sum of squared residuals.
+ *
+ * The fitting error returned by getError must be an increasing function of
+ * the sum of the squares of the residuals, so that local optimizers such as
+ * Levenberg-Marquardt minimize the fitting error by minimizing the sum of
+ * squares. The p-norm functions achieve this by raising the differences to
+ * the power p/2, keeping their signs.
+ */
+public interface LeastSquaresFunc extends FittingErrorFunc {
+  /** Calculates the residuals.
+   *
+   * The residuals of the points ignored by getError are 0. Residual i
+   * depends only on meas[i] and simul[i].
+   *
+   * @param meas the measured values
+   * @param simul the simulated values
+   * @param residuals an array of meas.length elements where the residuals
+   * are stored
+   */
+  public void getResiduals(double[] meas, double[] simul, double[] residuals);
+};
@@ -1,4 +1,4 @@
-public class LogFittingErrorFunc implements FittingErrorFunc {
+public class LogFittingErrorFunc implements LeastSquaresFunc {
   private int p;
   public LogFittingErrorFunc(int p)
   {
@@ -68,6 +68,24 @@ public class LogFittingErrorFunc implements FittingErrorFunc {
       return sum / Math.exp(Math.log(count)*1.0/p);
     }
   }
+  public void getResiduals(double[] meas, double[] simul, double[] residuals)
+  {
+    if (meas.length != simul.length || residuals.length != meas.length)
+    {
+      throw new IllegalArgumentException();
+    }
+    for (int i=0; i<meas.length; i++)
+    {
+      double x;
+      if (meas[i] <= 0 || simul[i] <= 0)
+      {
+        residuals[i] = 0;
+        continue;
+      }
+      x = 10*Math.log(meas[i])/Math.log(10) - 10*Math.log(simul[i])/Math.log(10);
+      residuals[i] = p == 2 ? x : Math.signum(x)*Math.pow(Math.abs(x), p/2.0);
+    }
+  }
   public static void main(String[] args)
   {
     /*
@@ -0,0 +1,18 @@
+/** An iterative optimizer of fitting parameters.
+ *
+ * The fitting context runs an optimizer one iteration at a time and reads
+ * the fitting errors after each iteration to report progress and to decide
+ * when to stop. Population-based optimizers report the best, median and
+ * worst individuals of the population. Optimizers that improve a single
+ * parameter vector report the current vector as the best and the median
+ * and the fitting error before the last iteration as the worst, so that
+ * the relative spread of the errors measures the progress.
+ */
+public interface Optimizer {
+  public void iteration();
+  public double[] bestIndividual();
+  public double[] medianIndividual();
+  public double bestFittingError();
+  public double medianFittingError();
+  public double worstFittingError();
+};
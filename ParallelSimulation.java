@@ -0,0 +1,212 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Simulation of a single reflectivity curve on multiple cores.
+ *
+ * <p>
+ *
+ * The reflectivity at each angle of incidence is independent of the other
+ * angles, so the angles are split into contiguous chunks that are simulated
+ * concurrently, each chunk running the full layer recursion with its own
+ * workspace. The unconvolved reflectivities of all chunks are collected into
+ * one array before the resolution filter is applied, so the filter sees the
+ * neighbouring angles across chunk boundaries and the result is identical
+ * to a sequential simulation. Direct convolution is split into chunks as
+ * well; FFT convolution is fast enough to be done sequentially.
+ *
+ * <p>
+ *
+ * Small problems are simulated sequentially, because splitting them costs
+ * more than it saves.
+ *
+ * <p>
+ *
+ * This is meant for interactive use where a single curve is simulated at a
+ * time, such as plotting. Fitting already uses all cores by evaluating
+ * multiple curves concurrently.
+ *
+ * <p>
+ *
+ * ParallelSimulation objects are thread safe, but simulations using the
+ * same object are serialized.
+ *
+ */
+public class ParallelSimulation {
+    /* angles times layers below which the curve is simulated sequentially */
+    private static final int MIN_WORK = 50000;
+    /* minimum number of angles in a chunk */
+    private static final int MIN_CHUNK = 64;
+
+    private final ForkJoinPool pool;
+    private final SimulationWorkspace ws = new SimulationWorkspace();
+
+    /* chunking of the most recently used plan */
+    private SimulationPlan plan;
+    private int[] offsets;
+    private SimulationPlan[] chunkPlans;
+    private SimulationWorkspace[] chunkWorkspaces;
+
+    /** Creates a parallel simulation using the shared pool of
+     * ComputeScheduler.
+     */
+    public ParallelSimulation() {
+        this(null);
+    }
+
+    /** Creates a parallel simulation.
+     *
+     * @param pool the pool that runs the chunks, or null for the shared
+     * pool of ComputeScheduler
+     */
+    public ParallelSimulation(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Returns a simulation plan for the given angles.
+     *
+     * The plan of the previous call is reused if the angles are identical,
+     * which also keeps the chunking of the plan.
+     *
+     * @param alpha0rad angles of incidence in radians
+     * @return a plan for the angles
+     */
+    public synchronized SimulationPlan plan(double[] alpha0rad) {
+        return ws.plan(alpha0rad);
+    }
+
+    private ForkJoinPool pool() {
+        return pool != null ? pool : ComputeScheduler.pool();
+    }
+
+    /* Splits the angles of a plan into chunks, unless already done. */
+    private void chunk(SimulationPlan plan, ForkJoinPool pool) {
+        int n = plan.size();
+        int nchunks = Math.max(1, Math.min(pool.getParallelism(), n/MIN_CHUNK));
+        if (plan == this.plan && nchunks == chunkPlans.length)
+        {
+            return;
+        }
+        offsets = new int[nchunks+1];
+        chunkPlans = new SimulationPlan[nchunks];
+        chunkWorkspaces = new SimulationWorkspace[nchunks];
+        for (int c = 0; c < nchunks; c++)
+        {
+            offsets[c+1] = (int)((long)n*(c+1)/nchunks);
+            chunkPlans[c] = new SimulationPlan(
+                Arrays.copyOfRange(plan.alpha0rad, offsets[c], offsets[c+1]));
+            chunkWorkspaces[c] = new SimulationWorkspace();
+        }
+        this.plan = plan;
+    }
+
+    /** Simulates the layers of a layer stack.
+     *
+     * The ambient layer (air) is included automatically in the simulation.
+     * A repeat block is simulated layer by layer. The simulation kernel is
+     * SimulationKernel.getDefault().
+     * The layer stack must not be empty and must not be modified by other
+     * threads during the simulation.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param layers the layer stack to simulate
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     */
+    public synchronized void simulate(SimulationPlan plan, LayerStack layers, double[] result) {
+        layers = layers.unroll();
+        ws.ensureLayers(layers.getSize()+1);
+        XRRSimul.layerArrays(layers, ws.delta, ws.beta, ws.d, ws.r);
+        simulate(plan, SimulationKernel.getDefault(), ws.delta, ws.beta, ws.d, ws.r,
+                 layers.getLambda(), layers.getStdDev().getExpected(),
+                 layers.getBeam().getExpected(), result);
+    }
+
+    /** Simulates layers given as arrays.
+     *
+     * The parameters are the same as in the simulation kernels of XRRSimul.
+     * The arrays must not be modified during the simulation.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param kernel the simulation kernel to run for each chunk
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     */
+    public synchronized void simulate(SimulationPlan plan,
+                                      final SimulationKernel kernel,
+                                      final double[] delta, final double[] beta,
+                                      final double[] d, final double[] r,
+                                      final double lambda, double stddevrad,
+                                      final double beam, final double[] result)
+    {
+        final int n = plan.size();
+        final ForkJoinPool pool = pool();
+        if ((long)n*d.length < MIN_WORK || pool.getParallelism() <= 1)
+        {
+            kernel.simulate(plan, ws, delta, beta, d, r, lambda, stddevrad,
+                            beam, result);
+            return;
+        }
+        chunk(plan, pool);
+        if (chunkPlans.length == 1)
+        {
+            kernel.simulate(plan, ws, delta, beta, d, r, lambda, stddevrad,
+                            beam, result);
+            return;
+        }
+
+        final double[] filter = plan.filter(stddevrad);
+        ws.ensureAngles(n);
+        final double[] R2 = filter != null ? ws.R2 : result;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int c = 0; c < chunkPlans.length; c++)
+        {
+            final SimulationPlan chunkPlan = chunkPlans[c];
+            final SimulationWorkspace chunkWs = chunkWorkspaces[c];
+            final int offset = offsets[c];
+            tasks.add(new Callable<Void>() {
+                public Void call()
+                {
+                    double[] out = chunkWs.output(chunkPlan.size());
+                    /* unconvolved, the filter is applied to all chunks */
+                    kernel.simulate(chunkPlan, chunkWs, delta, beta, d, r,
+                                    lambda, 0, beam, out);
+                    System.arraycopy(out, 0, R2, offset, out.length);
+                    return null;
+                }
+            });
+        }
+        ComputeScheduler.invokeAll(pool, tasks);
+        if (filter == null)
+        {
+            return;
+        }
+
+        FFTConvolver conv = plan.fftConvolver(stddevrad);
+        if (conv != null)
+        {
+            ws.ensureFFT(conv.getSize());
+            conv.apply(R2, result, ws.fft_re, ws.fft_im);
+            return;
+        }
+        tasks.clear();
+        for (int c = 0; c < chunkPlans.length; c++)
+        {
+            final int from = offsets[c], to = offsets[c+1];
+            tasks.add(new Callable<Void>() {
+                public Void call()
+                {
+                    XRRSimul.applyOddFilter(filter, R2, n, from, to, result);
+                    return null;
+                }
+            });
+        }
+        ComputeScheduler.invokeAll(pool, tasks);
+    }
+}
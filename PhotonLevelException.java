@@ -0,0 +1,16 @@
+/** The photon level is too low for a bootstrap with Poisson noise.
+ *
+ * Thrown when the fitted curve has more photons than GraphData.addNoise
+ * can count at the given photon level.
+ *
+ */
+
+public class PhotonLevelException extends Exception {
+    /** Constructor
+     *
+     * @param s An English message intended to be shown to the user.
+     */
+    public PhotonLevelException(String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,20 @@
+/** An optimizer that evolves a population of parameter vectors.
+ *
+ * The population can be read, for example to start another optimization of
+ * similar data from it. If the cost function changes during the
+ * optimization, the fitting errors of the population must be calculated
+ * again so that old errors are not compared with new ones.
+ *
+ * An asynchronous optimizer may go on calculating costs in the background
+ * after iteration() returns, so the cost function may only be changed
+ * after finishEvaluations().
+ */
+public interface PopulationOptimizer extends Optimizer {
+  /* waits until no costs are being calculated until the next iteration */
+  public void finishEvaluations();
+  public void recalculateFittingErrors();
+  /* the individuals sorted from the best to the worst */
+  public double[][] population();
+  /* the fitting errors of the individuals of population() */
+  public double[] fittingErrors();
+};
@@ -1,4 +1,4 @@
-public class RelChi2FittingErrorFunc implements FittingErrorFunc {
+public class RelChi2FittingErrorFunc implements LeastSquaresFunc {
   private double threshold;
   public RelChi2FittingErrorFunc(double threshold)
   {
@@ -36,6 +36,29 @@ public class RelChi2FittingErrorFunc implements FittingErrorFunc {
     }
     return Math.sqrt(E*1.0/count);
   }
+  public void getResiduals(double[] meas, double[] simul, double[] residuals)
+  {
+    if (meas.length != simul.length || residuals.length != meas.length)
+    {
+      throw new IllegalArgumentException();
+    }
+    for (int i=0; i<meas.length; i++)
+    {
+      if (meas[i] <= 0 || simul[i] <= 0)
+      {
+        residuals[i] = 0;
+        continue;
+      }
+      if (meas[i] < threshold)
+      {
+        residuals[i] = (meas[i]-simul[i])/Math.sqrt(meas[i]);
+      }
+      else
+      {
+        residuals[i] = (meas[i]-simul[i])/(meas[i]/Math.sqrt(threshold));
+      }
+    }
+  }
   public static void main(String[] args)
   {
     /*
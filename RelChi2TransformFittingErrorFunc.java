@@ -1,4 +1,4 @@
-public class RelChi2TransformFittingErrorFunc implements FittingErrorFunc {
+public class RelChi2TransformFittingErrorFunc implements LeastSquaresFunc {
   private double threshold;
   private double A;
   private double B;
@@ -73,6 +73,19 @@ public class RelChi2TransformFittingErrorFunc implements FittingErrorFunc {
       return sum / Math.exp(Math.log(count)*1.0/p);
     }
   }
+  public void getResiduals(double[] meas, double[] simul, double[] residuals)
+  {
+    if (meas.length != simul.length || residuals.length != meas.length)
+    {
+      throw new IllegalArgumentException();
+    }
+    for (int i=0; i<meas.length; i++)
+    {
+      double x;
+      x = transform(meas[i]) - transform(simul[i]);
+      residuals[i] = p == 2 ? x : Math.signum(x)*Math.pow(Math.abs(x), p/2.0);
+    }
+  }
   public static void main(String[] args)
   {
     /*
@@ -1,4 +1,4 @@
-public class RelFittingErrorFunc implements FittingErrorFunc {
+public class RelFittingErrorFunc implements LeastSquaresFunc {
   public RelFittingErrorFunc()
   {
   }
@@ -23,6 +23,22 @@ public class RelFittingErrorFunc implements FittingErrorFunc {
     }
     return Math.sqrt(E*1.0/count);
   }
+  public void getResiduals(double[] meas, double[] simul, double[] residuals)
+  {
+    if (meas.length != simul.length || residuals.length != meas.length)
+    {
+      throw new IllegalArgumentException();
+    }
+    for (int i=0; i<meas.length; i++)
+    {
+      if (meas[i] <= 0 || simul[i] <= 0)
+      {
+        residuals[i] = 0;
+        continue;
+      }
+      residuals[i] = (meas[i]-simul[i])/meas[i];
+    }
+  }
   public static void main(String[] args)
   {
     /*
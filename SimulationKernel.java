@@ -0,0 +1,165 @@
+/** Enumeration of the simulation kernels.
+ *
+ * All kernels calculate the same reflectivity curve, apart from rounding
+ * errors. They differ only in how the calculation is organized for the CPU,
+ * so which one is the fastest depends on the JVM, the CPU and the problem
+ * size. AUTO is not a kernel of its own but runs the kernel that
+ * KernelCalibration has measured to be the fastest.
+ *
+ * <p>
+ *
+ * The float kernel is the exception: it calculates in single precision and
+ * is meant only for the early phase of a fit, so AUTO never selects it.
+ * The complex and complexbuffer kernels allocate their arrays on every call
+ * and are included mainly for comparison.
+ */
+public enum SimulationKernel {
+    SCALAR("scalar") {
+        public void simulate(SimulationPlan plan, SimulationWorkspace ws,
+                             double[] delta, double[] beta, double[] d,
+                             double[] r, double lambda, double stddevrad,
+                             double beam, double[] result)
+        {
+            XRRSimul.rawSimulateComplexBufferArray(plan, ws, delta, beta, d, r,
+                                                   lambda, stddevrad, beam,
+                                                   result);
+        }
+    },
+    VECTOR("vector") {
+        public void simulate(SimulationPlan plan, SimulationWorkspace ws,
+                             double[] delta, double[] beta, double[] d,
+                             double[] r, double lambda, double stddevrad,
+                             double beam, double[] result)
+        {
+            XRRSimul.rawSimulateVector(plan, ws, delta, beta, d, r,
+                                       lambda, stddevrad, beam, result);
+        }
+    },
+    INLINE("inline") {
+        public void simulate(SimulationPlan plan, SimulationWorkspace ws,
+                             double[] delta, double[] beta, double[] d,
+                             double[] r, double lambda, double stddevrad,
+                             double beam, double[] result)
+        {
+            XRRSimul.rawSimulate(plan, ws, delta, beta, d, r,
+                                 lambda, stddevrad, beam, result);
+        }
+    },
+    FLOAT("float") {
+        public void simulate(SimulationPlan plan, SimulationWorkspace ws,
+                             double[] delta, double[] beta, double[] d,
+                             double[] r, double lambda, double stddevrad,
+                             double beam, double[] result)
+        {
+            XRRSimul.rawSimulateFloat(plan, ws, delta, beta, d, r,
+                                      lambda, stddevrad, beam, result);
+        }
+    },
+    COMPLEX("complex") {
+        public void simulate(SimulationPlan plan, SimulationWorkspace ws,
+                             double[] delta, double[] beta, double[] d,
+                             double[] r, double lambda, double stddevrad,
+                             double beam, double[] result)
+        {
+            double[] R2 = XRRSimul.rawSimulateComplex(plan.alpha0rad, delta,
+                                                      beta, d, r, lambda,
+                                                      stddevrad, beam);
+            System.arraycopy(R2, 0, result, 0, R2.length);
+        }
+    },
+    COMPLEX_BUFFER("complexbuffer") {
+        public void simulate(SimulationPlan plan, SimulationWorkspace ws,
+                             double[] delta, double[] beta, double[] d,
+                             double[] r, double lambda, double stddevrad,
+                             double beam, double[] result)
+        {
+            double[] R2 = XRRSimul.rawSimulateComplexBuffer(plan.alpha0rad,
+                                                            delta, beta, d, r,
+                                                            lambda, stddevrad,
+                                                            beam);
+            System.arraycopy(R2, 0, result, 0, R2.length);
+        }
+    },
+    AUTO("auto") {
+        public SimulationKernel resolve(int nlayers, int points) {
+            return KernelCalibration.select(nlayers, points);
+        }
+        public void simulate(SimulationPlan plan, SimulationWorkspace ws,
+                             double[] delta, double[] beta, double[] d,
+                             double[] r, double lambda, double stddevrad,
+                             double beam, double[] result)
+        {
+            resolve(d.length, plan.size()).simulate(plan, ws, delta, beta, d,
+                                                    r, lambda, stddevrad,
+                                                    beam, result);
+        }
+    };
+
+    private static volatile SimulationKernel defaultKernel = SCALAR;
+
+    private final String name;
+    SimulationKernel(String name) {
+        this.name = name;
+    }
+    public String toString() {
+        return name;
+    }
+
+    /** Simulates a reflectivity curve.
+     *
+     * The parameters are the same as in the simulation kernels of XRRSimul
+     * that use a plan and a workspace.
+     */
+    public abstract void simulate(SimulationPlan plan, SimulationWorkspace ws,
+                                  double[] delta, double[] beta, double[] d,
+                                  double[] r, double lambda, double stddevrad,
+                                  double beam, double[] result);
+
+    /** Returns the kernel that runs simulations of the given size.
+     *
+     * This is the kernel itself, except for AUTO, which returns the fastest
+     * kernel. Resolving AUTO before starting many simulations makes sure any
+     * calibration is done before the simulations compete for the CPU.
+     *
+     * @param nlayers the number of layers including the ambient layer
+     * @param points the number of angles
+     * @return the kernel
+     */
+    public SimulationKernel resolve(int nlayers, int points) {
+        return this;
+    }
+
+    /** Returns the kernel used by GraphData.simulate and plotting. */
+    public static SimulationKernel getDefault() {
+        return defaultKernel;
+    }
+
+    /** Sets the kernel used by GraphData.simulate and plotting.
+     *
+     * @param kernel the new default kernel
+     */
+    public static void setDefault(SimulationKernel kernel) {
+        if (kernel == null)
+        {
+            throw new NullPointerException();
+        }
+        defaultKernel = kernel;
+    }
+
+    /** Finds a kernel by its name.
+     *
+     * @param name the name returned by toString
+     * @return the kernel
+     * @throws IllegalArgumentException if there is no kernel with the name
+     */
+    public static SimulationKernel forName(String name) {
+        for (SimulationKernel k: values())
+        {
+            if (k.name.equals(name))
+            {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("Unknown simulation kernel: "+name);
+    }
+};
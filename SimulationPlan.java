@@ -0,0 +1,136 @@
+/** Precomputed simulation data for an angle grid.
+ *
+ * <p>
+ *
+ * A simulation plan contains everything the simulation kernels of XRRSimul
+ * calculate from the angles of incidence alone: the angles in radians, their
+ * squares, the sines used for the footprint correction, the angular step and
+ * whether the angles are uniformly spaced. During fitting the angle grid
+ * never changes, so a plan is built once and shared by all cost function
+ * evaluations.
+ *
+ * <p>
+ *
+ * The Gaussian resolution filter depends on the instrument resolution as
+ * well. The plan caches the filter of the most recently used standard
+ * deviation, and for long filters also its Fourier transform.
+ *
+ * <p>
+ *
+ * SimulationPlan objects are immutable apart from the filter cache, which is
+ * thread safe. A plan may therefore be shared by any number of threads.
+ *
+ */
+public class SimulationPlan {
+    private static final double STDDEVS = 4;
+
+    final double[] alpha0rad;
+    final double[] alpha0sq;
+    final double[] sinAlpha0;
+    final double dalpha0rad;
+    final boolean uniform;
+
+    private static class FilterEntry {
+        final double stddevrad;
+        final double[] filter;
+        final FFTConvolver convolver;
+        FilterEntry(double stddevrad, double[] filter, FFTConvolver convolver) {
+            this.stddevrad = stddevrad;
+            this.filter = filter;
+            this.convolver = convolver;
+        }
+    }
+    private volatile FilterEntry filterEntry;
+
+    /** Creates a plan for angles of incidence given in radians.
+     *
+     * The array is copied, so it may be modified afterwards.
+     *
+     * @param alpha0rad angles of incidence in radians
+     */
+    public SimulationPlan(double[] alpha0rad) {
+        int n = alpha0rad.length;
+        this.alpha0rad = new double[n];
+        this.alpha0sq = new double[n];
+        this.sinAlpha0 = new double[n];
+        for(int i=0; i<n; i++) {
+            double alpha0 = alpha0rad[i];
+            this.alpha0rad[i] = alpha0;
+            this.alpha0sq[i] = alpha0*alpha0;
+            this.sinAlpha0[i] = Math.sin(alpha0);
+        }
+        this.dalpha0rad = n > 1 ? (alpha0rad[n-1] - alpha0rad[0])/(n-1) : 1;
+        this.uniform = n > 0 && XRRSimul.isUniformlySpaced(alpha0rad);
+    }
+
+    /** Creates a plan for angles of incidence given in degrees.
+     *
+     * @param alpha_0 angles of incidence in degrees
+     * @return a new plan
+     */
+    public static SimulationPlan fromDegrees(double[] alpha_0) {
+        double[] alpha0rad = new double[alpha_0.length];
+        for(int i=0; i<alpha0rad.length; i++) {
+            alpha0rad[i] = alpha_0[i]*Math.PI/180;
+        }
+        return new SimulationPlan(alpha0rad);
+    }
+
+    /** Returns the number of angles. */
+    public int size() {
+        return alpha0rad.length;
+    }
+
+    /** Tests whether this plan was made for the given angles.
+     *
+     * @param alpha0rad angles of incidence in radians
+     * @return true if the angles are identical to the angles of this plan
+     */
+    public boolean matches(double[] alpha0rad) {
+        return java.util.Arrays.equals(this.alpha0rad, alpha0rad);
+    }
+
+    /** Returns the resolution filter for an instrument resolution.
+     *
+     * Convolution is silently disabled if the angles are not uniformly
+     * spaced, just like in the simulation kernels.
+     *
+     * @param stddevrad standard deviation of angle in radians
+     * @return the odd Gaussian filter or null if no filtering is needed
+     */
+    public double[] filter(double stddevrad) {
+        return filterEntry(stddevrad).filter;
+    }
+
+    /** Returns the FFT convolver for an instrument resolution.
+     *
+     * The transformed filter is cached together with the filter.
+     *
+     * @param stddevrad standard deviation of angle in radians
+     * @return the convolver or null if the filter is short enough to be
+     * applied directly or if no filtering is needed
+     */
+    public FFTConvolver fftConvolver(double stddevrad) {
+        return filterEntry(stddevrad).convolver;
+    }
+
+    private FilterEntry filterEntry(double stddevrad) {
+        FilterEntry e = filterEntry;
+        if (e == null || e.stddevrad != stddevrad)
+        {
+            double[] filter = XRRSimul.gaussianFilter(dalpha0rad, stddevrad, STDDEVS);
+            FFTConvolver convolver = null;
+            if (filter != null && !uniform)
+            {
+                filter = null;
+            }
+            if (filter != null && FFTConvolver.useFFT(size(), filter.length))
+            {
+                convolver = new FFTConvolver(filter, size());
+            }
+            e = new FilterEntry(stddevrad, filter, convolver);
+            filterEntry = e;
+        }
+        return e;
+    }
+}
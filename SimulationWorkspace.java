@@ -0,0 +1,251 @@
+import fi.iki.jmtilli.javafastcomplex.*;
+
+/** Reusable scratch buffers for XRR simulation.
+ *
+ * <p>
+ *
+ * A simulation workspace owns all the temporary arrays needed by the
+ * simulation kernels of XRRSimul: the reflection coefficients, the
+ * unconvolved reflectivity, the z components of the wavevector, the FFT
+ * convolution buffers and the layer property arrays. The arrays are sized to
+ * the number of angles and the number of layers and are grown on demand, so that repeated simulations
+ * of the same problem do not allocate any memory.
+ *
+ * <p>
+ *
+ * The simulation plan of the most recently used angles is cached as well,
+ * so that callers that do not manage plans themselves still avoid
+ * recomputing the filter and the angle tables on every call.
+ *
+ * <p>
+ *
+ * SimulationWorkspace objects are not thread safe. Each thread must use its
+ * own workspace, for example by storing the workspace in a ThreadLocal.
+ *
+ */
+public class SimulationWorkspace {
+    /* angle-sized buffers */
+    double[] R_real, R_imag, R2;
+    double[][] kz_reals, kz_imags;
+    ComplexBufferArray R;
+    ComplexBufferArray[] kz;
+    final ComplexBuffer num = new ComplexBuffer(), den = new ComplexBuffer();
+    final ComplexBuffer ri = new ComplexBuffer();
+    final ComplexBuffer roughri = new ComplexBuffer();
+    final ComplexBuffer b = new ComplexBuffer();
+    final ComplexBuffer d_times_minus_two_i = new ComplexBuffer();
+
+    /* intermediate arrays of the vectorizable kernel */
+    double[] ri_real, ri_imag, ph_real, ph_imag, rough_real, rough_imag;
+
+    /* arrays of the single precision kernel */
+    float[] fR_real, fR_imag;
+    float[][] fkz_reals, fkz_imags;
+    float[] fri_real, fri_imag, fph_real, fph_imag, frough_real, frough_imag;
+
+    /* derivatives of the reflection coefficient for each parameter row and
+       the derivatives of one step of the derivative kernel */
+    double[][] D_real, D_imag;
+    double[] G_real, G_imag, dU_real, dU_imag, dV_real, dV_imag;
+    double[] dD_real, dD_imag, dS_real, dS_imag, dR2;
+
+    /* 2x2 complex matrices of the repeat block kernel */
+    final double[] m = new double[8], q = new double[8], p = new double[8];
+
+    /* FFT convolution buffers */
+    double[] fft_re, fft_im;
+
+    /* reusable result array */
+    private double[] output;
+
+    /* layer-sized buffers, the ambient layer included */
+    double[] delta, beta, d, r;
+
+    /* plan of the most recently simulated angles */
+    private SimulationPlan plan;
+
+    /** Creates an empty workspace.
+     *
+     * The buffers are allocated on first use.
+     */
+    public SimulationWorkspace() {
+        this(0, 0);
+    }
+
+    /** Creates a workspace for the given problem size.
+     *
+     * @param nangles the number of angles of incidence
+     * @param nlayers the number of layers, excluding the ambient layer
+     */
+    public SimulationWorkspace(int nangles, int nlayers) {
+        ensureAngles(nangles);
+        ensureLayers(nlayers+1);
+    }
+
+    /** Ensures that the angle-sized buffers have room for n angles.
+     *
+     * @param n the number of angles
+     */
+    void ensureAngles(int n) {
+        if (R2 != null && R2.length >= n)
+        {
+            return;
+        }
+        R_real = new double[n];
+        R_imag = new double[n];
+        R2 = new double[n];
+        kz_reals = new double[2][n];
+        kz_imags = new double[2][n];
+        R = null;
+        kz = null;
+    }
+
+    /** Ensures that the complex buffer arrays have room for n angles.
+     *
+     * @param n the number of angles
+     */
+    void ensureComplexAngles(int n) {
+        ensureAngles(n);
+        if (R != null && R.size() >= n)
+        {
+            return;
+        }
+        R = new ComplexBufferArray(R2.length);
+        kz = new ComplexBufferArray[2];
+        for (int i = 0; i < kz.length; i++)
+        {
+            kz[i] = new ComplexBufferArray(R2.length);
+        }
+    }
+
+    /** Ensures that the arrays of the vectorizable kernel have room for n
+     * angles.
+     *
+     * @param n the number of angles
+     */
+    void ensureVector(int n) {
+        ensureAngles(n);
+        if (ri_real != null && ri_real.length >= n)
+        {
+            return;
+        }
+        ri_real = new double[R2.length];
+        ri_imag = new double[R2.length];
+        ph_real = new double[R2.length];
+        ph_imag = new double[R2.length];
+        rough_real = new double[R2.length];
+        rough_imag = new double[R2.length];
+    }
+
+    /** Ensures that the arrays of the single precision kernel have room
+     * for n angles.
+     *
+     * @param n the number of angles
+     */
+    void ensureFloat(int n) {
+        ensureAngles(n);
+        if (fR_real != null && fR_real.length >= n)
+        {
+            return;
+        }
+        fR_real = new float[R2.length];
+        fR_imag = new float[R2.length];
+        fkz_reals = new float[2][R2.length];
+        fkz_imags = new float[2][R2.length];
+        fri_real = new float[R2.length];
+        fri_imag = new float[R2.length];
+        fph_real = new float[R2.length];
+        fph_imag = new float[R2.length];
+        frough_real = new float[R2.length];
+        frough_imag = new float[R2.length];
+    }
+
+    /** Ensures that the arrays of the derivative kernel have room for n
+     * angles and the given number of parameter rows.
+     *
+     * @param rows the number of parameter rows
+     * @param n the number of angles
+     */
+    void ensureJacobian(int rows, int n) {
+        ensureAngles(n);
+        if (D_real == null || D_real.length < rows || D_real[0].length < R2.length)
+        {
+            D_real = new double[rows][R2.length];
+            D_imag = new double[rows][R2.length];
+        }
+        if (G_real != null && G_real.length >= n)
+        {
+            return;
+        }
+        G_real = new double[R2.length];
+        G_imag = new double[R2.length];
+        dU_real = new double[R2.length];
+        dU_imag = new double[R2.length];
+        dV_real = new double[R2.length];
+        dV_imag = new double[R2.length];
+        dD_real = new double[R2.length];
+        dD_imag = new double[R2.length];
+        dS_real = new double[R2.length];
+        dS_imag = new double[R2.length];
+        dR2 = new double[R2.length];
+    }
+
+    /** Ensures that the FFT buffers have room for n values.
+     *
+     * @param n the transform size
+     */
+    void ensureFFT(int n) {
+        if (fft_re != null && fft_re.length >= n)
+        {
+            return;
+        }
+        fft_re = new double[n];
+        fft_im = new double[n];
+    }
+
+    /** Ensures that the layer property arrays have room for n layers.
+     *
+     * @param n the number of layers, including the ambient layer
+     */
+    void ensureLayers(int n) {
+        if (d != null && d.length == n)
+        {
+            return;
+        }
+        delta = new double[n];
+        beta = new double[n];
+        d = new double[n];
+        r = new double[n];
+    }
+
+    /** Returns a reusable result array of exactly n elements.
+     *
+     * The same array is returned by subsequent calls with the same n, so
+     * the contents must be consumed before the next simulation.
+     *
+     * @param n the number of angles
+     * @return the result array
+     */
+    double[] output(int n) {
+        if (output == null || output.length != n)
+        {
+            output = new double[n];
+        }
+        return output;
+    }
+
+    /** Returns a simulation plan for the given angles.
+     *
+     * The plan of the previous call is reused if the angles are identical.
+     *
+     * @param alpha0rad angles of incidence in radians
+     * @return a plan for the angles
+     */
+    SimulationPlan plan(double[] alpha0rad) {
+        if (plan == null || !plan.matches(alpha0rad))
+        {
+            plan = new SimulationPlan(alpha0rad);
+        }
+        return plan;
+    }
+}
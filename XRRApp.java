@@ -218,9 +218,14 @@ import fi.iki.jmtilli.javaxmlfrag.*;
 public class XRRApp extends JFrame implements ChooserWrapper {
     private File chooserDirectory = null;
     private FitterInterface f = null;
+    private FitCheckpoint resume = null; /* Checkpoint for the next fit to continue */
+    private double[][] fitPopulation = null; /* Final population of the last fit */
+    private LayerStack fitPopulationStack = null; /* The layer model and */
+    private GraphData fitPopulationData = null; /* the data of the last fit */
     private String measPath = null; /* Path of imported measurement file */
     private String hintPath = null; /* Path of measurement file from layer model */
     private final GraphData data;
+    private final ParallelSimulation parallel = new ParallelSimulation();
     private LookupTable table;
     private static final double Cu_K_alpha = 1.5405600e-10; /* This is the default wavelength */
     private Image green, yellow;
@@ -246,33 +251,19 @@ public class XRRApp extends JFrame implements ChooserWrapper {
 
     public FittingErrorFunc func()
     {
-        FitnessFunction func = (FitnessFunction)funcBox.getSelectedItem();
-        FittingErrorFunc func2;
-        double dBthreshold = (Double)thresholdModel.getNumber();
-        switch (func)
-        {
-          case relchi2:
-            func2 = new RelChi2FittingErrorFunc(Math.exp(Math.log(10)*dBthreshold/10));
-            break;
-          case logfitness:
-            func2 = new LogFittingErrorFunc((Integer)pModel.getNumber());
-            break;
-          case rel:
-            func2 = new RelFittingErrorFunc();
-            break;
-          case sqrtfitness:
-            func2 = new SqrtFittingErrorFunc((Integer)pModel.getNumber());
-            break;
-          case chi2:
-            func2 = new Chi2FittingErrorFunc();
-            break;
-          case relchi2transform:
-            func2 = new RelChi2TransformFittingErrorFunc(Math.exp(Math.log(10)*dBthreshold/10), (Integer)pModel.getNumber());
-            break;
-          default:
-            throw new IllegalArgumentException();
-        }
-        return func2;
+        return fitnessFunc().create(dBthreshold(), pNorm());
+    }
+    public FitnessFunction fitnessFunc()
+    {
+        return (FitnessFunction)funcBox.getSelectedItem();
+    }
+    public double dBthreshold()
+    {
+        return (Double)thresholdModel.getNumber();
+    }
+    public int pNorm()
+    {
+        return (Integer)pModel.getNumber();
     }
     public GraphData gd()
     {
@@ -619,7 +610,7 @@ public class XRRApp extends JFrame implements ChooserWrapper {
         double[] alpha_0, R;
         DFTOptions opts;
 
-        d = data.simulate(layers).normalize(layers);
+        d = data.simulate(layers, parallel).normalize(layers);
 
         if(!XRRSimul.isUniformlySpaced(d.alpha_0)) {
             JOptionPane.showMessageDialog(null, "Values of alpha_0 not uniformly spaced", "Error", JOptionPane.ERROR_MESSAGE);
@@ -746,7 +737,7 @@ public class XRRApp extends JFrame implements ChooserWrapper {
     }
 
 
-    private static String getDir()
+    static String getDir()
     {
         try {
             String path = XRRApp.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
@@ -820,6 +811,22 @@ public class XRRApp extends JFrame implements ChooserWrapper {
             defaultProp("autofit.c_r", "0.5");
             defaultProp("autofit.lambda", "1.0");
             defaultProp("autofit.reportPerf", "false");
+            defaultProp("autofit.kernel", "auto");
+            defaultProp("autofit.floatSwitch", "0");
+            defaultProp("autofit.decimation", "1");
+            defaultProp("autofit.decimationSwitch", "0.02");
+            defaultProp("autofit.cacheSize", "10000");
+            defaultProp("autofit.lmSwitch", "0.01");
+            defaultProp("autofit.islands", "1");
+            defaultProp("autofit.migrationInterval", "5");
+            defaultProp("autofit.eigenInterval", "1");
+            defaultProp("autofit.eigenDrift", "0");
+            defaultProp("autofit.eigenConcurrent", "false");
+            defaultProp("autofit.checkpointInterval", "0");
+            defaultProp("autofit.checkpointFile", "fit.checkpoint");
+            defaultProp("simulation.kernel", "auto");
+            defaultProp("simulation.calibrationFile", "");
+            defaultProp("compute.threads", "0");
             defaultProp("plot.dbMin", "-70");
             defaultProp("plot.dbMax", "0");
             opts.km = Double.parseDouble(props.getProperty("autofit.k_m"));
@@ -848,6 +855,74 @@ public class XRRApp extends JFrame implements ChooserWrapper {
                 throw new NumberFormatException();
             }
             opts.reportPerf = Boolean.parseBoolean(props.getProperty("autofit.reportPerf"));
+            opts.kernel = SimulationKernel.forName(props.getProperty("autofit.kernel"));
+            opts.floatSwitch = Double.parseDouble(props.getProperty("autofit.floatSwitch"));
+            if (opts.floatSwitch < 0)
+            {
+                throw new NumberFormatException();
+            }
+            opts.decimation = Integer.parseInt(props.getProperty("autofit.decimation"));
+            if (opts.decimation < 1)
+            {
+                throw new NumberFormatException();
+            }
+            opts.decimationSwitch = Double.parseDouble(props.getProperty("autofit.decimationSwitch"));
+            if (opts.decimationSwitch < 0)
+            {
+                throw new NumberFormatException();
+            }
+            opts.cacheSize = Integer.parseInt(props.getProperty("autofit.cacheSize"));
+            if (opts.cacheSize < 0)
+            {
+                throw new NumberFormatException();
+            }
+            opts.lmSwitch = Double.parseDouble(props.getProperty("autofit.lmSwitch"));
+            if (opts.lmSwitch < 0)
+            {
+                throw new NumberFormatException();
+            }
+            opts.islands = Integer.parseInt(props.getProperty("autofit.islands"));
+            if (opts.islands < 0)
+            {
+                throw new NumberFormatException();
+            }
+            opts.migrationInterval = Integer.parseInt(props.getProperty("autofit.migrationInterval"));
+            if (opts.migrationInterval < 1)
+            {
+                throw new NumberFormatException();
+            }
+            opts.eigenInterval = Integer.parseInt(props.getProperty("autofit.eigenInterval"));
+            if (opts.eigenInterval < 1)
+            {
+                throw new NumberFormatException();
+            }
+            opts.eigenDrift = Double.parseDouble(props.getProperty("autofit.eigenDrift"));
+            if (opts.eigenDrift < 0)
+            {
+                throw new NumberFormatException();
+            }
+            opts.eigenConcurrent = Boolean.parseBoolean(props.getProperty("autofit.eigenConcurrent"));
+            opts.checkpointInterval = Double.parseDouble(props.getProperty("autofit.checkpointInterval"));
+            if (opts.checkpointInterval < 0)
+            {
+                throw new NumberFormatException();
+            }
+            opts.checkpointFile = new File(props.getProperty("autofit.checkpointFile"));
+            if (!opts.checkpointFile.isAbsolute())
+            {
+                opts.checkpointFile = new File(getDir(), opts.checkpointFile.getPath());
+            }
+            SimulationKernel.setDefault(SimulationKernel.forName(props.getProperty("simulation.kernel")));
+            if (!props.getProperty("simulation.calibrationFile").equals(""))
+            {
+                File cal = new File(props.getProperty("simulation.calibrationFile"));
+                if (!cal.isAbsolute())
+                {
+                    cal = new File(getDir(), cal.getPath());
+                }
+                KernelCalibration.setFile(cal);
+            }
+            ComputeScheduler.setParallelism(Integer.parseInt(props.getProperty("compute.threads")));
             dbMin = Double.parseDouble(props.getProperty("plot.dbMin"));
             dbMax = Double.parseDouble(props.getProperty("plot.dbMax"));
         }
@@ -1198,6 +1273,37 @@ public class XRRApp extends JFrame implements ChooserWrapper {
         });
         layerButtonPanel.add(btn);
 
+        btn = new JButton("Repeat...");
+        btn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                int[] i2 = layeredList.getSelectedIndices();
+                if(i2 == null || i2.length == 0)
+                    return;
+                Arrays.sort(i2);
+                if(i2[i2.length-1]+1 - i2[0] != i2.length) {
+                    JOptionPane.showMessageDialog(null, "The repeated layers must be contiguous", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                int count = 1;
+                if(layers.hasRepeat() && layers.getRepeatFirst() == i2[0] && layers.getRepeatLast() == i2[i2.length-1])
+                    count = layers.getRepeatCount();
+                String str = JOptionPane.showInputDialog(thisFrame, "Number of periods (1 removes the repeat block)", ""+count);
+                if(str == null)
+                    return;
+                try {
+                    count = Integer.parseInt(str.trim());
+                    layers.setRepeat(i2[0], i2[i2.length-1], count);
+                }
+                catch(NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(null, "Invalid number of periods", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+                catch(IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(null, "Invalid number of periods", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            };
+        });
+        layerButtonPanel.add(btn);
+
         btn = new JButton("Delete");
         btn.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
@@ -1404,6 +1510,8 @@ public class XRRApp extends JFrame implements ChooserWrapper {
         final JButton startFitButton = new JButton("Start");
         final JButton stopFitButton = new JButton("Stop");
         final JButton advancedButton = new JButton("Opts");
+        final JButton bootstrapButton = new JButton("Bootstrap");
+        final JButton resumeButton = new JButton("Resume");
         final SpinnerNumberModel popSizeModel = new SpinnerNumberModel(settingInt("autofit.popsize", -10, -200, 2000),-200,2000,1);
         final SpinnerNumberModel iterationsModel = new SpinnerNumberModel(settingInt("autofit.iters", 500, 1, 2000),1,2000,1);
         pModel = new SpinnerNumberModel(settingInt("autofit.pNorm", 2, 1, 10),1,10,1);
@@ -1426,8 +1534,14 @@ public class XRRApp extends JFrame implements ChooserWrapper {
                 try {
                     LayerTask endTask = new LayerTask() {
                         public void run(LayerStack s, String msg) {
+                            /* kept so that the bootstrap can start from it */
+                            fitPopulation = ((JavaFitter)f).getPopulation();
+                            fitPopulationStack = s.deepCopy();
+                            fitPopulationData = ((JavaFitter)f).getData();
                             f = null;
                             startFitButton.setEnabled(true);
+                            resumeButton.setEnabled(true);
+                            bootstrapButton.setEnabled(true);
                             stopFitButton.setEnabled(false);
                             tabs.setTitleAt(2, "Automatic fit");
                             importButton.setEnabled(true);
@@ -1441,7 +1555,7 @@ public class XRRApp extends JFrame implements ChooserWrapper {
                             {
                                 JOptionPane.showMessageDialog(null,
                                     msg,
-                                    "Fitting performance",
+                                    "Fitting finished",
                                     JOptionPane.INFORMATION_MESSAGE);
                             }
                         }
@@ -1450,6 +1564,8 @@ public class XRRApp extends JFrame implements ChooserWrapper {
                         public void run() {
                             f = null;
                             startFitButton.setEnabled(true);
+                            resumeButton.setEnabled(true);
+                            bootstrapButton.setEnabled(true);
                             stopFitButton.setEnabled(false);
                             tabs.setTitleAt(2, "Automatic fit");
                             importButton.setEnabled(true);
@@ -1470,11 +1586,13 @@ public class XRRApp extends JFrame implements ChooserWrapper {
                         }
                     };
                     Algorithm algo = (Algorithm)algoBox.getSelectedItem();
+                    FitCheckpoint checkpoint = resume;
+                    resume = null;
                     try {
                         f = new JavaFitter(xrr, fitLight, data, endTask, plotTask, errTask2, fitLayers,
                                            (Integer)popSizeModel.getNumber(), (Integer)iterationsModel.getNumber(),
                                            (Double)firstAngleModel.getNumber(), (Double)lastAngleModel.getNumber(),
-                                           green, yellow, (Algorithm)algoBox.getSelectedItem(), autostop.isSelected(), (Integer)autostopModel.getNumber(), opts);//, nonlinBox.isSelected());
+                                           green, yellow, (Algorithm)algoBox.getSelectedItem(), autostop.isSelected(), (Integer)autostopModel.getNumber(), opts, checkpoint);//, nonlinBox.isSelected());
                     }
                     catch (FittingNotStartedException ex)
                     {
@@ -1484,6 +1602,8 @@ public class XRRApp extends JFrame implements ChooserWrapper {
                         return;
                     }
                     startFitButton.setEnabled(false);
+                    resumeButton.setEnabled(false);
+                    bootstrapButton.setEnabled(false);
                     stopFitButton.setEnabled(true);
                     tabs.setTitleAt(2, "Automatic fit (*)");
                     stopFitButton.addActionListener(new ActionListener() {
@@ -1515,6 +1635,156 @@ public class XRRApp extends JFrame implements ChooserWrapper {
                 layers.deepCopyFrom(fitLayers);
             }
         });
+        resumeButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ev) {
+                FitCheckpoint checkpoint;
+                if (opts.checkpointFile == null || !opts.checkpointFile.exists())
+                {
+                    JOptionPane.showMessageDialog(null,
+                        "There is no checkpoint to resume. Checkpoints are saved\n" +
+                        "if autofit.checkpointInterval is set in the settings.",
+                        "Resume", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                try {
+                    checkpoint = FitCheckpoint.load(opts.checkpointFile, table);
+                }
+                catch(Exception ex) {
+                    JOptionPane.showMessageDialog(null,
+                        "The checkpoint can't be loaded: " + ex.getMessage(),
+                        "Resume", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                GraphData gd = data.normalize(fitLayers).convertToLinear();
+                gd = gd.crop((Double)firstAngleModel.getNumber(), (Double)lastAngleModel.getNumber());
+                if (gd.alpha_0.length < 2
+                    || !checkpoint.matches(fitLayers, gd, checkpoint.getFitnessFunction(),
+                                           checkpoint.getThreshold(), checkpoint.getPNorm()))
+                {
+                    JOptionPane.showMessageDialog(null,
+                        "The checkpoint is of a different layer model, measurement or fitting range.",
+                        "Resume", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                algoBox.setSelectedItem(checkpoint.getAlgorithm());
+                popSizeModel.setValue(checkpoint.getPopsize());
+                funcBox.setSelectedItem(checkpoint.getFitnessFunction());
+                thresholdModel.setValue(checkpoint.getThreshold());
+                pModel.setValue(checkpoint.getPNorm());
+                fitLayers.deepCopyFrom(checkpoint.getStack());
+                resume = checkpoint;
+                startFitButton.doClick();
+            }
+        });
+        bootstrapButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent ev) {
+                BootstrapDialog dialog = new BootstrapDialog(thisFrame);
+                if(!dialog.call()) {
+                    dialog.dispose();
+                    return;
+                }
+                dialog.dispose();
+                final int replicates = dialog.getReplicates();
+                final double confidence = dialog.getConfidence();
+                Double level = dialog.getLevel();
+                final double photon = level == null ? 0 : Math.exp(Math.log(10)*level/10);
+                LayerStack stack = fitLayers.deepCopy();
+                GraphData gd = data.normalize(stack).convertToLinear();
+                gd = gd.crop((Double)firstAngleModel.getNumber(), (Double)lastAngleModel.getNumber());
+                if (gd.alpha_0.length < 2)
+                {
+                    JOptionPane.showMessageDialog(null,
+                        "There was an error with fitting.",
+                        "Fitting error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                /*
+                   The replicates start from the population of the last fit
+                   if the layer model and the data haven't changed since.
+                   Otherwise the bootstrap first fits the measurement again
+                   from the values on this tab.
+                 */
+                double[][] population = null;
+                if (fitPopulation != null
+                    && Arrays.equals(fitPopulationData.alpha_0, gd.alpha_0)
+                    && Arrays.equals(fitPopulationData.meas, gd.meas))
+                {
+                    boolean same = true;
+                    for (FitValue.FitValueType type: FitValue.FitValueType.values())
+                    {
+                        same = same && Arrays.equals(stack.getFitValuesForFitting(type),
+                                                     fitPopulationStack.getFitValuesForFitting(type));
+                    }
+                    if (same)
+                    {
+                        population = fitPopulation;
+                    }
+                }
+                final Bootstrap bootstrap = new Bootstrap(stack, gd, func(),
+                    (Algorithm)algoBox.getSelectedItem(),
+                    (Integer)popSizeModel.getNumber(),
+                    (Integer)iterationsModel.getNumber(),
+                    (Integer)autostopModel.getNumber(), opts, population);
+                final ProgressMonitor monitor = new ProgressMonitor(thisFrame,
+                    "Fitting bootstrap replicates", null, 0, replicates);
+                final javax.swing.Timer timer = new javax.swing.Timer(500, new ActionListener() {
+                    public void actionPerformed(ActionEvent ev) {
+                        monitor.setProgress(bootstrap.getCompleted());
+                        if (monitor.isCanceled())
+                        {
+                            bootstrap.cancel();
+                        }
+                    }
+                });
+                startFitButton.setEnabled(false);
+                bootstrapButton.setEnabled(false);
+                resumeButton.setEnabled(false);
+                timer.start();
+                new Thread(new Runnable() {
+                    public void run() {
+                        String msg;
+                        try {
+                            bootstrap.run(replicates, photon, System.nanoTime());
+                            StringBuilder sb = new StringBuilder();
+                            sb.append(bootstrap.getReplicates().length + " replicates, " +
+                                      String.format(Locale.US,"%.3g",100*confidence) +
+                                      " % confidence intervals:\n");
+                            for (Bootstrap.Interval iv: bootstrap.intervals(confidence))
+                            {
+                                sb.append(iv).append("\n");
+                            }
+                            msg = sb.toString();
+                        }
+                        catch(IllegalStateException ex) {
+                            msg = "Too few replicates were fitted.";
+                        }
+                        catch(PhotonLevelException ex) {
+                            msg = ex.getMessage();
+                        }
+                        catch(RuntimeException ex) {
+                            msg = "There was an error with fitting.";
+                        }
+                        final String msg2 = msg;
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                timer.stop();
+                                monitor.close();
+                                startFitButton.setEnabled(f == null);
+                                resumeButton.setEnabled(f == null);
+                                bootstrapButton.setEnabled(true);
+                                JTextArea area = new JTextArea(msg2);
+                                area.setEditable(false);
+                                area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+                                JOptionPane.showMessageDialog(null,
+                                    new JScrollPane(area),
+                                    "Bootstrap",
+                                    JOptionPane.INFORMATION_MESSAGE);
+                            }
+                        });
+                    }
+                }).start();
+            }
+        });
         JPanel buttonPanel = new JPanel();
         buttonPanel.setLayout(new GridBagLayout());
         c.ipadx = c.ipady = 1;
@@ -1534,6 +1804,8 @@ public class XRRApp extends JFrame implements ChooserWrapper {
         c.gridwidth = GridBagConstraints.REMAINDER;
         stopFitButton.setEnabled(false);
         buttonPanel.add(advancedButton);
+        buttonPanel.add(bootstrapButton);
+        buttonPanel.add(resumeButton);
 
         c.gridwidth = GridBagConstraints.REMAINDER;
         plotControls.add(buttonPanel, c);
@@ -2545,7 +2817,7 @@ public class XRRApp extends JFrame implements ChooserWrapper {
         double ymin = 0, ymax = 0;
         String ytitle;
 
-        d = data.simulate(layers).normalize(layers);
+        d = data.simulate(layers, parallel).normalize(layers);
         meas = new double[d.meas.length];
         simul = new double[d.simul.length];
         System.arraycopy(d.meas, 0, meas, 0, meas.length);
@@ -2699,9 +2971,11 @@ public class XRRApp extends JFrame implements ChooserWrapper {
 
         double[] splitR, NCR;
         GraphData simulData;
-        splitR = XRRSimul.rawSimulate(alpha0rad, delta, beta, d, r, lambda, stddevrad, beam);
+        splitR = new double[alpha0rad.length];
+        parallel.simulate(parallel.plan(alpha0rad), SimulationKernel.getDefault(),
+                          delta, beta, d, r, lambda, stddevrad, beam, splitR);
 
-        simulData = data.simulate(layers).normalize(layers);
+        simulData = data.simulate(layers, parallel).normalize(layers);
         NCR = new double[simulData.simul.length];
         for(int i=0; i<simulData.simul.length; i++)
             NCR[i] = simulData.simul[i];
@@ -0,0 +1,666 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import javax.xml.parsers.ParserConfigurationException;
+import org.xml.sax.SAXException;
+import fi.iki.jmtilli.javaxmlfrag.*;
+
+/** Headless batch fitting.
+ *
+ * <p>
+ *
+ * Fits one layer model to every measurement file in a directory without a
+ * user interface, so that large numbers of measurements can be fitted on a
+ * server. Usage:
+ *
+ * <pre>
+ * java -cp xrr.jar XRRBatchFit [-p file.properties] [-t threads] [-j jobs] model.layers measdir outdir
+ * </pre>
+ *
+ * The measurement files may be in any format XRRImport.XRRImport reads. They
+ * are imported with the same default options as the default measurement of
+ * XRRApp: the measurement is normalized to its maximum above 0.07 degrees
+ * and 2theta angles are halved.
+ *
+ * <p>
+ *
+ * The fitting settings are read from default.properties next to the program
+ * and then from the file given with -p, using the same autofit.* keys as
+ * XRRApp. All fits share the compute pool of ComputeScheduler, whose number
+ * of threads is the core budget given by -t or compute.threads. By default
+ * as many fits as there are threads run concurrently; -j changes that.
+ *
+ * <p>
+ *
+ * For each measurement file name, the fitted model is written to
+ * outdir/name.layers. A tab-separated summary of all the fits is written to
+ * outdir/summary.txt.
+ *
+ * <p>
+ *
+ * If bootstrap.replicates is positive, confidence intervals of the fitted
+ * values are estimated by resampling the residuals of each fit, see
+ * Bootstrap, and written to outdir/name.bootstrap.txt. The confidence level
+ * is bootstrap.confidence.
+ *
+ * <p>
+ *
+ * If autofit.checkpointInterval is positive, the state of each fit is saved
+ * to outdir/name.checkpoint that often in seconds, see FitCheckpoint. If
+ * the batch is run again after it was interrupted, the fits that have a
+ * checkpoint continue from it. The checkpoint is removed when the fitted
+ * model has been written.
+ *
+ */
+public class XRRBatchFit {
+    private final LayerStack model;
+    private final int popsize;
+    private final int iterations;
+    private final double firstAngle, lastAngle;
+    private final Algorithm algo;
+    private final FitnessFunction fitnessFunc;
+    private final double dBthreshold;
+    private final int pNorm;
+    private final FittingErrorFunc func;
+    private final boolean autostop;
+    private final int autostopFigures;
+    private final AdvancedFitOptions opts = new AdvancedFitOptions();
+    private final int replicates;
+    private final double confidence;
+
+    /** The outcome of fitting one measurement. */
+    private static class Result {
+        final File file;
+        String error;
+        String warning; /* a problem that didn't stop the fit */
+        LayerStack stack;
+        List<Bootstrap.Interval> intervals;
+        int iterations;
+        double fittingError;
+        double seconds;
+        Result(File file) {
+            this.file = file;
+        }
+    }
+
+    /** Creates a batch fitter.
+     *
+     * @param model the layer model to fit
+     * @param props the fitting settings
+     * @throws NumberFormatException if a setting is invalid
+     */
+    public XRRBatchFit(LayerStack model, Properties props) {
+        this.model = model;
+        this.popsize = Integer.parseInt(props.getProperty("autofit.popsize", "-10"));
+        this.iterations = Integer.parseInt(props.getProperty("autofit.iters", "500"));
+        this.firstAngle = Double.parseDouble(props.getProperty("autofit.firstAngle", "0.07"));
+        this.lastAngle = Double.parseDouble(props.getProperty("autofit.lastAngle", "10.0"));
+        this.algo = Algorithm.values()[index(props, "autofit.algorithm", Algorithm.values().length)];
+        this.fitnessFunc = FitnessFunction.values()[index(props, "autofit.fitnessFunc", FitnessFunction.values().length)];
+        this.dBthreshold = Double.parseDouble(props.getProperty("autofit.thresRelF", "-30"));
+        this.pNorm = Integer.parseInt(props.getProperty("autofit.pNorm", "2"));
+        this.func = fitnessFunc.create(dBthreshold, pNorm);
+        this.autostop = Boolean.parseBoolean(props.getProperty("autofit.autostop", "true"));
+        this.autostopFigures = Integer.parseInt(props.getProperty("autofit.autostopFigures", "6"));
+        opts.km = unit(props, "autofit.k_m", "0.7");
+        opts.kr = unit(props, "autofit.k_r", "0.85");
+        opts.pm = unit(props, "autofit.p_m", "0.5");
+        opts.cr = unit(props, "autofit.c_r", "0.5");
+        opts.lambda = Double.parseDouble(props.getProperty("autofit.lambda", "1.0"));
+        if (opts.lambda < 0 || opts.lambda > 1)
+        {
+            throw new NumberFormatException("autofit.lambda");
+        }
+        opts.kernel = SimulationKernel.forName(props.getProperty("autofit.kernel", "auto"));
+        opts.floatSwitch = Double.parseDouble(props.getProperty("autofit.floatSwitch", "0"));
+        if (opts.floatSwitch < 0)
+        {
+            throw new NumberFormatException("autofit.floatSwitch");
+        }
+        opts.decimation = Integer.parseInt(props.getProperty("autofit.decimation", "1"));
+        if (opts.decimation < 1)
+        {
+            throw new NumberFormatException("autofit.decimation");
+        }
+        opts.decimationSwitch = Double.parseDouble(props.getProperty("autofit.decimationSwitch", "0.02"));
+        if (opts.decimationSwitch < 0)
+        {
+            throw new NumberFormatException("autofit.decimationSwitch");
+        }
+        opts.cacheSize = Integer.parseInt(props.getProperty("autofit.cacheSize", "10000"));
+        if (opts.cacheSize < 0)
+        {
+            throw new NumberFormatException("autofit.cacheSize");
+        }
+        opts.lmSwitch = Double.parseDouble(props.getProperty("autofit.lmSwitch", "0.01"));
+        if (opts.lmSwitch < 0)
+        {
+            throw new NumberFormatException("autofit.lmSwitch");
+        }
+        opts.islands = Integer.parseInt(props.getProperty("autofit.islands", "1"));
+        if (opts.islands < 0)
+        {
+            throw new NumberFormatException("autofit.islands");
+        }
+        opts.migrationInterval = Integer.parseInt(props.getProperty("autofit.migrationInterval", "5"));
+        if (opts.migrationInterval < 1)
+        {
+            throw new NumberFormatException("autofit.migrationInterval");
+        }
+        opts.eigenInterval = Integer.parseInt(props.getProperty("autofit.eigenInterval", "1"));
+        if (opts.eigenInterval < 1)
+        {
+            throw new NumberFormatException("autofit.eigenInterval");
+        }
+        opts.eigenDrift = Double.parseDouble(props.getProperty("autofit.eigenDrift", "0"));
+        if (opts.eigenDrift < 0)
+        {
+            throw new NumberFormatException("autofit.eigenDrift");
+        }
+        opts.eigenConcurrent = Boolean.parseBoolean(props.getProperty("autofit.eigenConcurrent", "false"));
+        opts.checkpointInterval = Double.parseDouble(props.getProperty("autofit.checkpointInterval", "0"));
+        if (opts.checkpointInterval < 0)
+        {
+            throw new NumberFormatException("autofit.checkpointInterval");
+        }
+        this.replicates = Integer.parseInt(props.getProperty("bootstrap.replicates", "0"));
+        if (this.replicates < 0 || this.replicates == 1)
+        {
+            throw new NumberFormatException("bootstrap.replicates");
+        }
+        this.confidence = unit(props, "bootstrap.confidence", "0.95");
+    }
+
+    private static int index(Properties props, String key, int n) {
+        int i = Integer.parseInt(props.getProperty(key, "0"));
+        if (i < 0 || i >= n)
+        {
+            throw new NumberFormatException(key);
+        }
+        return i;
+    }
+
+    private static double unit(Properties props, String key, String def) {
+        double d = Double.parseDouble(props.getProperty(key, def));
+        if (d <= 0 || d >= 1)
+        {
+            throw new NumberFormatException(key);
+        }
+        return d;
+    }
+
+    /** Loads a layer model in any of the formats XRRApp saves.
+     *
+     * @param f the file
+     * @param table the lookup table for the X-ray properties of the layers
+     * @return the layer model
+     * @throws LayerLoadException if the file can't be loaded
+     */
+    public static LayerStack loadLayers(File f, LookupTable table) throws LayerLoadException {
+        try {
+            FileInputStream fstr = new FileInputStream(f);
+            try {
+                BufferedInputStream bs = new BufferedInputStream(fstr);
+                BufferedInputStream str = bs;
+                byte[] bytes = new byte[4];
+                bs.mark(4);
+                bs.read(bytes, 0, 4);
+                bs.reset();
+                if (bytes[0] == (byte) (GZIPInputStream.GZIP_MAGIC&0xFF) &&
+                    bytes[1] == (byte) (GZIPInputStream.GZIP_MAGIC >> 8))
+                {
+                    str = new BufferedInputStream(new GZIPInputStream(bs));
+                }
+                else if (bytes[0] == 'P' && bytes[1] == 'K' &&
+                         bytes[2] == 3 && bytes[3] == 4)
+                {
+                    str = new BufferedInputStream(new ZipOneInputStream(bs));
+                }
+                str.mark(1);
+                str.read(bytes, 0, 1);
+                str.reset();
+                if (bytes[0] == 'd')
+                {
+                    return LayerStack.structImport((Map<?,?>)Fcode.fdecode(str, true), table);
+                }
+                DocumentFragment doc_frag = DocumentFragmentHandler.parseWhole(str);
+                doc_frag.assertTag("xrrmodel");
+                return new LayerStack(doc_frag, table);
+            }
+            finally {
+                fstr.close();
+            }
+        }
+        catch(IOException ex) {
+            throw new LayerLoadException("I/O error");
+        }
+        catch(FdecException ex) {
+            throw new LayerLoadException("Invalid low-level file format");
+        }
+        catch(ParserConfigurationException ex) {
+            throw new LayerLoadException("No XML parser found");
+        }
+        catch(SAXException ex) {
+            throw new LayerLoadException("Invalid physical XML format");
+        }
+        catch(ElementNotFound ex) {
+            throw new LayerLoadException(ex.getMessage());
+        }
+        catch(ChemicalFormulaException ex) {
+            throw new LayerLoadException("Invalid chemical formula: " + ex.getMessage());
+        }
+        catch(ClassCastException ex) {
+            throw new LayerLoadException("Invalid low-level file format");
+        }
+        catch(InvalidStructException ex) {
+            throw new LayerLoadException("Invalid high-level file format");
+        }
+        catch(XMLException ex) {
+            throw new LayerLoadException("Invalid high-level file format");
+        }
+    }
+
+    /** Imports a measurement like the default measurement of XRRApp.
+     *
+     * @param f the measurement file
+     * @return the measurement, normalized to its maximum
+     */
+    public static GraphData loadMeasurement(File f) throws XRRImportException, IOException {
+        XRRImport.XRRData importdat;
+        FileInputStream filein = new FileInputStream(f);
+        try {
+            importdat = XRRImport.XRRImport(filein);
+        }
+        finally {
+            filein.close();
+        }
+        boolean[] valid = importdat.valid;
+        int col = (valid.length == 3 && valid[0] && valid[1] && valid[2]) ? 3 : 2;
+        ImportOptions opts = new ImportOptions(1, 0, 90, 0.07, 90, col, importdat.isTwoTheta);
+        double[] alpha_0 = importdat.arrays[0];
+        double[] meas = importdat.arrays[opts.meascol-1];
+        double max = 1e-99;
+        int n = 0;
+
+        if (opts.divAngleByTwo)
+        {
+            for (int i = 0; i < alpha_0.length; i++)
+            {
+                alpha_0[i] /= 2;
+            }
+        }
+        for (int i = 0; i < meas.length; i++)
+        {
+            if (alpha_0[i] >= opts.minNormal && alpha_0[i] <= opts.maxNormal && meas[i] > max)
+            {
+                max = meas[i];
+            }
+        }
+        for (int i = 0; i < meas.length; i++)
+        {
+            if (alpha_0[i] >= opts.minAngle && alpha_0[i] <= opts.maxAngle)
+            {
+                alpha_0[n] = alpha_0[i];
+                meas[n] = meas[i]/max;
+                n++;
+            }
+        }
+        return new GraphData(Arrays.copyOf(alpha_0, n), Arrays.copyOf(meas, n), null, false);
+    }
+
+    /** Fits the model to one measurement.
+     *
+     * Errors are reported in the result instead of thrown.
+     *
+     * @param f the measurement file
+     * @param outdir the directory of the checkpoints
+     * @return the outcome of the fit
+     */
+    private Result fit(File f, File outdir) {
+        Result res = new Result(f);
+        long start = System.nanoTime();
+        try {
+            LayerStack stack = model.deepCopy();
+            GraphData data = loadMeasurement(f);
+            data = data.normalize(stack).convertToLinear();
+            data = data.crop(firstAngle, lastAngle);
+            if (data.alpha_0.length < 2)
+            {
+                throw new FittingNotStartedException();
+            }
+            File checkpointFile = new File(outdir, f.getName() + ".checkpoint");
+            FitCheckpoint checkpoint = null;
+            if (opts.checkpointInterval > 0 && checkpointFile.exists())
+            {
+                try {
+                    checkpoint = FitCheckpoint.load(checkpointFile, model.getTable());
+                }
+                catch(FdecException ex) {}
+                catch(InvalidStructException ex) {}
+                catch(ElementNotFound ex) {}
+                /* an unusable checkpoint is ignored and the fit starts over */
+                if (checkpoint != null
+                    && (checkpoint.getAlgorithm() != algo
+                        || checkpoint.getPopsize() != popsize
+                        || !checkpoint.matches(stack, data, fitnessFunc,
+                                               dBthreshold, pNorm)))
+                {
+                    checkpoint = null;
+                }
+            }
+            XRRFittingCtx ctx;
+            if (checkpoint != null)
+            {
+                ctx = checkpoint.resume(data, fitnessFunc, dBthreshold, pNorm,
+                                        ComputeScheduler.pool(), opts);
+                res.iterations = checkpoint.getRound();
+            }
+            else
+            {
+                ctx = new XRRFittingCtx(stack, data,
+                                        algo.covariance(),
+                                        algo.traditionalRecombination(),
+                                        algo.localRefinement(),
+                                        algo.asynchronous(),
+                                        algo.cmaes(),
+                                        popsize, func,
+                                        ComputeScheduler.pool(), opts,
+                                        null);
+            }
+            long checkpointTime = System.nanoTime();
+            for (;;)
+            {
+                ctx.iteration();
+                res.iterations++;
+                if (opts.checkpointInterval > 0
+                    && System.nanoTime() > checkpointTime + (long)(opts.checkpointInterval*1e9))
+                {
+                    checkpointTime = System.nanoTime();
+                    try {
+                        new FitCheckpoint(stack, data, algo, popsize,
+                                          fitnessFunc, dBthreshold, pNorm,
+                                          res.iterations, ctx).save(checkpointFile);
+                    }
+                    catch(IOException ex) {
+                        /* the fit goes on, the next checkpoint is tried as usual */
+                        if (res.warning == null)
+                        {
+                            res.warning = "Checkpoint not saved: " + ex.getMessage();
+                        }
+                    }
+                    catch(FencException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                double bestfit = ctx.bestFittingError();
+                double worstfit = ctx.worstFittingError();
+                if (!autostop && res.iterations >= iterations)
+                {
+                    break;
+                }
+                if (autostop && worstfit/bestfit - 1 < Math.pow(0.1,autostopFigures))
+                {
+                    break;
+                }
+            }
+            stack.setFitValues(ctx.bestIndividual());
+            res.fittingError = ctx.bestFittingError();
+            res.stack = stack;
+            if (replicates > 0)
+            {
+                Bootstrap b = new Bootstrap(stack, data, func, algo, popsize,
+                                            iterations, autostopFigures, opts,
+                                            ctx.population());
+                b.run(replicates, 0, f.getName().hashCode());
+                res.intervals = b.intervals(confidence);
+            }
+        }
+        catch(XRRImportException ex) {
+            res.error = "Invalid measurement: " + ex.getMessage();
+        }
+        catch(IOException ex) {
+            res.error = "I/O error: " + ex.getMessage();
+        }
+        catch(FittingNotStartedException ex) {
+            res.error = "Too few data points in fitting range";
+        }
+        catch(PhotonLevelException ex) {
+            res.error = "Bootstrap error: " + ex.getMessage();
+        }
+        catch(RuntimeException ex) {
+            res.error = "Fitting error: " + ex;
+        }
+        res.seconds = (System.nanoTime() - start)/1e9;
+        return res;
+    }
+
+    private static void saveLayers(LayerStack stack, File f, File meas)
+            throws IOException, FencException
+    {
+        Map<String,Object> additional_data = new HashMap<String,Object>();
+        additional_data.put("measPath", meas.getAbsolutePath());
+        FileOutputStream fstr = new FileOutputStream(f);
+        try {
+            Fcode.fencode(stack.structExport(additional_data), fstr);
+        }
+        finally {
+            fstr.close();
+        }
+    }
+
+    private static void writeIntervals(List<Bootstrap.Interval> intervals, File f) throws IOException {
+        PrintWriter w = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8")));
+        try {
+            for (Bootstrap.Interval iv: intervals)
+            {
+                w.println(iv);
+            }
+        }
+        finally {
+            w.close();
+        }
+        if (w.checkError())
+        {
+            throw new IOException("can't write " + f);
+        }
+    }
+
+    private static void writeSummary(List<Result> results, File f, LayerStack model) throws IOException {
+        PrintWriter w = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8")));
+        try {
+            w.print("file\tstatus\titerations\tseconds\tfitting error");
+            for (int i = 0; i < model.getSize(); i++)
+            {
+                String name = model.getElementAt(i).getName();
+                w.print("\t" + name + " d (nm)\t" + name + " rho (g/cm^3)\t" + name + " r (nm)");
+            }
+            w.println();
+            for (Result res: results)
+            {
+                w.print(res.file.getName());
+                w.print("\t" + (res.error != null ? res.error
+                                 : res.warning != null ? "ok, " + res.warning : "ok"));
+                w.print("\t" + res.iterations);
+                w.print("\t" + String.format(Locale.US, "%.2f", res.seconds));
+                if (res.stack != null)
+                {
+                    w.print("\t" + String.format(Locale.US, "%.6g", res.fittingError));
+                    for (int i = 0; i < res.stack.getSize(); i++)
+                    {
+                        Layer l = res.stack.getElementAt(i);
+                        w.print("\t" + String.format(Locale.US, "%.6g", l.getThickness().getExpected()*1e9));
+                        w.print("\t" + String.format(Locale.US, "%.6g", l.getDensity().getExpected()/1e3));
+                        w.print("\t" + String.format(Locale.US, "%.6g", l.getRoughness().getExpected()*1e9));
+                    }
+                }
+                w.println();
+            }
+        }
+        finally {
+            w.close();
+        }
+        if (w.checkError())
+        {
+            throw new IOException("can't write " + f);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java XRRBatchFit [-p file.properties] [-t threads] [-j jobs] model.layers measdir outdir");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties props = new Properties();
+        File propFile = null;
+        int threads = -1, jobs = -1;
+        List<String> pos = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-p") && i+1 < args.length)
+            {
+                propFile = new File(args[++i]);
+            }
+            else if (args[i].equals("-t") && i+1 < args.length)
+            {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-j") && i+1 < args.length)
+            {
+                jobs = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].startsWith("-"))
+            {
+                usage();
+            }
+            else
+            {
+                pos.add(args[i]);
+            }
+        }
+        if (pos.size() != 3)
+        {
+            usage();
+        }
+        for (File f: new File[]{new File(XRRApp.getDir(), "default.properties"), propFile})
+        {
+            if (f != null && f.exists())
+            {
+                FileInputStream pfin = new FileInputStream(f);
+                try {
+                    props.load(pfin);
+                }
+                finally {
+                    pfin.close();
+                }
+            }
+        }
+        if (threads < 0)
+        {
+            threads = Integer.parseInt(props.getProperty("compute.threads", "0"));
+        }
+        ComputeScheduler.setParallelism(threads);
+        String cal = props.getProperty("simulation.calibrationFile", "");
+        if (!cal.equals(""))
+        {
+            File f = new File(cal);
+            KernelCalibration.setFile(f.isAbsolute() ? f : new File(XRRApp.getDir(), cal));
+        }
+        if (jobs <= 0)
+        {
+            jobs = ComputeScheduler.getParallelism();
+        }
+
+        LookupTable table = new SFTables(new File(XRRApp.getDir(), "atomic_masses.txt"), new File(XRRApp.getDir(), "sf"));
+        LayerStack model;
+        try {
+            model = loadLayers(new File(pos.get(0)), table);
+        }
+        catch(LayerLoadException ex) {
+            System.err.println(pos.get(0) + ": " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        File[] files = new File(pos.get(1)).listFiles();
+        final File outdir = new File(pos.get(2));
+        if (files == null)
+        {
+            System.err.println(pos.get(1) + ": not a directory");
+            System.exit(1);
+            return;
+        }
+        Arrays.sort(files);
+        if (!outdir.isDirectory() && !outdir.mkdirs())
+        {
+            System.err.println(outdir + ": can't create directory");
+            System.exit(1);
+            return;
+        }
+
+        final XRRBatchFit batch = new XRRBatchFit(model, props);
+        /* the fits mostly wait for the shared compute pool, so these threads
+           do not count against the core budget */
+        ExecutorService exec = Executors.newFixedThreadPool(jobs);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (final File f: files)
+        {
+            if (!f.isFile() || f.getName().startsWith("."))
+            {
+                continue;
+            }
+            futures.add(exec.submit(new Callable<Result>() {
+                public Result call()
+                {
+                    return batch.fit(f, outdir);
+                }
+            }));
+        }
+        exec.shutdown();
+
+        List<Result> results = new ArrayList<Result>();
+        int failed = 0;
+        for (Future<Result> fut: futures)
+        {
+            Result res = fut.get();
+            if (res.error == null)
+            {
+                try {
+                    saveLayers(res.stack, new File(outdir, res.file.getName() + ".layers"), res.file);
+                    if (res.intervals != null)
+                    {
+                        writeIntervals(res.intervals, new File(outdir, res.file.getName() + ".bootstrap.txt"));
+                    }
+                    new File(outdir, res.file.getName() + ".checkpoint").delete();
+                }
+                catch(IOException ex) {
+                    res.error = "I/O error: " + ex.getMessage();
+                }
+                catch(FencException ex) {
+                    res.error = "Internal error";
+                }
+            }
+            if (res.error != null)
+            {
+                failed++;
+                res.stack = null;
+                System.out.println(res.file.getName() + ": " + res.error);
+            }
+            else
+            {
+                System.out.println(res.file.getName() + ": fitting error " +
+                                   String.format(Locale.US, "%.6g", res.fittingError) +
+                                   " after " + res.iterations + " iterations" +
+                                   (res.warning == null ? "" : " (" + res.warning + ")"));
+            }
+            results.add(res);
+        }
+        if (!results.isEmpty())
+        {
+            writeSummary(results, new File(outdir, "summary.txt"), model);
+        }
+        System.out.println(results.size() + " measurements, " + failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -1,71 +1,382 @@
 import java.util.concurrent.*;
 import java.util.*;
 public class XRRFittingCtx {
+  /* the smallest number of angles a decimated grid may have */
+  private static final int MIN_DECIMATED = 256;
+  /* relative step of the simulated values for the derivatives of the
+     residuals */
+  private static final double RESIDUAL_STEP = 1e-7;
   private GraphData gd;
   private LayerStack s;
   private FittingErrorFunc func;
   private ExecutorService exec;
-  private DECtx.CostFunc cost_func;
-  private DECtx de_ctx;
+  private CostCache cost_func;
+  private PopulationOptimizer de_ctx;
+  private boolean reportPerf;
+  /* the local refinement after DE, null until it starts */
+  private LMCtx lm_ctx;
+  private boolean lm_on;
+  /* whether DE started from a population of an earlier fit */
+  private boolean warm;
+  private double lmSwitch;
+  private double[] p_min;
+  private double[] p_max;
+  private SimulationPlan plan;
+  /* plans[k] and measLevels[k] contain every 2^k-th angle */
+  private SimulationPlan[] plans;
+  private double[][] measLevels;
+  private int level;
+  private double decimationSwitch;
+  private FlatModel model;
+  private FlatModel floatModel;
+  private double floatSwitch;
+  private boolean early;
+  private double[] meas;
+  private final ThreadLocal<SimulationWorkspace> workspace =
+    new ThreadLocal<SimulationWorkspace>() {
+      protected SimulationWorkspace initialValue()
+      {
+        return new SimulationWorkspace();
+      }
+    };
+  private final ThreadLocal<double[]> fullParams =
+    new ThreadLocal<double[]>() {
+      protected double[] initialValue()
+      {
+        return new double[model.getParameterCount()];
+      }
+    };
   public boolean reportPerf()
   {
-    return de_ctx.reportPerf();
+    return reportPerf;
   }
   public XRRFittingCtx(LayerStack new_s, GraphData new_gd,
                        boolean cov_on, boolean traditional_recombination_on,
                        int npop, FittingErrorFunc new_func,
                        ExecutorService exec, AdvancedFitOptions opts)
   {
+    this(new_s, new_gd, cov_on, traditional_recombination_on, false, npop,
+         new_func, exec, opts);
+  }
+  /*
+     If lm_on is set and the fitting error function is a least squares
+     function, DE is followed by Levenberg-Marquardt refinement of the best
+     individual once the population has converged to opts.lmSwitch.
+   */
+  public XRRFittingCtx(LayerStack new_s, GraphData new_gd,
+                       boolean cov_on, boolean traditional_recombination_on,
+                       boolean lm_on, int npop, FittingErrorFunc new_func,
+                       ExecutorService exec, AdvancedFitOptions opts)
+  {
+    this(new_s, new_gd, cov_on, traditional_recombination_on, lm_on, npop,
+         new_func, exec, opts, null);
+  }
+  /*
+     If initial is not null, DE starts from its individuals, given as full
+     parameter vectors of the layer stack like the ones bestIndividual
+     returns, instead of the expected values. A population that has
+     converged on similar data is already near the optimum, so such a warm
+     start evaluates every candidate on the full angle grid in double
+     precision from the beginning, and if lm_on is set, the local
+     refinement starts after the first iteration.
+   */
+  public XRRFittingCtx(LayerStack new_s, GraphData new_gd,
+                       boolean cov_on, boolean traditional_recombination_on,
+                       boolean lm_on, int npop, FittingErrorFunc new_func,
+                       ExecutorService exec, AdvancedFitOptions opts,
+                       double[][] initial)
+  {
+    this(new_s, new_gd, cov_on, traditional_recombination_on, lm_on, false,
+         false, npop, new_func, exec, opts, initial);
+  }
+  /*
+     If async_on is set, DE is asynchronous and steady-state as in AsyncDECtx
+     and the islands of opts are ignored. If cmaes_on is set, CMA-ES is used
+     instead of DE with generations of npop samples, and the DE settings
+     are ignored.
+   */
+  public XRRFittingCtx(LayerStack new_s, GraphData new_gd,
+                       boolean cov_on, boolean traditional_recombination_on,
+                       boolean lm_on, boolean async_on, boolean cmaes_on,
+                       int npop, FittingErrorFunc new_func,
+                       ExecutorService exec, AdvancedFitOptions opts,
+                       double[][] initial)
+  {
+    this.exec = exec;
+    this.lm_on = lm_on && new_func instanceof LeastSquaresFunc;
+    this.lmSwitch = opts.lmSwitch;
     this.s = new_s.deepCopy();
     this.gd = new_gd;
     this.func = new_func;
+    this.plan = SimulationPlan.fromDegrees(this.gd.alpha_0);
+    this.model = new FlatModel(this.s, opts.kernel.resolve(this.s.getSize()+1, plan.size()));
+    /*
+       The early generations are evaluated with the single precision kernel
+       if enabled. Its errors are far smaller than the differences between
+       the candidates until the population has converged near an optimum.
+     */
+    this.floatModel = new FlatModel(this.s, SimulationKernel.FLOAT);
+    this.floatSwitch = opts.floatSwitch;
+    this.early = opts.floatSwitch > 0;
+    this.meas = this.gd.convertToLinear().meas;
+    /*
+       Early generations may evaluate the cost on a decimated angle grid.
+       Each grid has a plan of its own, so the resolution filter is sampled
+       at the coarser step. The cost of a candidate is nearly proportional
+       to the number of angles, and the fitting error functions are averages
+       over the angles, so the errors of the levels are comparable.
+     */
+    int nlevels = 1;
+    while ((1<<nlevels) <= opts.decimation
+           && (plan.size()>>nlevels) >= MIN_DECIMATED)
+    {
+      nlevels++;
+    }
+    this.plans = new SimulationPlan[nlevels];
+    this.measLevels = new double[nlevels][];
+    this.plans[0] = this.plan;
+    this.measLevels[0] = this.meas;
+    for (int k = 1; k < nlevels; k++)
+    {
+      int step = 1<<k;
+      double[] alpha0rad = new double[(plan.size()+step-1)/step];
+      double[] m = new double[alpha0rad.length];
+      for (int i = 0; i < alpha0rad.length; i++)
+      {
+        alpha0rad[i] = plan.alpha0rad[i*step];
+        m[i] = meas[i*step];
+      }
+      this.plans[k] = new SimulationPlan(alpha0rad);
+      this.measLevels[k] = m;
+    }
+    this.level = nlevels-1;
+    this.decimationSwitch = opts.decimationSwitch;
     if (npop < 0)
     {
-        npop = (-npop)*this.s.getFittedValueCount();
+        npop = (-npop)*this.model.getFreeParameterCount();
     }
     if (npop >= 0 && npop < 20)
     {
         npop = 20;
     }
-    this.cost_func = new DECtx.CostFunc() {
+    this.cost_func = new CostCache(new DECtx.CostFunc() {
       public double calculate(double[] p) throws Exception
       {
-        LayerStack s2 = s.deepCopy();
-        s2.setFitValues(p);
-        GraphData gd2 = gd.simulate(s2).normalize(s2);
-        return func.getError(gd2.meas, gd2.simul);
+        SimulationWorkspace ws = workspace.get();
+        double[] full = fullParams.get();
+        int k = level;
+        double[] simul = ws.output(plans[k].size());
+        FlatModel m = early ? floatModel : model;
+        m.expand(p, full);
+        m.simulate(plans[k], ws, full, simul);
+        return func.getError(measLevels[k], simul);
       }
-    };
-    this.de_ctx = new DECtx(
-        this.cost_func,
-        this.s.getFitValuesForFitting(FitValue.FitValueType.MIN),
-        this.s.getFitValuesForFitting(FitValue.FitValueType.MAX),
-        this.s.getFitValuesForFitting(FitValue.FitValueType.EXPECTED),
-        cov_on, traditional_recombination_on, npop, exec, opts);
+    }, opts.cacheSize);
+    /*
+       DE searches only the free parameters. Fixed values and duplicates of
+       linked values would just add degenerate dimensions to the covariance
+       matrix.
+     */
+    this.p_min = model.compact(this.s.getFitValuesForFitting(FitValue.FitValueType.MIN));
+    this.p_max = model.compact(this.s.getFitValuesForFitting(FitValue.FitValueType.MAX));
+    double[][] compactInitial;
+    if (initial != null)
+    {
+      compactInitial = new double[initial.length][];
+      for (int i = 0; i < initial.length; i++)
+      {
+        compactInitial[i] = model.compact(initial[i]);
+      }
+      this.level = 0;
+      this.early = false;
+      this.warm = true;
+    }
+    else
+    {
+      compactInitial = new double[][]{
+        model.compact(this.s.getFitValuesForFitting(FitValue.FitValueType.EXPECTED))};
+    }
+    this.reportPerf = opts.reportPerf;
+    int islands = opts.islands > 0 ? opts.islands
+                                   : ComputeScheduler.getParallelism(exec);
+    if (cmaes_on)
+    {
+      this.de_ctx = new CMAESCtx(
+          this.cost_func, p_min, p_max, compactInitial, npop, exec);
+    }
+    else if (async_on)
+    {
+      this.de_ctx = new AsyncDECtx(
+          this.cost_func, p_min, p_max, compactInitial,
+          cov_on, traditional_recombination_on, npop, exec, opts);
+    }
+    else if (islands > 1)
+    {
+      this.de_ctx = new IslandDECtx(
+          this.cost_func, p_min, p_max, compactInitial,
+          cov_on, traditional_recombination_on, npop, islands,
+          opts.migrationInterval, exec, opts);
+    }
+    else
+    {
+      this.de_ctx = new DECtx(
+          this.cost_func, p_min, p_max, compactInitial,
+          cov_on, traditional_recombination_on, npop, exec, opts);
+    }
+  }
+  /* the residuals of the full angle grid in double precision */
+  private double residuals(double[] p, double[] r)
+  {
+    SimulationWorkspace ws = workspace.get();
+    double[] full = fullParams.get();
+    double[] simul = ws.output(plan.size());
+    model.expand(p, full);
+    model.simulate(plan, ws, full, simul);
+    ((LeastSquaresFunc)func).getResiduals(meas, simul, r);
+    return func.getError(meas, simul);
+  }
+  /*
+     The residuals and their Jacobian. The simulation derivatives are
+     analytic, and as each residual depends only on its own data point, its
+     derivative with respect to the simulated value is found by perturbing
+     all the simulated values at once.
+   */
+  private double jacobian(double[] p, double[] r, double[][] J)
+  {
+    SimulationWorkspace ws = workspace.get();
+    double[] full = fullParams.get();
+    int n = plan.size();
+    double[] simul = new double[n];
+    double[] simul2 = new double[n];
+    double[] r2 = new double[n];
+    double[][] jac = new double[p.length][n];
+    model.expand(p, full);
+    model.simulateJacobian(plan, ws, full, simul, jac);
+    for (int i = 0; i < n; i++)
+    {
+      simul2[i] = simul[i]*(1+RESIDUAL_STEP);
+    }
+    ((LeastSquaresFunc)func).getResiduals(meas, simul, r);
+    ((LeastSquaresFunc)func).getResiduals(meas, simul2, r2);
+    for (int i = 0; i < n; i++)
+    {
+      double drds = simul[i] > 0 ? (r2[i]-r[i])/(simul2[i]-simul[i]) : 0;
+      for (int k = 0; k < p.length; k++)
+      {
+        J[i][k] = drds*jac[k][i];
+      }
+    }
+    return func.getError(meas, simul);
+  }
+  private Optimizer optimizer()
+  {
+    return lm_ctx != null ? lm_ctx : de_ctx;
   }
   public void iteration()
   {
+    boolean finer, precise;
+    if (lm_ctx != null)
+    {
+      lm_ctx.iteration();
+      return;
+    }
     this.de_ctx.iteration();
+    finer = level > 0 && converged(decimationSwitch);
+    precise = early && converged(floatSwitch);
+    if (finer || precise)
+    {
+      /* the cost function must not change under running evaluations */
+      this.de_ctx.finishEvaluations();
+      if (finer)
+      {
+        level--;
+      }
+      if (precise)
+      {
+        early = false;
+      }
+      this.cost_func.clear();
+      this.de_ctx.recalculateFittingErrors();
+    }
+    else if (lm_on && level == 0 && !early
+             && (warm || converged(lmSwitch)))
+    {
+      this.lm_ctx = new LMCtx(new LMCtx.JacobianFunc() {
+        public double calculate(double[] p, double[] r)
+        {
+          return residuals(p, r);
+        }
+        public double calculate(double[] p, double[] r, double[][] J)
+        {
+          return jacobian(p, r, J);
+        }
+      }, meas.length, p_min, p_max, de_ctx.bestIndividual(), exec);
+      this.lm_ctx.iteration();
+    }
+  }
+  /* tests whether the relative spread of the population is below a limit */
+  private boolean converged(double relSpread)
+  {
+    return de_ctx.medianFittingError() - de_ctx.bestFittingError()
+           <= relSpread*Math.abs(de_ctx.bestFittingError());
   }
   public double[] bestIndividual()
   {
-    return this.de_ctx.bestIndividual();
+    return this.model.expand(optimizer().bestIndividual());
   }
   public double[] medianIndividual()
   {
-    return this.de_ctx.medianIndividual();
+    return this.model.expand(optimizer().medianIndividual());
+  }
+  /*
+     The DE population from the best to the worst individual as full
+     parameter vectors. After local refinement has started, its result
+     replaces the best individual.
+   */
+  public double[][] population()
+  {
+    double[][] pop = this.de_ctx.population();
+    double[][] result = new double[pop.length][];
+    for (int i = 0; i < pop.length; i++)
+    {
+      result[i] = this.model.expand(pop[i]);
+    }
+    if (lm_ctx != null)
+    {
+      result[0] = this.model.expand(lm_ctx.bestIndividual());
+    }
+    return result;
+  }
+  /* whether the local refinement has started */
+  public boolean refining()
+  {
+    return lm_ctx != null;
+  }
+  /*
+     Makes a fit started from a population wait for the population to
+     converge to opts.lmSwitch before the local refinement, like a fit
+     started from scratch. Used when resuming a checkpoint.
+   */
+  public void deferRefinement()
+  {
+    this.warm = false;
+  }
+  /* the fraction of the cost evaluations answered by the cache */
+  public double cacheHitRate()
+  {
+    return this.cost_func.getHitRate();
   }
   public double bestFittingError()
   {
-    return this.de_ctx.bestFittingError();
+    return optimizer().bestFittingError();
   }
   public double medianFittingError()
   {
-    return this.de_ctx.medianFittingError();
+    return optimizer().medianFittingError();
   }
   public double worstFittingError()
   {
-    return this.de_ctx.worstFittingError();
+    return optimizer().worstFittingError();
   }
 
   static class TestLookup implements LookupTable {
@@ -110,11 +421,7 @@ public class XRRFittingCtx {
     GraphData gd = new GraphData(alpha_0, new double[2000], new double[2000]);
     double[] simul = gd.simulate(layers).simul;
     gd = new GraphData(alpha_0, simul, simul, false);
-    int cpus = Runtime.getRuntime().availableProcessors();
-    ThreadPoolExecutor exec =
-            new ThreadPoolExecutor(cpus, cpus,
-                                   1, TimeUnit.SECONDS,
-                                   new LinkedBlockingQueue<Runnable>());
+    ExecutorService exec = ComputeScheduler.pool();
     XRRFittingCtx init = new XRRFittingCtx(layers, gd, true, true, 40,
                                            new LogFittingErrorFunc(2),
                                            exec, new AdvancedFitOptions());
@@ -125,6 +432,5 @@ public class XRRFittingCtx {
       System.out.println(init.medianIndividual()[2]);
       System.out.println("--");
     }
-    exec.shutdown();
   }
 };
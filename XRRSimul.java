@@ -26,12 +26,21 @@ public class XRRSimul {
      */
     private static double[] fir(double[] b, double[] s, int low, int high) {
         double[] result = new double[high-low];
+        fir(b, s, s.length, low, high, result);
+        return result;
+    }
+
+    /* Like fir above, but only the first n values of s are used and the
+     * output is written to result, which must have room for high-low values.
+     */
+    private static void fir(double[] b, double[] s, int n, int low, int high, double[] result) {
         for(int i=low; i<high; i++) {
-            for(int j=Math.max(0,i-(s.length-1)); j<Math.min(b.length,i+1); j++) {
-                result[i-low] += s[i-j]*b[j];
+            double sum = 0;
+            for(int j=Math.max(0,i-(n-1)); j<Math.min(b.length,i+1); j++) {
+                sum += s[i-j]*b[j];
             }
+            result[i-low] = sum;
         }
-        return result;
     }
 
     /* Apply an odd filter. */
@@ -39,12 +48,57 @@ public class XRRSimul {
      *   fir(filter, data, filterside, length(data)+filterside)
      *   where filterside = (filter.length+1)/2 (note the difference!)
      */
+    /* Long filters are applied by FFT, which gives the same result apart
+     * from rounding errors. */
     private static double[] applyOddFilter(double[] filter, double[] data) {
         int filterside = (filter.length-1)/2;
         assert((filter.length-1)%2 == 0);
+        if(FFTConvolver.useFFT(data.length, filter.length)) {
+            FFTConvolver conv = new FFTConvolver(filter, data.length);
+            double[] result = new double[data.length];
+            conv.apply(data, result, new double[conv.getSize()], new double[conv.getSize()]);
+            return result;
+        }
         return fir(filter, data, filterside, data.length+filterside);
     }
 
+    /* Apply an odd filter to the first n values of data, writing the result
+     * to the first n values of result. */
+    private static void applyOddFilter(double[] filter, double[] data, int n, double[] result) {
+        int filterside = (filter.length-1)/2;
+        assert((filter.length-1)%2 == 0);
+        fir(filter, data, n, filterside, n+filterside, result);
+    }
+
+    /* Apply an odd filter to the first n values of data, writing only the
+     * values from index from (inclusive) to index to (exclusive) of the
+     * result. Every value depends only on data, so disjoint ranges may be
+     * calculated concurrently. */
+    static void applyOddFilter(double[] filter, double[] data, int n, int from, int to, double[] result) {
+        int filterside = (filter.length-1)/2;
+        assert((filter.length-1)%2 == 0);
+        for(int i=from+filterside; i<to+filterside; i++) {
+            double sum = 0;
+            for(int j=Math.max(0,i-(n-1)); j<Math.min(filter.length,i+1); j++) {
+                sum += data[i-j]*filter[j];
+            }
+            result[i-filterside] = sum;
+        }
+    }
+
+    /* Apply the resolution filter of a plan to the first plan.size() values
+     * of data. The transformed filter cached in the plan is used if FFT
+     * convolution is faster than the direct one. */
+    static void convolve(SimulationPlan plan, double stddevrad, double[] filter, SimulationWorkspace ws, double[] data, double[] result) {
+        FFTConvolver conv = plan.fftConvolver(stddevrad);
+        if(conv != null) {
+            ws.ensureFFT(conv.getSize());
+            conv.apply(data, result, ws.fft_re, ws.fft_im);
+        }
+        else
+            applyOddFilter(filter, data, plan.size(), result);
+    }
+
     /*
      * Create an odd gaussian filter
      *
@@ -56,7 +110,7 @@ public class XRRSimul {
          filter /= sum(filter);
        end
      */
-    private static double[] gaussianFilter(double dalpha0rad, double stddevrad, double stddevs) {
+    static double[] gaussianFilter(double dalpha0rad, double stddevrad, double stddevs) {
         int filterside;
         double[] filter = null;
 
@@ -118,6 +172,7 @@ public class XRRSimul {
         double d = 0;
         double[] ds;
 
+        layers = layers.unroll();
         for(int i=0; i<layers.getSize(); i++) {
             Layer l = layers.getElementAt(i);
             min = Math.min(min, d - stddevs*l.getRoughness().getExpected());
@@ -201,6 +256,7 @@ public class XRRSimul {
         int n;
         double d = 0;
 
+        layers = layers.unroll();
         n = layers.getSize();
         mu = new double[n];
         stddev = new double[n];
@@ -537,38 +593,83 @@ public class XRRSimul {
      */
 
     public static double[] rawSimulateComplexBufferArray(double[] alpha0rad, double[] delta, double[] beta, double[] d, double[] r, double lambda, double stddevrad, double beam) {
+        SimulationWorkspace ws = new SimulationWorkspace(alpha0rad.length, 0);
+        double[] result = new double[alpha0rad.length];
+        rawSimulateComplexBufferArray(ws, alpha0rad, delta, beta, d, r, lambda, stddevrad, beam, result);
+        return result;
+    }
+
+    /** The real simulation code using complex buffer arrays and a reusable
+     * workspace.
+     *
+     * <p>
+     *
+     * This function is identical to rawSimulateComplexBufferArray without the
+     * workspace parameter, except that all temporary arrays are taken from
+     * the workspace and the result is written to a caller-supplied array.
+     *
+     * @param ws the workspace, which must not be used by other threads
+     * @param alpha0rad angles of incidence in radians
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least alpha0rad.length elements where the
+     * absolute values of reflectivity for intensity are stored
+     *
+     */
+    public static void rawSimulateComplexBufferArray(SimulationWorkspace ws, double[] alpha0rad, double[] delta, double[] beta, double[] d, double[] r, double lambda, double stddevrad, double beam, double[] result) {
+        rawSimulateComplexBufferArray(ws.plan(alpha0rad), ws, delta, beta, d, r, lambda, stddevrad, beam, result);
+    }
+
+    /** The real simulation code using a precompiled plan and a reusable
+     * workspace.
+     *
+     * <p>
+     *
+     * The angles of incidence, their squares and sines, and the resolution
+     * filter are taken from the plan, so nothing that depends on the angles
+     * alone is recalculated.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     *
+     */
+    public static void rawSimulateComplexBufferArray(SimulationPlan plan, SimulationWorkspace ws, double[] delta, double[] beta, double[] d, double[] r, double lambda, double stddevrad, double beam, double[] result) {
         ComplexBufferArray R;
         double[] R2;
         ComplexBufferArray[] kz;
         double k0 = 2*Math.PI/lambda;
-        final double stddevs = 4;
-        double[] filter = null;
-        double dalpha0rad = alpha0rad.length > 1 ? (alpha0rad[alpha0rad.length-1] - alpha0rad[0])/(alpha0rad.length-1) : 1;
-
-
-        filter = gaussianFilter(dalpha0rad, stddevrad, stddevs);
-
-        if(filter != null) {
-            if(!isUniformlySpaced(alpha0rad)) {
-                //throw new RuntimeException("Measurement points not uniformly spaced");
-                filter = null;
-            }
-        }
-
-        R = new ComplexBufferArray(alpha0rad.length);
-        R2 = new double[alpha0rad.length];
-        kz = new ComplexBufferArray[2];
-        for (int i = 0; i<kz.length; i++)
-        {
-            kz[i] = new ComplexBufferArray(alpha0rad.length);
-        }
+        double[] alpha0rad = plan.alpha0rad;
+        double[] alpha0sq = plan.alpha0sq;
+        double[] sinAlpha0 = plan.sinAlpha0;
+        double[] filter = plan.filter(stddevrad);
+
+        ws.ensureComplexAngles(alpha0rad.length);
+        R = ws.R;
+        R2 = filter != null ? ws.R2 : result;
+        kz = ws.kz;
+        for(int j=0; j<alpha0rad.length; j++)
+            R.set(j, 0, 0);
 
         //ComplexBuffer kz0, kz1;
-        ComplexBuffer num = new ComplexBuffer(), den = new ComplexBuffer();
-        ComplexBuffer ri = new ComplexBuffer();
-        ComplexBuffer roughri = new ComplexBuffer();
-        ComplexBuffer b = new ComplexBuffer(); // ri*ph
-        ComplexBuffer d_times_minus_two_i = new ComplexBuffer();
+        ComplexBuffer num = ws.num, den = ws.den;
+        ComplexBuffer ri = ws.ri;
+        ComplexBuffer roughri = ws.roughri;
+        ComplexBuffer b = ws.b; // ri*ph
+        ComplexBuffer d_times_minus_two_i = ws.d_times_minus_two_i;
 
         /* we only calculate wavevector for i==d.length,
          * other calculations are done starting from i==d.length-1 */
@@ -582,10 +683,8 @@ public class XRRSimul {
 
             /* a bit tricky optimization */
             for(int j=0; j<alpha0rad.length; j++) {
-                double alpha0 = alpha0rad[j];
-
                 // Calculate z component of wavevector
-                kz0_ar.set(j, alpha0*alpha0-two_times_delta, minus_two_times_beta)
+                kz0_ar.set(j, alpha0sq[j]-two_times_delta, minus_two_times_beta)
                          .sqrtInPlace(j).multiplyInPlace(j, k0);
             }
             if(i == d.length)
@@ -621,9 +720,9 @@ public class XRRSimul {
                 R.set(j, num).divideInPlace(j, den);
             }
         }
-        for(int i=0; i<R2.length; i++) {
+        for(int i=0; i<alpha0rad.length; i++) {
             double re = R.getReal(i), im = R.getImag(i);
-            double F = beam*Math.sin(alpha0rad[i]);
+            double F = beam*sinAlpha0[i];
             if (F > 1.0)
                 F = 1.0;
             R2[i] = re*re + im*im;
@@ -631,9 +730,7 @@ public class XRRSimul {
         }
 
         if(filter != null)
-            return applyOddFilter(filter, R2);
-        else
-            return R2;
+            convolve(plan, stddevrad, filter, ws, R2, result);
     }
 
 
@@ -674,35 +771,79 @@ public class XRRSimul {
      */
 
     public static double[] rawSimulate(double[] alpha0rad, double[] delta, double[] beta, double[] d, double[] r, double lambda, double stddevrad, double beam) {
+        SimulationWorkspace ws = new SimulationWorkspace(alpha0rad.length, 0);
+        double[] result = new double[alpha0rad.length];
+        rawSimulate(ws, alpha0rad, delta, beta, d, r, lambda, stddevrad, beam, result);
+        return result;
+    }
+
+    /** The real simulation code using a reusable workspace.
+     *
+     * <p>
+     *
+     * This function is identical to rawSimulate without the workspace
+     * parameter, except that all temporary arrays are taken from the
+     * workspace and the result is written to a caller-supplied array. When
+     * the same workspace and output array are used for repeated simulations
+     * of the same problem, no memory is allocated.
+     *
+     * @param ws the workspace, which must not be used by other threads
+     * @param alpha0rad angles of incidence in radians
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least alpha0rad.length elements where the
+     * absolute values of reflectivity for intensity are stored
+     *
+     */
+    public static void rawSimulate(SimulationWorkspace ws, double[] alpha0rad, double[] delta, double[] beta, double[] d, double[] r, double lambda, double stddevrad, double beam, double[] result) {
+        rawSimulate(ws.plan(alpha0rad), ws, delta, beta, d, r, lambda, stddevrad, beam, result);
+    }
+
+    /** The real simulation code using a precompiled plan and a reusable
+     * workspace.
+     *
+     * <p>
+     *
+     * The angles of incidence, their squares and sines, and the resolution
+     * filter are taken from the plan, so nothing that depends on the angles
+     * alone is recalculated.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     *
+     */
+    public static void rawSimulate(SimulationPlan plan, SimulationWorkspace ws, double[] delta, double[] beta, double[] d, double[] r, double lambda, double stddevrad, double beam, double[] result) {
         double[] R_real;
         double[] R_imag;
         double[] R2;
         double[][] kz_reals;
         double[][] kz_imags;
         double k0 = 2*Math.PI/lambda;
-        final double stddevs = 4;
-        double[] filter = null;
-        double dalpha0rad = alpha0rad.length > 1 ? (alpha0rad[alpha0rad.length-1] - alpha0rad[0])/(alpha0rad.length-1) : 1;
-
-
-        filter = gaussianFilter(dalpha0rad, stddevrad, stddevs);
-
-        if(filter != null) {
-            if(!isUniformlySpaced(alpha0rad)) {
-                //throw new RuntimeException("Measurement points not uniformly spaced");
-                filter = null;
-            }
-        }
-
-        R_real = new double[alpha0rad.length];
-        R_imag = new double[alpha0rad.length];
-        R2 = new double[alpha0rad.length];
-        kz_reals = new double[2][];
-        kz_imags = new double[2][];
-        for(int i=0; i<kz_reals.length; i++) {
-            kz_reals[i] = new double[alpha0rad.length];
-            kz_imags[i] = new double[alpha0rad.length];
-        }
+        double[] alpha0rad = plan.alpha0rad;
+        double[] alpha0sq = plan.alpha0sq;
+        double[] sinAlpha0 = plan.sinAlpha0;
+        double[] filter = plan.filter(stddevrad);
+
+        ws.ensureAngles(alpha0rad.length);
+        R_real = ws.R_real;
+        R_imag = ws.R_imag;
+        R2 = filter != null ? ws.R2 : result;
+        kz_reals = ws.kz_reals;
+        kz_imags = ws.kz_imags;
         for(int i=0; i<alpha0rad.length; i++) // this is important
             R_real[i] = R_imag[i] = 0;
 
@@ -712,10 +853,8 @@ public class XRRSimul {
 
             /* a bit tricky optimization */
             for(int j=0; j<alpha0rad.length; j++) {
-                double alpha0 = alpha0rad[j];
-
                 // Calculate z component of wavevector
-                double sq_real = alpha0*alpha0 - 2*delta[i-1];
+                double sq_real = alpha0sq[j] - 2*delta[i-1];
                 double sq_imag = - 2*beta[i-1];
                 double absval = Math.sqrt(sq_real*sq_real + sq_imag*sq_imag);
                 kz_reals[(i-1)%2][j] = k0*Math.sqrt((absval+sq_real)/2);
@@ -795,8 +934,8 @@ public class XRRSimul {
                 R_imag[j] = (num_imag*den_real - num_real*den_imag)/divisor;
             }
         }
-        for(int i=0; i<R2.length; i++) {
-            double F = beam*Math.sin(alpha0rad[i]);
+        for(int i=0; i<alpha0rad.length; i++) {
+            double F = beam*sinAlpha0[i];
             if (F > 1.0)
                 F = 1.0;
             R2[i] = R_real[i]*R_real[i] + R_imag[i]*R_imag[i];
@@ -805,10 +944,831 @@ public class XRRSimul {
 
 
         if(filter != null)
-            return applyOddFilter(filter, R2);
-        else
-            return R2;
+            convolve(plan, stddevrad, filter, ws, R2, result);
+    }
+
+    /** The real simulation code organized for vectorization.
+     *
+     * <p>
+     *
+     * This function calculates the same result as rawSimulate with a plan,
+     * but each step of the recursion is split into separate passes over all
+     * the angles: the wavevector, the Fresnel coefficients, the arguments of
+     * the exponentials, the exponentials themselves and the recursive
+     * update. The arithmetic passes are simple loops over plain arrays,
+     * which the JIT compiler can translate to SIMD instructions. Only the
+     * exp, cos and sin pass remains scalar.
+     *
+     * <p>
+     *
+     * The intermediate arrays are taken from the workspace.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     *
+     */
+    public static void rawSimulateVector(SimulationPlan plan, SimulationWorkspace ws, double[] delta, double[] beta, double[] d, double[] r, double lambda, double stddevrad, double beam, double[] result) {
+        int n = plan.size();
+        double k0 = 2*Math.PI/lambda;
+        double[] alpha0sq = plan.alpha0sq;
+        double[] sinAlpha0 = plan.sinAlpha0;
+        double[] filter = plan.filter(stddevrad);
+
+        ws.ensureVector(n);
+        double[] R_real = ws.R_real, R_imag = ws.R_imag;
+        double[] R2 = filter != null ? ws.R2 : result;
+        double[] ri_real = ws.ri_real, ri_imag = ws.ri_imag;
+        double[] ph_real = ws.ph_real, ph_imag = ws.ph_imag;
+        double[] rough_real = ws.rough_real, rough_imag = ws.rough_imag;
+        for(int j=0; j<n; j++) // this is important
+            R_real[j] = R_imag[j] = 0;
+
+        /* we only calculate wavevector for i==d.length,
+         * other calculations are done starting from i==d.length-1 */
+        for(int i=d.length; i>=1; i--) {
+            double[] kz_real = ws.kz_reals[(i-1)%2], kz_imag = ws.kz_imags[(i-1)%2];
+            double[] kz1_real = ws.kz_reals[i%2], kz1_imag = ws.kz_imags[i%2];
+            double two_times_delta = 2*delta[i-1];
+            double minus_two_times_beta = -2*beta[i-1];
+
+            // z component of wavevector
+            for(int j=0; j<n; j++) {
+                double sq_real = alpha0sq[j] - two_times_delta;
+                double absval = Math.sqrt(sq_real*sq_real + minus_two_times_beta*minus_two_times_beta);
+                kz_real[j] = k0*Math.sqrt((absval+sq_real)/2);
+                kz_imag[j] = -k0*Math.sqrt((absval-sq_real)/2);
+            }
+            if(i == d.length)
+                continue;
+
+            double d_i = d[i];
+            double roughness_factor = -2*r[i]*r[i];
+
+            // Fresnel reflection coefficient and arguments of exponentials
+            for(int j=0; j<n; j++) {
+                double num_real = kz_real[j] - kz1_real[j];
+                double num_imag = kz_imag[j] - kz1_imag[j];
+                double den_real = kz_real[j] + kz1_real[j];
+                double den_imag = kz_imag[j] + kz1_imag[j];
+                double divisor = den_real*den_real + den_imag*den_imag;
+                ri_real[j] = (num_real*den_real + num_imag*den_imag)/divisor;
+                ri_imag[j] = (num_imag*den_real - num_real*den_imag)/divisor;
+                ph_real[j] = 2*kz1_imag[j]*d_i;
+                ph_imag[j] = -2*kz1_real[j]*d_i;
+                rough_real[j] = roughness_factor*(kz_real[j]*kz1_real[j]-kz_imag[j]*kz1_imag[j]);
+                rough_imag[j] = roughness_factor*(kz_real[j]*kz1_imag[j]+kz_imag[j]*kz1_real[j]);
+            }
+
+            // exponentials, the only scalar pass, which also handles NaNs
+            // so that the other passes stay free of branches
+            for(int j=0; j<n; j++) {
+                double ph_abs = Math.exp(ph_real[j]);
+                double rough_abs = Math.exp(rough_real[j]);
+                ph_real[j] = ph_abs*Math.cos(ph_imag[j]);
+                ph_imag[j] = ph_abs*Math.sin(ph_imag[j]);
+                double rr = rough_abs*Math.cos(rough_imag[j]);
+                double ri = rough_abs*Math.sin(rough_imag[j]);
+                /* this can actually occur at small angles when there's no reflection. */
+                if(Double.isNaN(ri_real[j]) || Double.isNaN(ri_imag[j])) {
+                    ri_real[j] = 0;
+                    ri_imag[j] = 0;
+                }
+                rough_real[j] = rr;
+                rough_imag[j] = ri;
+            }
+
+            // recursive formula
+            for(int j=0; j<n; j++) {
+                double roughri_real = ri_real[j]*rough_real[j] - ri_imag[j]*rough_imag[j];
+                double roughri_imag = ri_real[j]*rough_imag[j] + ri_imag[j]*rough_real[j];
+
+                // a = ri + R[j]*ph
+                double num_real = roughri_real + R_real[j]*ph_real[j] - R_imag[j]*ph_imag[j];
+                double num_imag = roughri_imag + R_real[j]*ph_imag[j] + R_imag[j]*ph_real[j];
+
+                // b = ri*ph
+                double b_real = roughri_real*ph_real[j] - roughri_imag*ph_imag[j];
+                double b_imag = roughri_real*ph_imag[j] + roughri_imag*ph_real[j];
+
+                // c = 1 + R[j]*b = 1 + R[j]*ri*ph
+                double den_real = 1 + R_real[j]*b_real - R_imag[j]*b_imag;
+                double den_imag = R_real[j]*b_imag + R_imag[j]*b_real;
+
+                double divisor = den_real*den_real + den_imag*den_imag;
+
+                R_real[j] = (num_real*den_real + num_imag*den_imag)/divisor;
+                R_imag[j] = (num_imag*den_real - num_real*den_imag)/divisor;
+            }
+        }
+        for(int j=0; j<n; j++) {
+            double F = beam*sinAlpha0[j];
+            if (F > 1.0)
+                F = 1.0;
+            R2[j] = (R_real[j]*R_real[j] + R_imag[j]*R_imag[j])*F;
+        }
+
+        if(filter != null)
+            convolve(plan, stddevrad, filter, ws, R2, result);
+    }
+
+    /** The real simulation code with parameter derivatives.
+     *
+     * <p>
+     *
+     * This function calculates the same reflectivity as rawSimulate and, in
+     * the same pass, its derivatives with respect to the thickness, the
+     * density and the roughness of every layer. The derivatives of the
+     * reflection coefficient are propagated through the recursion in
+     * forward mode: each step multiplies the derivatives of the layers
+     * below by the derivative of the new reflection coefficient with respect
+     * to the old one and adds the derivatives with respect to the
+     * wavevectors, the thickness and the roughness of the step. The cost is
+     * that of a few simulations for a handful of layers, instead of one
+     * simulation per parameter for finite differences.
+     *
+     * <p>
+     *
+     * The density enters through delta and beta, so the derivatives of delta
+     * and beta with respect to the density are given for each layer. The
+     * convolution is linear, so the derivatives are convolved like the
+     * reflectivity.
+     *
+     * <p>
+     *
+     * Row 3*i of jac is the derivative with respect to the thickness d[i],
+     * row 3*i+1 with respect to the density of layer i and row 3*i+2 with
+     * respect to the roughness r[i]. The rows of the ambient layer and the
+     * thickness row of the substrate are zero.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param ddelta the derivatives of delta with respect to density
+     * @param dbeta the derivatives of beta with respect to density
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     * @param jac 3*d.length arrays of at least plan.size() elements where the
+     * derivatives are stored
+     * @param dbeam an array of at least plan.size() elements where the
+     * derivative with respect to beam is stored, or null
+     *
+     */
+    public static void rawSimulateJacobian(SimulationPlan plan, SimulationWorkspace ws, double[] delta, double[] beta, double[] d, double[] r, double[] ddelta, double[] dbeta, double lambda, double stddevrad, double beam, double[] result, double[][] jac, double[] dbeam) {
+        int n = plan.size();
+        int L = d.length;
+        double k0 = 2*Math.PI/lambda;
+        double k0sq = k0*k0;
+        double[] alpha0sq = plan.alpha0sq;
+        double[] sinAlpha0 = plan.sinAlpha0;
+        double[] filter = plan.filter(stddevrad);
+
+        ws.ensureJacobian(3*L, n);
+        double[] R_real = ws.R_real, R_imag = ws.R_imag;
+        double[][] D_real = ws.D_real, D_imag = ws.D_imag;
+        double[] G_real = ws.G_real, G_imag = ws.G_imag;
+        double[] dU_real = ws.dU_real, dU_imag = ws.dU_imag;
+        double[] dV_real = ws.dV_real, dV_imag = ws.dV_imag;
+        double[] dD_real = ws.dD_real, dD_imag = ws.dD_imag;
+        double[] dS_real = ws.dS_real, dS_imag = ws.dS_imag;
+        for(int j=0; j<n; j++) // this is important
+            R_real[j] = R_imag[j] = 0;
+        for(int row=0; row<3*L; row++) {
+            Arrays.fill(D_real[row], 0, n, 0);
+            Arrays.fill(D_imag[row], 0, n, 0);
+        }
+
+        /* we only calculate wavevector for i==d.length,
+         * other calculations are done starting from i==d.length-1 */
+        for(int i=L; i>=1; i--) {
+            double[] kz_real = ws.kz_reals[(i-1)%2], kz_imag = ws.kz_imags[(i-1)%2];
+            double[] kz1_real = ws.kz_reals[i%2], kz1_imag = ws.kz_imags[i%2];
+            double two_times_delta = 2*delta[i-1];
+            double minus_two_times_beta = -2*beta[i-1];
+
+            // z component of wavevector
+            for(int j=0; j<n; j++) {
+                double sq_real = alpha0sq[j] - two_times_delta;
+                double absval = Math.sqrt(sq_real*sq_real + minus_two_times_beta*minus_two_times_beta);
+                kz_real[j] = k0*Math.sqrt((absval+sq_real)/2);
+                kz_imag[j] = -k0*Math.sqrt((absval-sq_real)/2);
+            }
+            if(i == L)
+                continue;
+
+            double d_i = d[i];
+            double r_i = r[i];
+            double roughness_factor = -2*r_i*r_i;
+
+            for(int j=0; j<n; j++) {
+                double ur = kz_real[j], ui = kz_imag[j];
+                double vr = kz1_real[j], vi = kz1_imag[j];
+                double Rr = R_real[j], Ri = R_imag[j];
+
+                // Fresnel coefficient ri = (u-v)/(u+v) and its derivatives
+                double sr = ur + vr, si = ui + vi;
+                double s2r = sr*sr - si*si, s2i = 2*sr*si;
+                double s2abs = s2r*s2r + s2i*s2i;
+                double rir, rii, driur, driui, drivr, drivi;
+                if(s2abs == 0 || Double.isNaN(s2abs)) {
+                    /* this can actually occur at small angles when there's no reflection. */
+                    rir = rii = driur = driui = drivr = drivi = 0;
+                } else {
+                    double sabs = sr*sr + si*si;
+                    double nr = ur - vr, ni = ui - vi;
+                    rir = (nr*sr + ni*si)/sabs;
+                    rii = (ni*sr - nr*si)/sabs;
+                    // 2v/s^2 and -2u/s^2
+                    driur = 2*(vr*s2r + vi*s2i)/s2abs;
+                    driui = 2*(vi*s2r - vr*s2i)/s2abs;
+                    drivr = -2*(ur*s2r + ui*s2i)/s2abs;
+                    drivi = -2*(ui*s2r - ur*s2i)/s2abs;
+                }
+
+                // roughness factor exp(-2 r^2 u v)
+                double uvr = ur*vr - ui*vi, uvi = ur*vi + ui*vr;
+                double rabs = Math.exp(roughness_factor*uvr);
+                double ror = rabs*Math.cos(roughness_factor*uvi);
+                double roi = rabs*Math.sin(roughness_factor*uvi);
+
+                // phase factor exp(-2 i d v)
+                double pabs = Math.exp(2*vi*d_i);
+                double phr = pabs*Math.cos(-2*vr*d_i);
+                double phi = pabs*Math.sin(-2*vr*d_i);
+
+                // a = ri*rough, q = R*ph
+                double ar = rir*ror - rii*roi, ai = rir*roi + rii*ror;
+                double qr = Rr*phr - Ri*phi, qi = Rr*phi + Ri*phr;
+
+                // R' = (a+q)/(1+a*q)
+                double denr = 1 + ar*qr - ai*qi, deni = ar*qi + ai*qr;
+                double denabs = denr*denr + deni*deni;
+                double numr = ar + qr, numi = ai + qi;
+                R_real[j] = (numr*denr + numi*deni)/denabs;
+                R_imag[j] = (numi*denr - numr*deni)/denabs;
+
+                // dR'/da = (1-q^2)/den^2, dR'/dq = (1-a^2)/den^2
+                double den2r = denr*denr - deni*deni, den2i = 2*denr*deni;
+                double den2abs = denabs*denabs;
+                double tr = 1 - (qr*qr - qi*qi), ti = -2*qr*qi;
+                double Rar = (tr*den2r + ti*den2i)/den2abs;
+                double Rai = (ti*den2r - tr*den2i)/den2abs;
+                tr = 1 - (ar*ar - ai*ai);
+                ti = -2*ar*ai;
+                double Rqr = (tr*den2r + ti*den2i)/den2abs;
+                double Rqi = (ti*den2r - tr*den2i)/den2abs;
+
+                // dR'/dR = dR'/dq * ph
+                G_real[j] = Rqr*phr - Rqi*phi;
+                G_imag[j] = Rqr*phi + Rqi*phr;
+
+                // da/du = dri/du*rough + ri*rough*rf*v, likewise for v
+                double xr = driur*ror - driui*roi, xi = driur*roi + driui*ror;
+                double rvr = roughness_factor*vr, rvi = roughness_factor*vi;
+                double ar2 = ar*rvr - ai*rvi, ai2 = ar*rvi + ai*rvr;
+                double daur = xr + ar2, daui = xi + ai2;
+                xr = drivr*ror - drivi*roi;
+                xi = drivr*roi + drivi*ror;
+                double rur = roughness_factor*ur, rui = roughness_factor*ui;
+                ar2 = ar*rur - ai*rui;
+                ai2 = ar*rui + ai*rur;
+                double davr = xr + ar2, davi = xi + ai2;
+
+                // dR'/du
+                dU_real[j] = Rar*daur - Rai*daui;
+                dU_imag[j] = Rar*daui + Rai*daur;
+
+                // R*dR'/dq, dph/dv = -2 i d ph and dph/dd = -2 i v ph
+                double Rqqr = Rqr*Rr - Rqi*Ri, Rqqi = Rqr*Ri + Rqi*Rr;
+                double cr = Rqqr*phr - Rqqi*phi, ci = Rqqr*phi + Rqqi*phr;
+                dV_real[j] = Rar*davr - Rai*davi + 2*d_i*ci;
+                dV_imag[j] = Rar*davi + Rai*davr - 2*d_i*cr;
+                dD_real[j] = 2*(vr*ci + vi*cr);
+                dD_imag[j] = 2*(vi*ci - vr*cr);
+
+                // dR'/dr = dR'/da * a * (-4 r u v)
+                double fr = -4*r_i*uvr, fi = -4*r_i*uvi;
+                double afr = ar*fr - ai*fi, afi = ar*fi + ai*fr;
+                dS_real[j] = Rar*afr - Rai*afi;
+                dS_imag[j] = Rar*afi + Rai*afr;
+            }
+
+            // chain the derivatives of the layers below through R
+            for(int row=3*i; row<3*L; row++) {
+                double[] Dr = D_real[row], Di = D_imag[row];
+                for(int j=0; j<n; j++) {
+                    double x = G_real[j]*Dr[j] - G_imag[j]*Di[j];
+                    Di[j] = G_real[j]*Di[j] + G_imag[j]*Dr[j];
+                    Dr[j] = x;
+                }
+            }
+
+            // derivatives of this step, dkz/drho = -k0^2 (ddelta + i dbeta) / kz
+            double[] Dr = D_real[3*i], Di = D_imag[3*i];
+            for(int j=0; j<n; j++) {
+                Dr[j] += dD_real[j];
+                Di[j] += dD_imag[j];
+            }
+            Dr = D_real[3*i+2];
+            Di = D_imag[3*i+2];
+            for(int j=0; j<n; j++) {
+                Dr[j] += dS_real[j];
+                Di[j] += dS_imag[j];
+            }
+            Dr = D_real[3*i+1];
+            Di = D_imag[3*i+1];
+            for(int j=0; j<n; j++) {
+                double vr = kz1_real[j], vi = kz1_imag[j];
+                double vabs = vr*vr + vi*vi;
+                if(vabs == 0)
+                    continue;
+                double wr = -k0sq*(ddelta[i]*vr + dbeta[i]*vi)/vabs;
+                double wi = -k0sq*(dbeta[i]*vr - ddelta[i]*vi)/vabs;
+                Dr[j] += dV_real[j]*wr - dV_imag[j]*wi;
+                Di[j] += dV_real[j]*wi + dV_imag[j]*wr;
+            }
+            Dr = D_real[3*(i-1)+1];
+            Di = D_imag[3*(i-1)+1];
+            for(int j=0; j<n; j++) {
+                double ur = kz_real[j], ui = kz_imag[j];
+                double uabs = ur*ur + ui*ui;
+                if(uabs == 0)
+                    continue;
+                double wr = -k0sq*(ddelta[i-1]*ur + dbeta[i-1]*ui)/uabs;
+                double wi = -k0sq*(dbeta[i-1]*ur - ddelta[i-1]*ui)/uabs;
+                Dr[j] += dU_real[j]*wr - dU_imag[j]*wi;
+                Di[j] += dU_real[j]*wi + dU_imag[j]*wr;
+            }
+        }
+
+        // intensities, d|R|^2 = 2 Re(conj(R) dR)
+        double[] R2 = filter != null ? ws.R2 : result;
+        double[] tmp = filter != null ? ws.dR2 : null;
+        for(int j=0; j<n; j++) {
+            double F = beam*sinAlpha0[j];
+            if (F > 1.0)
+                F = 1.0;
+            R2[j] = (R_real[j]*R_real[j] + R_imag[j]*R_imag[j])*F;
+        }
+        for(int row=0; row<3*L; row++) {
+            double[] out = filter != null ? tmp : jac[row];
+            double[] Dr = D_real[row], Di = D_imag[row];
+            for(int j=0; j<n; j++) {
+                double F = beam*sinAlpha0[j];
+                if (F > 1.0)
+                    F = 1.0;
+                out[j] = 2*(R_real[j]*Dr[j] + R_imag[j]*Di[j])*F;
+            }
+            if(filter != null)
+                convolve(plan, stddevrad, filter, ws, tmp, jac[row]);
+        }
+        if(dbeam != null) {
+            double[] out = filter != null ? tmp : dbeam;
+            for(int j=0; j<n; j++) {
+                out[j] = beam*sinAlpha0[j] > 1.0 ? 0 : (R_real[j]*R_real[j] + R_imag[j]*R_imag[j])*sinAlpha0[j];
+            }
+            if(filter != null)
+                convolve(plan, stddevrad, filter, ws, tmp, dbeam);
+        }
+
+        if(filter != null)
+            convolve(plan, stddevrad, filter, ws, R2, result);
     }
+
+    /* Cody-Waite splitting of pi/2 and ln(2) for the float approximations */
+    private static final float PIO2_1 = 1.5703125f;
+    private static final float PIO2_2 = 4.837512969970703125e-4f;
+    private static final float PIO2_3 = 7.54978995489188216e-8f;
+    private static final float LN2_1 = 0.693359375f;
+    private static final float LN2_2 = -2.12194440e-4f;
+    private static final float ROUND_MAGIC = 12582912f;
+    /* exp(-30) is about 1e-13, so anything attenuated more than that adds
+     * less than 1e-26 to the reflectivity */
+    private static final float MIN_EXP_FLOAT = -30f;
+
+    /** The real simulation code in single precision.
+     *
+     * <p>
+     *
+     * This function is organized like rawSimulateVector, but the recursion
+     * runs on float arrays and the exponentials, cosines and sines are
+     * calculated with polynomial approximations instead of Math.exp,
+     * Math.cos and Math.sin, which exist only for doubles. The relative
+     * error of the reflectivity is of the order of 1e-4 where it is above
+     * 1e-10, which is plenty for comparing candidates far from the optimum
+     * but not for refining a fit. Half the memory traffic and the cheaper
+     * approximations make this kernel faster than the double precision ones,
+     * the more so the more layers there are.
+     *
+     * <p>
+     *
+     * The wavevectors are calculated in double precision, because the
+     * difference of alpha0sq and 2*delta loses significant digits near the
+     * critical angle, and stored as multiples of k0, so that the products of
+     * the recursion stay well inside the range of floats. The intensity and
+     * the convolution are calculated in double precision as well.
+     *
+     * <p>
+     *
+     * The intermediate arrays are taken from the workspace.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     *
+     */
+    public static void rawSimulateFloat(SimulationPlan plan, SimulationWorkspace ws, double[] delta, double[] beta, double[] d, double[] r, double lambda, double stddevrad, double beam, double[] result) {
+        int n = plan.size();
+        double k0 = 2*Math.PI/lambda;
+        double[] alpha0sq = plan.alpha0sq;
+        double[] sinAlpha0 = plan.sinAlpha0;
+        double[] filter = plan.filter(stddevrad);
+
+        ws.ensureFloat(n);
+        double[] R2 = filter != null ? ws.R2 : result;
+        float[] R_real = ws.fR_real, R_imag = ws.fR_imag;
+        float[] ri_real = ws.fri_real, ri_imag = ws.fri_imag;
+        float[] ph_real = ws.fph_real, ph_imag = ws.fph_imag;
+        float[] rough_real = ws.frough_real, rough_imag = ws.frough_imag;
+        for(int j=0; j<n; j++) // this is important
+            R_real[j] = R_imag[j] = 0;
+
+        /* we only calculate wavevector for i==d.length,
+         * other calculations are done starting from i==d.length-1 */
+        for(int i=d.length; i>=1; i--) {
+            float[] kz_real = ws.fkz_reals[(i-1)%2], kz_imag = ws.fkz_imags[(i-1)%2];
+            float[] kz1_real = ws.fkz_reals[i%2], kz1_imag = ws.fkz_imags[i%2];
+            double two_times_delta = 2*delta[i-1];
+            double minus_two_times_beta = -2*beta[i-1];
+
+            // z component of wavevector divided by k0
+            for(int j=0; j<n; j++) {
+                double sq_real = alpha0sq[j] - two_times_delta;
+                double absval = Math.sqrt(sq_real*sq_real + minus_two_times_beta*minus_two_times_beta);
+                kz_real[j] = (float)Math.sqrt((absval+sq_real)/2);
+                kz_imag[j] = (float)-Math.sqrt((absval-sq_real)/2);
+            }
+            if(i == d.length)
+                continue;
+
+            float d_i = (float)(k0*d[i]);
+            float roughness_factor = (float)(-2*k0*r[i]*k0*r[i]);
+
+            // Fresnel reflection coefficient and arguments of exponentials
+            for(int j=0; j<n; j++) {
+                float num_real = kz_real[j] - kz1_real[j];
+                float num_imag = kz_imag[j] - kz1_imag[j];
+                float den_real = kz_real[j] + kz1_real[j];
+                float den_imag = kz_imag[j] + kz1_imag[j];
+                float divisor = den_real*den_real + den_imag*den_imag;
+                ri_real[j] = (num_real*den_real + num_imag*den_imag)/divisor;
+                ri_imag[j] = (num_imag*den_real - num_real*den_imag)/divisor;
+                ph_real[j] = 2*kz1_imag[j]*d_i;
+                ph_imag[j] = -2*kz1_real[j]*d_i;
+                rough_real[j] = roughness_factor*(kz_real[j]*kz1_real[j]-kz_imag[j]*kz1_imag[j]);
+                rough_imag[j] = roughness_factor*(kz_real[j]*kz1_imag[j]+kz_imag[j]*kz1_real[j]);
+            }
+
+            // exponentials, limited to exp(MIN_EXP_FLOAT) so that the
+            // recursion doesn't produce denormals, which are very slow
+            for(int j=0; j<n; j++) {
+                float ph_abs = expFloat(Math.max(MIN_EXP_FLOAT, ph_real[j]));
+                float rough_abs = expFloat(Math.max(MIN_EXP_FLOAT, rough_real[j]));
+                float phi = ph_imag[j], rho = rough_imag[j];
+                ph_real[j] = ph_abs*cosFloat(phi);
+                ph_imag[j] = ph_abs*sinFloat(phi);
+                rough_real[j] = rough_abs*cosFloat(rho);
+                rough_imag[j] = rough_abs*sinFloat(rho);
+                /* this can actually occur at small angles when there's no reflection. */
+                if(ri_real[j] != ri_real[j] || ri_imag[j] != ri_imag[j]) {
+                    ri_real[j] = 0;
+                    ri_imag[j] = 0;
+                }
+            }
+
+            // recursive formula
+            for(int j=0; j<n; j++) {
+                float roughri_real = ri_real[j]*rough_real[j] - ri_imag[j]*rough_imag[j];
+                float roughri_imag = ri_real[j]*rough_imag[j] + ri_imag[j]*rough_real[j];
+
+                // a = ri + R[j]*ph
+                float num_real = roughri_real + R_real[j]*ph_real[j] - R_imag[j]*ph_imag[j];
+                float num_imag = roughri_imag + R_real[j]*ph_imag[j] + R_imag[j]*ph_real[j];
+
+                // b = ri*ph
+                float b_real = roughri_real*ph_real[j] - roughri_imag*ph_imag[j];
+                float b_imag = roughri_real*ph_imag[j] + roughri_imag*ph_real[j];
+
+                // c = 1 + R[j]*b = 1 + R[j]*ri*ph
+                float den_real = 1 + R_real[j]*b_real - R_imag[j]*b_imag;
+                float den_imag = R_real[j]*b_imag + R_imag[j]*b_real;
+
+                float divisor = den_real*den_real + den_imag*den_imag;
+
+                R_real[j] = (num_real*den_real + num_imag*den_imag)/divisor;
+                R_imag[j] = (num_imag*den_real - num_real*den_imag)/divisor;
+            }
+        }
+        for(int j=0; j<n; j++) {
+            double F = beam*sinAlpha0[j];
+            if (F > 1.0)
+                F = 1.0;
+            double Rr = R_real[j], Ri = R_imag[j];
+            R2[j] = (Rr*Rr + Ri*Ri)*F;
+        }
+
+        if(filter != null)
+            convolve(plan, stddevrad, filter, ws, R2, result);
+    }
+
+    /* Rounds to the nearest integer without a branch, for |x| < 2^22. */
+    private static float roundFloat(float x) {
+        return (x + ROUND_MAGIC) - ROUND_MAGIC;
+    }
+
+    /* Approximates exp(x) with a relative error of about 1e-7. Arguments
+     * below -87 give the smallest normal float instead of a denormal or 0. */
+    static float expFloat(float x) {
+        x = Math.max(-87f, Math.min(88f, x));
+        float k = roundFloat(x*1.44269504088896341f);
+        float f = x - k*LN2_1 - k*LN2_2;
+        float p = ((((1.9875691500e-4f*f + 1.3981999507e-3f)*f
+                     + 8.3334519073e-3f)*f + 4.1665795894e-2f)*f
+                   + 1.6666665459e-1f)*f + 5.0000001201e-1f;
+        p = p*f*f + f + 1;
+        return p*Float.intBitsToFloat(((int)k+127) << 23);
+    }
+
+    private static float sinPoly(float y) {
+        float z = y*y;
+        return ((-1.9515295891e-4f*z + 8.3321608736e-3f)*z
+                - 1.6666654611e-1f)*z*y + y;
+    }
+
+    private static float cosPoly(float y) {
+        float z = y*y;
+        return ((2.443315711809948e-5f*z - 1.388731625493765e-3f)*z
+                + 4.166664568298827e-2f)*z*z - 0.5f*z + 1;
+    }
+
+    /*
+       sin and cos reduce the argument to [-pi/4, pi/4] by k quarter turns
+       and then pick the sine or the cosine polynomial by the parity of k
+       and flip the sign bit by the next bit of k, all without branches,
+       which would be mispredicted half the time.
+     */
+
+    /* Approximates sin(x) with an absolute error of about 1e-7 for
+     * |x| < 1e3. */
+    static float sinFloat(float x) {
+        float k = roundFloat(x*0.636619772367581343f);
+        float y = x - k*PIO2_1 - k*PIO2_2 - k*PIO2_3;
+        int q = (int)k;
+        float v = (q & 1) == 0 ? sinPoly(y) : cosPoly(y);
+        return Float.intBitsToFloat(Float.floatToRawIntBits(v) ^ ((q & 2) << 30));
+    }
+
+    /* Approximates cos(x) with an absolute error of about 1e-7 for
+     * |x| < 1e3. */
+    static float cosFloat(float x) {
+        float k = roundFloat(x*0.636619772367581343f);
+        float y = x - k*PIO2_1 - k*PIO2_2 - k*PIO2_3;
+        int q = (int)k;
+        float v = (q & 1) == 0 ? cosPoly(y) : sinPoly(y);
+        return Float.intBitsToFloat(Float.floatToRawIntBits(v) ^ (((q+1) & 2) << 30));
+    }
+
+    /* Complex 2x2 matrices are stored as {a, b, c, d} with the real part
+     * of each element followed by the imaginary part. The matrix maps a
+     * reflection coefficient R to (a*R + b)/(c*R + d), so the matrices are
+     * projective and may be scaled freely. */
+
+    /* Sets m to the matrix of one step of the Parratt recursion. */
+    private static void stepMatrix(double kz_real, double kz_imag, double kz1_real, double kz1_imag, double d, double r, double[] m) {
+        // phase factor
+        double ph_real = Math.exp(2*kz1_imag*d)*Math.cos(-2*kz1_real*d);
+        double ph_imag = Math.exp(2*kz1_imag*d)*Math.sin(-2*kz1_real*d);
+
+        // Fresnel reflection coefficient
+        double num_real = kz_real - kz1_real;
+        double num_imag = kz_imag - kz1_imag;
+        double den_real = kz_real + kz1_real;
+        double den_imag = kz_imag + kz1_imag;
+        double divisor = den_real*den_real + den_imag*den_imag;
+        double ri_real = (num_real*den_real + num_imag*den_imag)/divisor;
+        double ri_imag = (num_imag*den_real - num_real*den_imag)/divisor;
+        /* this can actually occur at small angles when there's no reflection. */
+        if(Double.isNaN(ri_real) || Double.isNaN(ri_imag)) {
+            ri_real = 0;
+            ri_imag = 0;
+        }
+
+        double kzkz1_real = kz_real*kz1_real-kz_imag*kz1_imag;
+        double kzkz1_imag = kz_real*kz1_imag+kz_imag*kz1_real;
+        double roughexp_real = -2*r*r*kzkz1_real;
+        double roughexp_imag = -2*r*r*kzkz1_imag;
+        double rough_real = Math.exp(roughexp_real)*Math.cos(roughexp_imag);
+        double rough_imag = Math.exp(roughexp_real)*Math.sin(roughexp_imag);
+        double roughri_real = ri_real*rough_real - ri_imag*rough_imag;
+        double roughri_imag = ri_real*rough_imag + ri_imag*rough_real;
+
+        // R' = (ph*R + ri)/(ri*ph*R + 1)
+        m[0] = ph_real;
+        m[1] = ph_imag;
+        m[2] = roughri_real;
+        m[3] = roughri_imag;
+        m[4] = roughri_real*ph_real - roughri_imag*ph_imag;
+        m[5] = roughri_real*ph_imag + roughri_imag*ph_real;
+        m[6] = 1;
+        m[7] = 0;
+    }
+
+    /* Sets c to a*b and scales it so that its largest component is 1. c may
+     * be the same array as a or b. */
+    private static void matrixMultiply(double[] a, double[] b, double[] c) {
+        double c0 = a[0]*b[0] - a[1]*b[1] + a[2]*b[4] - a[3]*b[5];
+        double c1 = a[0]*b[1] + a[1]*b[0] + a[2]*b[5] + a[3]*b[4];
+        double c2 = a[0]*b[2] - a[1]*b[3] + a[2]*b[6] - a[3]*b[7];
+        double c3 = a[0]*b[3] + a[1]*b[2] + a[2]*b[7] + a[3]*b[6];
+        double c4 = a[4]*b[0] - a[5]*b[1] + a[6]*b[4] - a[7]*b[5];
+        double c5 = a[4]*b[1] + a[5]*b[0] + a[6]*b[5] + a[7]*b[4];
+        double c6 = a[4]*b[2] - a[5]*b[3] + a[6]*b[6] - a[7]*b[7];
+        double c7 = a[4]*b[3] + a[5]*b[2] + a[6]*b[7] + a[7]*b[6];
+        double max = Math.max(Math.max(Math.max(Math.abs(c0), Math.abs(c1)),
+                                       Math.max(Math.abs(c2), Math.abs(c3))),
+                              Math.max(Math.max(Math.abs(c4), Math.abs(c5)),
+                                       Math.max(Math.abs(c6), Math.abs(c7))));
+        if (max == 0 || Double.isInfinite(max) || Double.isNaN(max))
+            max = 1;
+        c[0] = c0/max; c[1] = c1/max; c[2] = c2/max; c[3] = c3/max;
+        c[4] = c4/max; c[5] = c5/max; c[6] = c6/max; c[7] = c7/max;
+    }
+
+    /* Sets p to m raised to the power n >= 0 by repeated squaring. The
+     * contents of m are destroyed. */
+    private static void matrixPower(double[] m, int n, double[] p) {
+        p[0] = 1; p[1] = 0; p[2] = 0; p[3] = 0;
+        p[4] = 0; p[5] = 0; p[6] = 1; p[7] = 0;
+        while (n > 0) {
+            if ((n & 1) != 0)
+                matrixMultiply(p, m, p);
+            n >>= 1;
+            if (n > 0)
+                matrixMultiply(m, m, m);
+        }
+    }
+
+    /** The real simulation code for a layer model with a repeat block.
+     *
+     * <p>
+     *
+     * The layers first..last (inclusive, indices to the arrays) form one
+     * period of a block that is repeated count times. This gives the same
+     * result, apart from rounding errors, as rawSimulate for the layer model
+     * where the period is written out count times, but in O(log count)
+     * time for the block instead of O(count).
+     *
+     * <p>
+     *
+     * Each step of the Parratt recursion maps the reflection coefficient
+     * below an interface to the one above it by a Moebius transformation,
+     * which is represented as a complex 2x2 matrix. The matrices of one
+     * period are multiplied together and the product is raised to the power
+     * count-1 by repeated squaring. The uppermost period is handled
+     * separately, because its upper interface is with the layer above the
+     * block and not with the last layer of the block.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param delta an array containing delta for all the layers
+     * @param beta an array containing beta for all the layers
+     * @param d an array containing the thicknesses of all the layers
+     * @param r an array containing the roughnesses of the upper interfaces of all the layers
+     * @param first the array index of the uppermost layer of the block, at least 1
+     * @param last the array index of the lowermost layer of the block
+     * @param count the number of periods in the block, at least 1
+     * @param lambda wavelength in meters
+     * @param stddevrad standard deviation of angle (instrument resolution) in
+     * radians.
+     * @param result an array of at least plan.size() elements where the
+     * absolute values of reflectivity for intensity are stored
+     *
+     */
+    public static void rawSimulatePeriodic(SimulationPlan plan, SimulationWorkspace ws, double[] delta, double[] beta, double[] d, double[] r, int first, int last, int count, double lambda, double stddevrad, double beam, double[] result) {
+        int n = plan.size();
+        double k0 = 2*Math.PI/lambda;
+        double[] alpha0sq = plan.alpha0sq;
+        double[] sinAlpha0 = plan.sinAlpha0;
+        double[] filter = plan.filter(stddevrad);
+
+        if (first < 1 || first > last || last >= d.length || count < 1)
+            throw new IllegalArgumentException("invalid repeat block");
+        ws.ensureAngles(n);
+        double[] R2 = filter != null ? ws.R2 : result;
+        double[] m = ws.m, q = ws.q, p = ws.p;
+
+        for(int j=0; j<n; j++) {
+            double R_real = 0, R_imag = 0;
+            double kz1_real = 0, kz1_imag = 0;
+            double kzlast_real = 0, kzlast_imag = 0;
+
+            for(int i=d.length; i>=1; i--) {
+                // z component of wavevector of layer i-1
+                double sq_real = alpha0sq[j] - 2*delta[i-1];
+                double sq_imag = - 2*beta[i-1];
+                double absval = Math.sqrt(sq_real*sq_real + sq_imag*sq_imag);
+                double kz_real = k0*Math.sqrt((absval+sq_real)/2);
+                double kz_imag = -k0*Math.sqrt((absval-sq_real)/2);
+
+                if(i == d.length) {
+                    kz1_real = kz_real;
+                    kz1_imag = kz_imag;
+                    continue;
+                }
+                if(i == last) {
+                    kzlast_real = kz1_real;
+                    kzlast_imag = kz1_imag;
+                }
+
+                if(i <= last && i > first) {
+                    // q = M_i*...*M_last
+                    stepMatrix(kz_real, kz_imag, kz1_real, kz1_imag, d[i], r[i], m);
+                    if(i == last)
+                        System.arraycopy(m, 0, q, 0, 8);
+                    else
+                        matrixMultiply(m, q, q);
+                }
+                else if(i == first) {
+                    if(first == last) {
+                        q[0] = 1; q[1] = 0; q[2] = 0; q[3] = 0;
+                        q[4] = 0; q[5] = 0; q[6] = 1; q[7] = 0;
+                    }
+                    // the period below the uppermost one, (M'_first*q)^(count-1)
+                    stepMatrix(kzlast_real, kzlast_imag, kz1_real, kz1_imag, d[i], r[i], m);
+                    matrixMultiply(m, q, m);
+                    matrixPower(m, count-1, p);
+                    // the uppermost period
+                    stepMatrix(kz_real, kz_imag, kz1_real, kz1_imag, d[i], r[i], m);
+                    matrixMultiply(m, q, m);
+                    matrixMultiply(m, p, m);
+
+                    double num_real = m[0]*R_real - m[1]*R_imag + m[2];
+                    double num_imag = m[0]*R_imag + m[1]*R_real + m[3];
+                    double den_real = m[4]*R_real - m[5]*R_imag + m[6];
+                    double den_imag = m[4]*R_imag + m[5]*R_real + m[7];
+                    double divisor = den_real*den_real + den_imag*den_imag;
+                    R_real = (num_real*den_real + num_imag*den_imag)/divisor;
+                    R_imag = (num_imag*den_real - num_real*den_imag)/divisor;
+                }
+                else {
+                    stepMatrix(kz_real, kz_imag, kz1_real, kz1_imag, d[i], r[i], m);
+
+                    // recursive formula
+                    double num_real = m[0]*R_real - m[1]*R_imag + m[2];
+                    double num_imag = m[0]*R_imag + m[1]*R_real + m[3];
+                    double den_real = m[4]*R_real - m[5]*R_imag + 1;
+                    double den_imag = m[4]*R_imag + m[5]*R_real;
+                    double divisor = den_real*den_real + den_imag*den_imag;
+                    R_real = (num_real*den_real + num_imag*den_imag)/divisor;
+                    R_imag = (num_imag*den_real - num_real*den_imag)/divisor;
+                }
+                kz1_real = kz_real;
+                kz1_imag = kz_imag;
+            }
+
+            double F = beam*sinAlpha0[j];
+            if (F > 1.0)
+                F = 1.0;
+            R2[j] = R_real*R_real + R_imag*R_imag;
+            R2[j] *= F;
+        }
+
+        if(filter != null)
+            convolve(plan, stddevrad, filter, ws, R2, result);
+    }
+
     /** Call simulation with layers from a LayerStack.
      *
      * <p>
@@ -831,6 +1791,7 @@ public class XRRSimul {
 
         /* convert the layer stack to delta, beta, thickness and roughness arrays */
 
+        layers = layers.unroll(); /* repeat blocks layer by layer */
         delta = new double[layers.getSize()+1];
         beta = new double[layers.getSize()+1];
         d = new double[layers.getSize()+1];
@@ -872,6 +1833,7 @@ public class XRRSimul {
 
         /* convert the layer stack to delta, beta, thickness and roughness arrays */
 
+        layers = layers.unroll(); /* repeat blocks layer by layer */
         delta = new double[layers.getSize()+1];
         beta = new double[layers.getSize()+1];
         d = new double[layers.getSize()+1];
@@ -914,6 +1876,7 @@ public class XRRSimul {
 
         /* convert the layer stack to delta, beta, thickness and roughness arrays */
 
+        layers = layers.unroll(); /* repeat blocks layer by layer */
         delta = new double[layers.getSize()+1];
         beta = new double[layers.getSize()+1];
         d = new double[layers.getSize()+1];
@@ -934,6 +1897,76 @@ public class XRRSimul {
         return rawSimulateComplexBufferArray(alpha0rad, delta, beta, d, r, lambda, stddevrad, beam);
     }
 
+    /** Call simulation with layers from a LayerStack using a workspace.
+     *
+     * <p>
+     *
+     * The ambient layer (air) is included automatically in the simulation.
+     * The layer property arrays are taken from the workspace.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param layers the layer stack to simulate
+     * @param result an array of at least plan.size() elements for the
+     * simulated reflectivity
+     *
+     */
+
+    public static void simulateComplexBufferArray(SimulationPlan plan, SimulationWorkspace ws, LayerStack layers, double[] result) {
+        simulate(plan, ws, SimulationKernel.SCALAR, layers, result);
+    }
+
+    /** Call a simulation kernel with layers from a LayerStack.
+     *
+     * <p>
+     *
+     * The ambient layer (air) is included automatically in the simulation.
+     * The layer property arrays are taken from the workspace. A repeat block
+     * is simulated with rawSimulatePeriodic regardless of the kernel.
+     *
+     * @param plan the simulation plan of the angles of incidence
+     * @param ws the workspace, which must not be used by other threads
+     * @param kernel the simulation kernel
+     * @param layers the layer stack to simulate
+     * @param result an array of at least plan.size() elements for the
+     * simulated reflectivity
+     *
+     */
+
+    public static void simulate(SimulationPlan plan, SimulationWorkspace ws, SimulationKernel kernel, LayerStack layers, double[] result) {
+        double lambda = layers.getLambda();
+        double stddevrad = layers.getStdDev().getExpected();
+        double beam = layers.getBeam().getExpected();
+
+        ws.ensureLayers(layers.getSize()+1);
+        layerArrays(layers, ws.delta, ws.beta, ws.d, ws.r);
+
+        if(layers.hasRepeat())
+            rawSimulatePeriodic(plan, ws, ws.delta, ws.beta, ws.d, ws.r,
+                                layers.getRepeatFirst()+1,
+                                layers.getRepeatLast()+1,
+                                layers.getRepeatCount(),
+                                lambda, stddevrad, beam, result);
+        else
+            kernel.simulate(plan, ws, ws.delta, ws.beta, ws.d, ws.r, lambda, stddevrad, beam, result);
+    }
+
+    /* Convert the layer stack to delta, beta, thickness and roughness arrays.
+     * The arrays must have room for the layers and the ambient layer. */
+    static void layerArrays(LayerStack layers, double[] delta, double[] beta, double[] d, double[] r) {
+        delta[0] = beta[0] = d[0] = r[0] = 0; /* ambient (air) */
+
+        for(int i=0; i<d.length-1; i++) {
+            Layer layer = layers.getElementAt(i);
+            Compound compound = layer.getXRRCompound();
+
+            d[i+1] = layer.getThickness().getExpected();
+            r[i+1] = layer.getRoughness().getExpected();
+            delta[i+1] = layer.getDensity().getExpected() * compound.getDeltaPerRho();
+            beta[i+1] = delta[i+1] * compound.getBetaPerDelta();
+        }
+    }
+
     /** Call simulation with layers from a LayerStack.
      *
      * <p>
@@ -956,6 +1989,7 @@ public class XRRSimul {
 
         /* convert the layer stack to delta, beta, thickness and roughness arrays */
 
+        layers = layers.unroll(); /* repeat blocks layer by layer */
         delta = new double[layers.getSize()+1];
         beta = new double[layers.getSize()+1];
         d = new double[layers.getSize()+1];
@@ -975,4 +2009,151 @@ public class XRRSimul {
 
         return rawSimulate(alpha0rad, delta, beta, d, r, lambda, stddevrad, beam);
     }
+
+    /* the largest relative difference of b from a where |a| > floor */
+    private static double maxRelativeError(double[] a, double[] b, double floor) {
+        double err = 0;
+        for(int i=0; i<a.length; i++) {
+            if(Math.abs(a[i]) > floor)
+                err = Math.max(err, Math.abs(b[i]-a[i])/Math.abs(a[i]));
+        }
+        return err;
+    }
+
+    /* the largest difference of jac from the central difference
+       (plus-minus)/(2*h), relative to the largest central difference */
+    private static double maxDerivativeError(double[] plus, double[] minus, double h, double[] jac) {
+        double err = 0, max = 0;
+        for(int i=0; i<jac.length; i++) {
+            double fd = (plus[i]-minus[i])/(2*h);
+            err = Math.max(err, Math.abs(fd-jac[i]));
+            max = Math.max(max, Math.abs(fd));
+        }
+        return max > 0 ? err/max : err;
+    }
+
+    /** Regression test of the simulation kernels.
+     *
+     * Random layer arrays are simulated by every kernel and compared with
+     * rawSimulate. The vector kernel must give the same result bit by bit,
+     * and the float kernel is allowed single precision errors, which are
+     * largest in the deep interference minima. The periodic kernel is
+     * compared with rawSimulate of the unrolled layers, and the derivatives
+     * of rawSimulateJacobian with central differences of rawSimulate.
+     */
+    public static void main(String[] args) {
+        final double lambda = 1.5405600e-10; /* Cu K_alpha */
+        final double beam = 250;
+        Random rand = new Random(1);
+        double[] alpha0rad = new double[1000];
+        for(int i=0; i<alpha0rad.length; i++)
+            alpha0rad[i] = (0.01 + 4.0*i/alpha0rad.length)*Math.PI/180;
+        SimulationPlan plan = new SimulationPlan(alpha0rad);
+        SimulationWorkspace ws = new SimulationWorkspace();
+        int n = plan.size();
+        double[] ref = new double[n];
+        double[] result = new double[n];
+        double[] plus = new double[n];
+        double[] minus = new double[n];
+        SimulationKernel[] kernels = {SimulationKernel.SCALAR,
+                                      SimulationKernel.COMPLEX,
+                                      SimulationKernel.COMPLEX_BUFFER};
+
+        for(int trial=0; trial<20; trial++) {
+            int L = 3 + rand.nextInt(8);
+            double stddevrad = trial%2 == 0 ? 0 : 0.01*Math.PI/180;
+            double[] delta = new double[L];
+            double[] beta = new double[L];
+            double[] d = new double[L];
+            double[] r = new double[L];
+            for(int i=1; i<L; i++) {
+                delta[i] = (2 + 8*rand.nextDouble())*1e-6;
+                beta[i] = delta[i]*(0.005 + 0.05*rand.nextDouble());
+                d[i] = (1 + 30*rand.nextDouble())*1e-9;
+                r[i] = rand.nextDouble()*1e-9;
+            }
+            rawSimulate(plan, ws, delta, beta, d, r, lambda, stddevrad, beam, ref);
+
+            for(SimulationKernel kernel: kernels) {
+                kernel.simulate(plan, ws, delta, beta, d, r, lambda, stddevrad, beam, result);
+                assert(maxRelativeError(ref, result, 0) < 1e-6);
+            }
+            SimulationKernel.VECTOR.simulate(plan, ws, delta, beta, d, r, lambda, stddevrad, beam, result);
+            assert(Arrays.equals(ref, result));
+            SimulationKernel.FLOAT.simulate(plan, ws, delta, beta, d, r, lambda, stddevrad, beam, result);
+            assert(maxRelativeError(ref, result, 1e-6) < 1e-3);
+            assert(maxRelativeError(ref, result, 1e-10) < 1e-2);
+
+            /* a resolution wide enough for the FFT convolution, against the
+               direct filter applied to the unfiltered reflectivity */
+            double widerad = 0.1*Math.PI/180;
+            double[] filter = plan.filter(widerad);
+            assert(plan.fftConvolver(widerad) != null);
+            rawSimulate(plan, ws, delta, beta, d, r, lambda, 0, beam, plus);
+            applyOddFilter(filter, plus, n, minus);
+            rawSimulate(plan, ws, delta, beta, d, r, lambda, widerad, beam, result);
+            assert(maxRelativeError(minus, result, 1e-10) < 1e-5);
+            assert(maxRelativeError(minus, applyOddFilter(filter, plus), 1e-10) < 1e-5);
+
+            /* a repeat block against the same layers written out */
+            int first = 1 + rand.nextInt(L-2);
+            int last = first + rand.nextInt(L-1-first);
+            int count = 2 + rand.nextInt(20);
+            int U = L + (count-1)*(last-first+1);
+            double[] udelta = new double[U];
+            double[] ubeta = new double[U];
+            double[] ud = new double[U];
+            double[] ur = new double[U];
+            for(int i=0, u=0; i<L; i++) {
+                int copies = i == last ? count : 1;
+                for(int c=0; c<copies; c++) {
+                    for(int j = c == 0 ? i : first; j <= i; j++, u++) {
+                        udelta[u] = delta[j];
+                        ubeta[u] = beta[j];
+                        ud[u] = d[j];
+                        ur[u] = r[j];
+                    }
+                }
+            }
+            rawSimulate(plan, ws, udelta, ubeta, ud, ur, lambda, stddevrad, beam, ref);
+            rawSimulatePeriodic(plan, ws, delta, beta, d, r, first, last, count, lambda, stddevrad, beam, result);
+            assert(maxRelativeError(ref, result, 0) < 1e-9);
+
+            /* delta and beta proportional to a density of 3000 kg/m^3 */
+            double[] ddelta = new double[L];
+            double[] dbeta = new double[L];
+            double[][] jac = new double[3*L][n];
+            double[] dbeam = new double[n];
+            for(int i=1; i<L; i++) {
+                ddelta[i] = delta[i]/3e3;
+                dbeta[i] = beta[i]/3e3;
+            }
+            rawSimulate(plan, ws, delta, beta, d, r, lambda, stddevrad, beam, ref);
+            rawSimulateJacobian(plan, ws, delta, beta, d, r, ddelta, dbeta, lambda, stddevrad, beam, result, jac, dbeam);
+            assert(maxRelativeError(ref, result, 0) < 1e-12);
+            for(int row=0; row<3*L; row++) {
+                int i = row/3, kind = row%3;
+                double h = kind == 1 ? 1e-2 : 1e-13;
+                for(int s=-1; s<=1; s+=2) {
+                    double[] delta2 = delta.clone();
+                    double[] beta2 = beta.clone();
+                    double[] d2 = d.clone();
+                    double[] r2 = r.clone();
+                    if(kind == 0) {
+                        d2[i] += s*h;
+                    } else if(kind == 1) {
+                        delta2[i] += s*h*ddelta[i];
+                        beta2[i] += s*h*dbeta[i];
+                    } else {
+                        r2[i] += s*h;
+                    }
+                    rawSimulate(plan, ws, delta2, beta2, d2, r2, lambda, stddevrad, beam, s > 0 ? plus : minus);
+                }
+                assert(maxDerivativeError(plus, minus, h, jac[row]) < 1e-5);
+            }
+            rawSimulate(plan, ws, delta, beta, d, r, lambda, stddevrad, beam+0.1, plus);
+            rawSimulate(plan, ws, delta, beta, d, r, lambda, stddevrad, beam-0.1, minus);
+            assert(maxDerivativeError(plus, minus, 0.1, dbeam) < 1e-5);
+        }
+    }
 }
@@ -0,0 +1,205 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Fixtures for the JMH benchmarks.
+ *
+ * <p>
+ *
+ * JMH does not support benchmarks in the default package, and classes in a
+ * named package can't refer to the classes of this program, which are all in
+ * the default package. The benchmarks in the xrrbench package therefore
+ * obtain the code to measure from this class through reflection, as a
+ * Callable that is created once in the setup of each trial.
+ *
+ * <p>
+ *
+ * The layer models consist of a silicon substrate and alternating aluminium
+ * oxide and silicon oxide layers. The scattering factors are those of
+ * XRRFittingCtx.TestLookup, so the benchmarks don't need the sf directory.
+ *
+ */
+public class BenchFixtures {
+    private static final double lambda = 1.5405600e-10; // Cu K_alpha
+
+    private BenchFixtures() {}
+
+    /** Creates a layer model.
+     *
+     * @param nlayers the number of layers including the substrate
+     * @return a new layer model with all values enabled for fitting
+     */
+    static LayerStack stack(int nlayers) throws ChemicalFormulaException, ElementNotFound {
+        LookupTable table = new XRRFittingCtx.TestLookup();
+        LayerStack layers = new LayerStack(lambda, table);
+        layers.add(new Layer("Substrate", new FitValue(0,0,0),
+                   new FitValue(2.26e3,2.33e3,2.4e3), new FitValue(0,0.3e-9,1e-9),
+                   new ChemicalFormula("Si"),new ChemicalFormula("Si"),0,table,lambda));
+        for (int i = 1; i < nlayers; i++)
+        {
+            if (i%2 == 1)
+            {
+                layers.add(new Layer("Al2O3", new FitValue(1e-9,3e-9,5e-9),
+                           new FitValue(3e3,3.9e3,4e3), new FitValue(0,0.3e-9,1e-9),
+                           new ChemicalFormula("Al"),new ChemicalFormula("O"),3/5.0,table,lambda));
+            }
+            else
+            {
+                layers.add(new Layer("SiO2", new FitValue(1e-9,2e-9,5e-9),
+                           new FitValue(2e3,2.2e3,2.4e3), new FitValue(0,0.3e-9,1e-9),
+                           new ChemicalFormula("Si"),new ChemicalFormula("O"),2.0/3,table,lambda));
+            }
+        }
+        layers.getStdDev().setValues(0, 0.005*Math.PI/180, 0.01*Math.PI/180);
+        return layers;
+    }
+
+    /** Returns uniformly spaced angles of incidence from 0 to 5 degrees. */
+    static double[] degrees(int points) {
+        double[] alpha_0 = new double[points];
+        for (int i = 0; i < points; i++)
+        {
+            alpha_0[i] = 5.0*i/points;
+        }
+        return alpha_0;
+    }
+
+    /** Creates a simulation of one reflectivity curve.
+     *
+     * @param kernel rawSimulate, rawSimulateComplex,
+     * rawSimulateComplexBuffer or rawSimulateComplexBufferArray for the
+     * allocating kernels of XRRSimul, or the name of a SimulationKernel for
+     * a kernel using a cached plan and workspace
+     * @param nlayers the number of layers including the substrate
+     * @param points the number of angles
+     * @return a task that returns the simulated reflectivity
+     */
+    public static Callable<Object> kernel(String kernel, int nlayers, int points) throws Exception {
+        LayerStack layers = stack(nlayers);
+        final double[] alpha0rad = SimulationPlan.fromDegrees(degrees(points)).alpha0rad;
+        final double[] delta = new double[nlayers+1];
+        final double[] beta = new double[nlayers+1];
+        final double[] d = new double[nlayers+1];
+        final double[] r = new double[nlayers+1];
+        final double stddevrad = layers.getStdDev().getExpected();
+        final double beam = layers.getBeam().getExpected();
+
+        XRRSimul.layerArrays(layers, delta, beta, d, r);
+        if (kernel.equals("rawSimulate"))
+        {
+            return new Callable<Object>() {
+                public Object call()
+                {
+                    return XRRSimul.rawSimulate(alpha0rad, delta, beta, d, r, lambda, stddevrad, beam);
+                }
+            };
+        }
+        if (kernel.equals("rawSimulateComplex"))
+        {
+            return new Callable<Object>() {
+                public Object call()
+                {
+                    return XRRSimul.rawSimulateComplex(alpha0rad, delta, beta, d, r, lambda, stddevrad, beam);
+                }
+            };
+        }
+        if (kernel.equals("rawSimulateComplexBuffer"))
+        {
+            return new Callable<Object>() {
+                public Object call()
+                {
+                    return XRRSimul.rawSimulateComplexBuffer(alpha0rad, delta, beta, d, r, lambda, stddevrad, beam);
+                }
+            };
+        }
+        if (kernel.equals("rawSimulateComplexBufferArray"))
+        {
+            return new Callable<Object>() {
+                public Object call()
+                {
+                    return XRRSimul.rawSimulateComplexBufferArray(alpha0rad, delta, beta, d, r, lambda, stddevrad, beam);
+                }
+            };
+        }
+        final SimulationKernel k = SimulationKernel.forName(kernel);
+        final SimulationPlan plan = new SimulationPlan(alpha0rad);
+        final SimulationWorkspace ws = new SimulationWorkspace();
+        final double[] result = new double[points];
+        return new Callable<Object>() {
+            public Object call()
+            {
+                k.simulate(plan, ws, delta, beta, d, r, lambda, stddevrad, beam, result);
+                return result;
+            }
+        };
+    }
+
+    /** Creates an evaluation of a fitting error function.
+     *
+     * @param func the name of a FitnessFunction constant
+     * @param points the number of data points
+     * @return a task that returns the fitting error
+     */
+    public static Callable<Object> fittingErrorFunc(String func, int points) throws Exception {
+        final FittingErrorFunc f = FitnessFunction.valueOf(func).create(-30, 2);
+        LayerStack layers = stack(3);
+        final double[] simul = new GraphData(degrees(points), null, null).simulate(layers).normalize(layers).simul;
+        final double[] meas = new double[points];
+        Random rnd = new Random(1);
+        for (int i = 0; i < points; i++)
+        {
+            meas[i] = simul[i]*Math.exp(0.1*rnd.nextGaussian());
+        }
+        return new Callable<Object>() {
+            public Object call()
+            {
+                return f.getError(meas, simul);
+            }
+        };
+    }
+
+    /** Creates a simulation through GraphData, as plotting does.
+     *
+     * @param nlayers the number of layers including the substrate
+     * @param points the number of angles
+     * @return a task that returns the simulated and normalized GraphData
+     */
+    public static Callable<Object> graphData(int nlayers, int points) throws Exception {
+        final LayerStack layers = stack(nlayers);
+        final GraphData data = new GraphData(degrees(points), null, null);
+        return new Callable<Object>() {
+            public Object call()
+            {
+                return data.simulate(layers).normalize(layers);
+            }
+        };
+    }
+
+    /** Creates one iteration of a differential evolution fit.
+     *
+     * The fit uses the shared pool of ComputeScheduler and continues from
+     * one invocation to the next.
+     *
+     * @param npop the population size
+     * @param nlayers the number of layers including the substrate
+     * @param points the number of angles
+     * @return a task that runs one iteration and returns the best fitting
+     * error
+     */
+    public static Callable<Object> deIteration(int npop, int nlayers, int points) throws Exception {
+        LayerStack layers = stack(nlayers);
+        double[] alpha_0 = degrees(points);
+        double[] simul = new GraphData(alpha_0, null, null).simulate(layers).simul;
+        GraphData gd = new GraphData(alpha_0, simul, simul, false);
+        final XRRFittingCtx ctx = new XRRFittingCtx(layers, gd, true, true, npop,
+                                                    new LogFittingErrorFunc(2),
+                                                    ComputeScheduler.pool(),
+                                                    new AdvancedFitOptions());
+        return new Callable<Object>() {
+            public Object call()
+            {
+                ctx.iteration();
+                return ctx.bestFittingError();
+            }
+        };
+    }
+}
@@ -0,0 +1,39 @@
+package xrrbench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/** One iteration of differential evolution fitting.
+ *
+ * The population is evaluated on the shared pool of ComputeScheduler, so
+ * the result depends on the number of cores. A new fit is started for each
+ * trial, and the iterations of a trial continue the same fit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class FittingBenchmark {
+    @Param({"20", "60", "200"})
+    public int npop;
+
+    @Param({"3", "10"})
+    public int layers;
+
+    @Param({"2000"})
+    public int points;
+
+    private Callable<Object> task;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        task = Fixtures.create("deIteration", npop, layers, points);
+    }
+
+    @Benchmark
+    public Object iteration() throws Exception {
+        return task.call();
+    }
+}
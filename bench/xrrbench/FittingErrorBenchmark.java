@@ -0,0 +1,32 @@
+package xrrbench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/** Evaluation of each fitting error function. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FittingErrorBenchmark {
+    @Param({"relchi2transform", "relchi2", "logfitness", "rel",
+            "sqrtfitness", "chi2"})
+    public String func;
+
+    @Param({"1000", "4000"})
+    public int points;
+
+    private Callable<Object> task;
+
+    @Setup
+    public void setup() throws Exception {
+        task = Fixtures.create("fittingErrorFunc", func, points);
+    }
+
+    @Benchmark
+    public Object getError() throws Exception {
+        return task.call();
+    }
+}
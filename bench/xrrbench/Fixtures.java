@@ -0,0 +1,36 @@
+package xrrbench;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/** Access to the fixtures of BenchFixtures in the default package. */
+final class Fixtures {
+    private Fixtures() {}
+
+    /** Calls a factory method of BenchFixtures.
+     *
+     * @param method the name of the factory method
+     * @param args the arguments, which must be Strings or Integers
+     * @return the task to measure
+     */
+    @SuppressWarnings("unchecked")
+    static Callable<Object> create(String method, Object... args) throws Exception {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++)
+        {
+            types[i] = args[i] instanceof Integer ? int.class : String.class;
+        }
+        Method m = Class.forName("BenchFixtures").getMethod(method, types);
+        try {
+            return (Callable<Object>)m.invoke(null, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof Exception)
+            {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package xrrbench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/** GraphData.simulate followed by normalize, as done when plotting. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class GraphDataBenchmark {
+    @Param({"3", "20", "100"})
+    public int layers;
+
+    @Param({"1000", "4000"})
+    public int points;
+
+    private Callable<Object> task;
+
+    @Setup
+    public void setup() throws Exception {
+        task = Fixtures.create("graphData", layers, points);
+    }
+
+    @Benchmark
+    public Object simulateNormalize() throws Exception {
+        return task.call();
+    }
+}
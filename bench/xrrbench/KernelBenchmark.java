@@ -0,0 +1,39 @@
+package xrrbench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/** Simulation of one reflectivity curve with each kernel of XRRSimul.
+ *
+ * The scalar, vector and float kernels reuse a plan and a workspace like
+ * fitting does; the other kernels allocate their arrays on every call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class KernelBenchmark {
+    @Param({"rawSimulate", "rawSimulateComplex", "rawSimulateComplexBuffer",
+            "rawSimulateComplexBufferArray", "scalar", "vector", "float"})
+    public String kernel;
+
+    @Param({"3", "20", "100"})
+    public int layers;
+
+    @Param({"1000", "4000"})
+    public int points;
+
+    private Callable<Object> task;
+
+    @Setup
+    public void setup() throws Exception {
+        task = Fixtures.create("kernel", kernel, layers, points);
+    }
+
+    @Benchmark
+    public Object simulate() throws Exception {
+        return task.call();
+    }
+}
@@ -3,7 +3,7 @@
 set CLASSPATH=.;.\deploy\xchart-3.4.1-CUSTOM.jar;.\deploy\javafastcomplex.jar;.\deploy\Jama-1.0.3.jar;.\deploy\javaxmlfrag.jar
 
 del *.class
-javac -Xlint:unchecked -source 1.5 -target 1.5 *.java
+javac -Xlint:unchecked -source 1.7 -target 1.7 *.java
 jar cfm xrr.jar manifest.txt *.class *.png
 copy xrr.jar deploy
 copy javafastcomplex.jar deploy
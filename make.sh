@@ -3,7 +3,7 @@
 export CLASSPATH=".:./deploy/xchart-3.4.1-CUSTOM.jar:./deploy/javafastcomplex.jar:./deploy/Jama-1.0.3.jar:./deploy/javaxmlfrag.jar"
 
 rm *.class
-javac -Xlint:unchecked -source 1.5 -target 1.5 *.java
+javac -Xlint:unchecked -source 1.7 -target 1.7 *.java
 jar cfm xrr.jar manifest.txt *.class *.png
 cp xrr.jar deploy
 cp javafastcomplex.jar deploy
@@ -3,4 +3,8 @@ export CLASSPATH=".:./deploy/xchart-3.4.1-CUSTOM.jar:./deploy/javafastcomplex.ja
 echo Running regression tests...
 java -ea ChemicalFormula
 java -ea Fcode
+java -ea XRRSimul
+java -ea FlatModel
+java -ea FitCheckpoint
+java -ea CostCache
 echo Regression tests completed